@@ -0,0 +1,68 @@
+package mrcl.lib;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times writing a local block file from the heap and reading it, into the
+ * heap or memory-mapped. Block files are created under the working
+ * directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BlockIoBenchmark {
+	@Param( { "256", "512", "1024" })
+	public int blockSize;
+
+	@Param( { "false", "true" })
+	public boolean mapped;
+
+	private Block _block;
+	private Content _content;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		_block = new Block(new Matrix("bench_io_" + blockSize, blockSize,
+				blockSize, blockSize, blockSize), 0, 0);
+		_content = Content.acquire(_block);
+		_content.randomize(1);
+		_content.writeLocal();
+		Content.setLocalMapped(mapped);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		_content.release();
+		Content.setLocalMapped(false);
+	}
+
+	@Benchmark
+	public Content writeLocal() {
+		_content.writeLocal();
+		return _content;
+	}
+
+	@Benchmark
+	public Content readLocal() {
+		Content content = Content.readLocal(_block);
+		content.release();
+		return content;
+	}
+}
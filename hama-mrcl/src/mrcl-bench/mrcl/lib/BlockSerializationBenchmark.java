@@ -0,0 +1,120 @@
+package mrcl.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times the serialization of blocks for the shuffle and block files, with
+ * each codec and precision, for random blocks and for structured ones,
+ * whose values are a smooth ramp with few distinct exponents. The write
+ * benchmark also reports the raw and written bytes, whose ratio is the
+ * compression ratio.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BlockSerializationBenchmark {
+	@Param( { "256", "512", "1024" })
+	public int blockSize;
+
+	@Param( { "none", "fast", "shuffle" })
+	public String codec;
+
+	@Param( { "fp32", "bf16" })
+	public String precision;
+
+	@Param( { "random", "structured" })
+	public String data;
+
+	private Content _a;
+	private Content _value;
+	private BlockCodec _codec;
+	private BlockPrecision _precision;
+	private ByteArrayOutputStream _bytes;
+	private byte[] _serialized;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		Block block = new Block(new Matrix("bench", blockSize, blockSize,
+				blockSize, blockSize), 0, 0);
+		_a = Content.acquire(block);
+		if ("structured".equals(data)) {
+			for (int i = 0; i < blockSize * blockSize; i++)
+				_a.getFloatBuffer().put(i, 1 + i / (float) blockSize);
+		} else {
+			_a.randomize(1);
+		}
+		_value = Content.acquire(block);
+		_codec = BlockCodec.forName(codec);
+		_precision = BlockPrecision.forName(precision);
+		_bytes = new ByteArrayOutputStream();
+		write(new Sizes());
+		_serialized = _bytes.toByteArray();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		_a.release();
+		_value.release();
+	}
+
+	/**
+	 * The bytes of the blocks written in an iteration, before and after
+	 * serialization.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Sizes {
+		public long rawBytes;
+		public long writtenBytes;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			rawBytes = 0;
+			writtenBytes = 0;
+		}
+	}
+
+	@Benchmark
+	public int write(Sizes sizes) throws IOException {
+		_bytes.reset();
+		DataOutputStream output = new DataOutputStream(_bytes);
+		_a.write(output, _codec, _precision, SparseBlock.DEFAULT_THRESHOLD);
+		output.flush();
+		sizes.rawBytes += _a.getByteBuffer().capacity();
+		sizes.writtenBytes += _bytes.size();
+		return _bytes.size();
+	}
+
+	/**
+	 * Reads into a reused block, like the shuffle does.
+	 */
+	@Benchmark
+	public Content readFields() throws IOException {
+		_value.readFields(new DataInputStream(new ByteArrayInputStream(
+				_serialized)));
+		return _value;
+	}
+}
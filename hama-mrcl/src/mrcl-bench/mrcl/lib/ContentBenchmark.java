@@ -0,0 +1,68 @@
+package mrcl.lib;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times the element-wise block operations: add sums the products of the
+ * rounds, and reduce subtracts blocks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ContentBenchmark {
+	@Param( { "256", "512", "1024" })
+	public int blockSize;
+
+	private Matrix _matrix;
+	private Block _block;
+	private Content _a;
+	private Content _b;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		_matrix = new Matrix("bench", blockSize, blockSize, blockSize,
+				blockSize);
+		_block = new Block(_matrix, 0, 0);
+		_a = Content.acquire(_block);
+		_a.randomize(1);
+		_b = Content.acquire(_block);
+		_b.randomize(2);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		_a.release();
+		_b.release();
+	}
+
+	@Benchmark
+	public Content add() {
+		Content content = Content.add(_block, _a, _b);
+		content.release();
+		return content;
+	}
+
+	@Benchmark
+	public Content reduce() {
+		Content content = Content.reduce(_matrix, _a, _b);
+		content.release();
+		return content;
+	}
+}
@@ -0,0 +1,37 @@
+package mrcl.lib;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times parsing and formatting the job file lines of the map tasks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MultArgsBenchmark {
+	private String _line = new MultArgs("bb", "cc", 17).toString();
+	private MultArgs _args = new MultArgs(_line);
+
+	@Benchmark
+	public MultArgs parse() {
+		return new MultArgs(_line);
+	}
+
+	@Benchmark
+	public String format() {
+		return _args.toString();
+	}
+}
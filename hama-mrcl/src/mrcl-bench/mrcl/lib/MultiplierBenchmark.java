@@ -0,0 +1,69 @@
+package mrcl.lib;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times c = a * b on one square block for each {@link MatrixMultiplier}
+ * backend. JCublas needs a GPU and is left out of the defaults; add it with
+ * -Dbench.args="-p multiplier=JCublas".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MultiplierBenchmark {
+	@Param( { "Java", "TiledJava", "ParallelJava", "Strassen", "VectorApi",
+			"Sparse" })
+	public String multiplier;
+
+	@Param( { "256", "512", "1024" })
+	public int blockSize;
+
+	private MatrixMultiplier _multiplier;
+	private Block _block;
+	private Content _a;
+	private Content _b;
+	private Content _c;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		_multiplier = Matrix.getMatrixMultiplier(multiplier);
+		Matrix matrix = new Matrix("bench", blockSize, blockSize, blockSize,
+				blockSize);
+		_block = new Block(matrix, 0, 0);
+		_a = Content.acquire(_block);
+		_a.randomize(1);
+		_b = Content.acquire(_block);
+		_b.randomize(2);
+		_c = Content.acquire(_block);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		_a.release();
+		_b.release();
+		_c.release();
+	}
+
+	@Benchmark
+	public Content multiplyAdd() {
+		_multiplier.doMultiplyAdd(_block, _a, _b, _c, 1, 0);
+		return _c;
+	}
+}
@@ -0,0 +1,88 @@
+package mrcl.lib;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+public class TestBlockCache extends TestCase {
+
+	public void testLeastRecentlyUsedEviction() {
+		BlockCache cache = new BlockCache();
+		cache.setCapacity(20);
+		cache.put("a", content(2));
+		cache.put("b", content(2));
+		assertNotNull(cache.get("a"));
+		cache.put("c", content(2));
+
+		assertEquals(16, cache.getBytes());
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+		assertEquals(3, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		cache.put("d", content(8));
+		assertNull(cache.get("d"));
+	}
+
+	private static Content content(int floats) {
+		return new Content(new Block(new Matrix("cached", 1, floats, 1, floats), 0, 0));
+	}
+
+	/**
+	 * Uses the local file system as the remote one.
+	 */
+	public void testReadRemoteCached() {
+		Configuration conf = new Configuration();
+		Matrix matrix = new Matrix("cached", 8, 8, 8, 8).randomizeRemote(1, conf);
+		Block block = new Block(matrix, 0, 0);
+
+		BlockCache cache = BlockCache.get();
+		cache.setCapacity(1 << 20);
+		cache.clear();
+		long hits = cache.getHits();
+		long misses = cache.getMisses();
+		Content first = Content.readRemoteCached(block, conf);
+		Content second = Content.readRemoteCached(block, conf);
+		assertEquals(1, cache.getHits() - hits);
+		assertEquals(1, cache.getMisses() - misses);
+		assertTrue(second.getByteBuffer().isReadOnly());
+
+		Content sum = Content.acquire(block);
+		sum.accumulate(first);
+		sum.accumulate(second);
+		Content expected = Content.readRemote(block, conf);
+		for (int i = 0; i < 64; i++)
+			assertEquals(2 * expected.getFloatBuffer().get(i), sum
+					.getFloatBuffer().get(i));
+	}
+
+	/**
+	 * A block rewritten through the descriptor, or read through a newer
+	 * descriptor, is read again.
+	 */
+	public void testRewrite() throws InterruptedException {
+		Configuration conf = new Configuration();
+		Matrix matrix = new Matrix("cached_rewrite", 16, 16, 8, 8).fillRemote(1,
+				conf);
+		Block block = new Block(matrix, 1, 0);
+		Content.readRemoteCached(block, conf).release();
+		Content.readRemoteCached(new Block(matrix, 1, 1), conf).release();
+
+		// File times may have a resolution of a millisecond.
+		Thread.sleep(10);
+		Content two = new Content(block);
+		two.fill(2);
+		two.writeRemote(conf);
+		Content read = Content.readRemoteCached(block, conf);
+		assertEquals(2f, read.getFloatBuffer().get(0));
+		read.release();
+
+		Thread.sleep(10);
+		Matrix.readRemote("cached_rewrite", conf).fillRemote(3, conf);
+		read = Content.readRemoteCached(new Block(Matrix.readRemote(
+				"cached_rewrite", conf), 1, 1), conf);
+		assertEquals(3f, read.getFloatBuffer().get(0));
+		read.release();
+	}
+}
@@ -0,0 +1,96 @@
+package mrcl.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+public class TestBlockCodec extends TestCase {
+	private static final String[] CODECS = { "none", "deflate", "fast",
+			"shuffle" };
+
+	public void testRoundTrip() throws IOException {
+		Matrix matrix = new Matrix("codec", 100, 100, 64, 64);
+		Block block = new Block(matrix, 1, 0);
+		Content random = new Content(block);
+		random.randomize(7);
+		Content constant = new Content(block);
+		constant.fill(1.5f);
+
+		for (String name : CODECS) {
+			BlockCodec codec = BlockCodec.forName(name);
+			for (Content content : new Content[] { random, constant }) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				content.write(new DataOutputStream(bytes), codec);
+				if (codec != BlockCodec.NONE && content == constant)
+					assertTrue(name, bytes.size() < Content.bytes(block) / 10);
+
+				Content read = new Content(block);
+				read.readFields(new DataInputStream(new ByteArrayInputStream(
+						bytes.toByteArray())));
+				assertEquals(36, read.getRows());
+				assertEquals(64, read.getCols());
+				for (int i = 0; i < 36 * 64; i++)
+					assertEquals(name + " element " + i, content.getFloatBuffer()
+							.get(i), read.getFloatBuffer().get(i));
+			}
+		}
+	}
+
+	/**
+	 * Values of any width, and bytes after the last whole value, come back
+	 * unchanged.
+	 */
+	public void testWidths() throws IOException {
+		byte[] data = new byte[23];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i * 37 + 1);
+		for (String name : CODECS) {
+			BlockCodec codec = BlockCodec.forName(name);
+			for (int width : new int[] { 1, 2, 4, 8 }) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				codec.write(new DataOutputStream(bytes), data, 1, 21, width);
+				byte[] read = new byte[23];
+				codec.read(new DataInputStream(new ByteArrayInputStream(bytes
+						.toByteArray())), read, 2, 21, width);
+				for (int i = 0; i < 21; i++)
+					assertEquals(name + " width " + width + " byte " + i,
+							data[1 + i], read[2 + i]);
+			}
+		}
+	}
+
+	/**
+	 * Readers detect the codec from the header, whatever mrcl.block.codec is.
+	 * Uses the local file system as the remote one.
+	 */
+	public void testRemoteAutoDetect() {
+		Configuration conf = new Configuration();
+		conf.set(BlockCodec.CODEC, "shuffle");
+		Matrix matrix = new Matrix("codec_remote", 20, 20, 16, 16).randomizeRemote(4,
+				conf);
+
+		conf.set(BlockCodec.CODEC, "none");
+		Block block = new Block(matrix, 1, 1);
+		Content expected = new Content(block);
+		expected.randomize(4);
+		Content actual = Content.readRemote(block, conf);
+		for (int i = 0; i < 16; i++)
+			assertEquals(expected.getFloatBuffer().get(i), actual
+					.getFloatBuffer().get(i));
+		actual.release();
+	}
+
+	public void testUnknownCodec() {
+		try {
+			BlockCodec.forName("lzma");
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
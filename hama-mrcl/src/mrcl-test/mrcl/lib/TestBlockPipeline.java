@@ -0,0 +1,88 @@
+package mrcl.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Prefetches and writes blocks behind. Uses the local file system as the
+ * remote one.
+ */
+public class TestBlockPipeline extends TestCase {
+
+	private static Configuration conf(int depth) {
+		Configuration conf = new Configuration();
+		conf.setInt(BlockPipeline.PREFETCH, depth);
+		conf.setInt(BlockPipeline.WRITE_BEHIND, depth);
+		return conf;
+	}
+
+	public void testPrefetchOrder() {
+		for (int depth : new int[] { 0, 1, 3 }) {
+			Configuration conf = conf(depth);
+			Matrix matrix = new Matrix("pipeline", 40, 40, 8, 8).randomizeRemote(7,
+					conf);
+			List<Block> blocks = new ArrayList<Block>();
+			for (int blockRow = 0; blockRow < matrix.getBlockRows(); blockRow++)
+				blocks.add(new Block(matrix, blockRow, 4 - blockRow));
+
+			BlockPipeline pipeline = new BlockPipeline(conf);
+			pipeline.prefetch(blocks);
+			for (Block block : blocks) {
+				Content expected = new Content(block);
+				expected.randomize(7);
+				Content actual = pipeline.next();
+				assertEquals(expected.getFloatBuffer(), actual.getFloatBuffer());
+				actual.release();
+			}
+			pipeline.close();
+		}
+	}
+
+	public void testWriteBehind() throws IOException {
+		Block block = new Block(new Matrix("pipeline_write", 8, 8, 8, 8), 0, 0);
+		final List<Float> written = new ArrayList<Float>();
+		BlockPipeline pipeline = new BlockPipeline(conf(2));
+		Matrix.BlockSink sink = pipeline.writeBehind(new Matrix.BlockSink() {
+			@Override
+			public void put(Block block, Content content) {
+				written.add(content.getFloatBuffer().get(0));
+			}
+		});
+		Content content = new Content(block);
+		for (int i = 0; i < 10; i++) {
+			// The sink gets a copy, so the block can be changed right away.
+			content.fill(i);
+			sink.put(block, content);
+		}
+		pipeline.flush();
+		pipeline.close();
+		assertEquals(10, written.size());
+		for (int i = 0; i < 10; i++)
+			assertEquals((float) i, written.get(i));
+	}
+
+	public void testWriteFailure() {
+		Block block = new Block(new Matrix("pipeline_fail", 8, 8, 8, 8), 0, 0);
+		BlockPipeline pipeline = new BlockPipeline(conf(2));
+		Matrix.BlockSink sink = pipeline.writeBehind(new Matrix.BlockSink() {
+			@Override
+			public void put(Block block, Content content) throws IOException {
+				throw new IOException("disk full");
+			}
+		});
+		try {
+			sink.put(block, new Content(block));
+			pipeline.flush();
+			fail();
+		} catch (IOException e) {
+			assertEquals("disk full", e.getMessage());
+		} finally {
+			pipeline.close();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package mrcl.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+public class TestBlockPrecision extends TestCase {
+
+	public void testFp16() {
+		BlockPrecision fp16 = BlockPrecision.FP16;
+		assertEquals(1.5f, fp16.round(1.5f));
+		assertEquals(-2048f, fp16.round(-2048f));
+		assertEquals(65504f, fp16.round(65504f));
+		assertEquals(Float.POSITIVE_INFINITY, fp16.round(65520f));
+		assertEquals(0x1p-24f, fp16.round(0x1p-24f));
+		assertEquals(0f, fp16.round(0x1p-26f));
+		assertTrue(Float.isNaN(fp16.round(Float.NaN)));
+		// 2049 lies halfway between 2048 and 2050 and rounds to even.
+		assertEquals(2048f, fp16.round(2049f));
+		assertEquals(2052f, fp16.round(2051f));
+		assertEquals(1f / 3, fp16.round(1f / 3), 1f / 3 / 2048);
+	}
+
+	public void testBf16() {
+		BlockPrecision bf16 = BlockPrecision.BF16;
+		assertEquals(1.5f, bf16.round(1.5f));
+		assertEquals(1e30f, bf16.round(1e30f), 1e30f / 256);
+		assertEquals(256f, bf16.round(257f));
+		assertEquals(260f, bf16.round(259f));
+		assertTrue(Float.isNaN(bf16.round(Float.NaN)));
+		assertEquals(Float.NEGATIVE_INFINITY, bf16.round(Float.NEGATIVE_INFINITY));
+	}
+
+	public void testRoundTrip() throws IOException {
+		Block block = new Block(new Matrix("precision", 40, 40, 32, 32), 0, 1);
+		Content content = new Content(block);
+		content.randomize(9);
+
+		for (BlockPrecision precision : new BlockPrecision[] {
+				BlockPrecision.FP32, BlockPrecision.FP16, BlockPrecision.BF16 }) {
+			for (float threshold : new float[] { 0, 1.1f }) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				content.write(new DataOutputStream(bytes), BlockCodec.NONE,
+						precision, threshold);
+				if (threshold == 0)
+					assertEquals(Content.HEADER_SIZE + 32 * 8
+							* precision.getBytes(), bytes.size());
+
+				Content read = new Content(block);
+				read.readFields(new DataInputStream(new ByteArrayInputStream(
+						bytes.toByteArray())));
+				assertEquals(threshold > 0, read.isSparse());
+				for (int i = 0; i < 32 * 8; i++) {
+					float value = content.getFloatBuffer().get(i);
+					assertEquals(precision.getName() + " element " + i, precision
+							.round(value), read.getFloatBuffer().get(i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Half precision blocks with an odd number of values, dense and sparse,
+	 * survive the byte shuffle.
+	 */
+	public void testShuffleOddSizes() throws IOException {
+		Block block = new Block(new Matrix("precision_odd", 3, 3, 3, 3), 0, 0);
+		Content content = new Content(block);
+		content.randomize(11);
+		content.getFloatBuffer().put(4, 0);
+		content.getFloatBuffer().put(8, 0.4486f);
+
+		for (BlockPrecision precision : new BlockPrecision[] {
+				BlockPrecision.FP16, BlockPrecision.BF16 }) {
+			for (float threshold : new float[] { 0, 1.1f }) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				content.write(new DataOutputStream(bytes), BlockCodec.SHUFFLE,
+						precision, threshold);
+
+				Content read = new Content(block);
+				read.readFields(new DataInputStream(new ByteArrayInputStream(
+						bytes.toByteArray())));
+				assertEquals(threshold > 0, read.isSparse());
+				for (int i = 0; i < 3 * 3; i++) {
+					float value = content.getFloatBuffer().get(i);
+					assertEquals(precision.getName() + " element " + i, precision
+							.round(value), read.getFloatBuffer().get(i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Precision 3 was fp64, which is not a precision of float values, in
+	 * neither the dense nor the sparse layout.
+	 */
+	public void testUnknownPrecision() throws IOException {
+		for (int layout = 0; layout < 2; layout++) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(Content.MAGIC);
+			out.writeByte(Content.VERSION);
+			out.writeByte(BlockCodec.NONE.getId());
+			out.writeByte(layout);
+			out.writeByte(3);
+			out.writeInt(1);
+			out.writeInt(1);
+			out.writeInt(1);
+			out.write(new byte[16]);
+			try {
+				new Content(new Block(new Matrix("precision_unknown", 1, 1, 1, 1),
+						0, 0)).readFields(new DataInputStream(new ByteArrayInputStream(
+						bytes.toByteArray())));
+				fail("layout " + layout);
+			} catch (IOException e) {
+			}
+		}
+		try {
+			BlockPrecision.forName("fp64");
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	/**
+	 * Uses the local file system as the remote one.
+	 */
+	public void testRemote() {
+		Configuration conf = new Configuration();
+		conf.set(BlockPrecision.PRECISION, "bf16");
+		conf.set(BlockCodec.CODEC, "fast");
+		Matrix matrix = new Matrix("precision_remote", 16, 16, 16, 16)
+				.randomizeRemote(5, conf);
+		Block block = new Block(matrix, 0, 0);
+		Content expected = new Content(block);
+		expected.randomize(5);
+		Content actual = Content.readRemote(block, new Configuration());
+		for (int i = 0; i < 16 * 16; i++)
+			assertEquals(BlockPrecision.BF16.round(expected.getFloatBuffer().get(i)),
+					actual.getFloatBuffer().get(i));
+		actual.release();
+	}
+}
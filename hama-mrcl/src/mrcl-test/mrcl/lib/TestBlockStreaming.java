@@ -0,0 +1,149 @@
+package mrcl.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Streams the products of a multiplication through serialized blocks the way
+ * the shuffle does. Uses the local file system as the remote one.
+ */
+public class TestBlockStreaming extends TestCase {
+
+	/**
+	 * Serializes and deserializes a block like the shuffle, into a reused
+	 * value object.
+	 */
+	private static Content shuffle(Content content, ShuffledBlock value)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new ShuffledBlock(content, value.getConf()).write(new DataOutputStream(
+				bytes));
+		value.readFields(new DataInputStream(new ByteArrayInputStream(bytes
+				.toByteArray())));
+		return value.get();
+	}
+
+	public void testMultiplyRound() throws IOException {
+		final Configuration conf = new Configuration();
+		int n = 40;
+		Matrix a = new Matrix("stream_a", n, n, 16, 16).randomizeRemote(2, conf);
+		Matrix b = new Matrix("stream_b", n, n, 16, 16).randomizeRemote(3, conf);
+		Matrix result = new Matrix("stream_c", n, n, 16, 16);
+
+		final ShuffledBlock value = ReflectionUtils.newInstance(
+				ShuffledBlock.class, conf);
+		final Map<BlockKey, Content> sums = new HashMap<BlockKey, Content>();
+		for (int round = 0; round < a.getBlockCols(); round++) {
+			Matrix.multiplyRound(result, a, b, round, new Matrix.BlockSink() {
+				@Override
+				public void put(Block block, Content content) throws IOException {
+					BlockKey key = new BlockKey(block.getBlockRow(), block
+							.getBlockCol());
+					Content shuffled = shuffle(content, value);
+					Content sum = sums.get(key);
+					if (sum == null)
+						sums.put(key, shuffled.copy());
+					else
+						sum.accumulate(shuffled);
+				}
+			}, conf);
+		}
+		assertEquals(9, sums.size());
+		for (Map.Entry<BlockKey, Content> entry : sums.entrySet()) {
+			BlockKey key = entry.getKey();
+			Content sum = Content.acquire(new Block(result, key.getBlockRow(), key
+					.getBlockCol()));
+			sum.accumulate(entry.getValue());
+			sum.writeRemote(conf);
+			sum.release();
+		}
+
+		FloatBuffer expected = Matrix.multiplyLocal("stream_expected",
+				new Matrix("stream_la", n, n, 16, 16).randomizeLocal(2),
+				new Matrix("stream_lb", n, n, 16, 16).randomizeLocal(3))
+				.getFloatBufferLocal();
+		FloatBuffer actual = result.getFloatBufferRemote(conf);
+		for (int i = 0; i < n * n; i++)
+			assertEquals("element " + i, expected.get(i), actual.get(i), 1e-4f);
+	}
+
+	public void testCopyKeepsValue() throws IOException {
+		Block block = new Block(new Matrix("stream_copy", 8, 8, 8, 8), 0, 0);
+		Content first = new Content(block);
+		first.fill(1);
+		Content second = new Content(block);
+		second.fill(2);
+
+		ShuffledBlock value = ReflectionUtils.newInstance(ShuffledBlock.class,
+				null);
+		Content copy = shuffle(first, value).copy();
+		copy.accumulate(shuffle(second, value));
+		for (int i = 0; i < 64; i++)
+			assertEquals(3f, copy.getFloatBuffer().get(i));
+		copy.release();
+	}
+
+	/**
+	 * Shuffled blocks take the codec and precision of the job, and are read
+	 * back as floats that can be summed.
+	 */
+	public void testReducedPrecision() throws IOException {
+		Block block = new Block(new Matrix("stream_precision", 32, 32, 32, 32),
+				0, 0);
+		Content content = new Content(block);
+		content.randomize(5);
+		for (String precision : new String[] { "fp16", "bf16" }) {
+			Configuration conf = new Configuration();
+			conf.set(BlockCodec.CODEC, "shuffle");
+			conf.set(BlockPrecision.PRECISION, precision);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			new ShuffledBlock(content, conf).write(new DataOutputStream(bytes));
+			assertTrue(precision, bytes.size() < Content.bytes(block) / 2
+					+ Content.HEADER_SIZE);
+
+			ShuffledBlock value = ReflectionUtils.newInstance(
+					ShuffledBlock.class, conf);
+			value.readFields(new DataInputStream(new ByteArrayInputStream(bytes
+					.toByteArray())));
+			Content sum = value.get().copy();
+			sum.accumulate(value.get());
+			float tolerance = "fp16".equals(precision) ? 1e-3f : 1e-2f;
+			for (int i = 0; i < 32 * 32; i++) {
+				float expected = content.getFloatBuffer().get(i);
+				assertEquals(precision + " element " + i, 2 * expected, sum
+						.getFloatBuffer().get(i), 2 * tolerance
+						* Math.abs(expected) + 1e-6f);
+			}
+			sum.release();
+		}
+	}
+
+	public void testPartitioner() {
+		JobConf job = new JobConf();
+		job.setInt(BlockPartitioner.BLOCK_COLS, 3);
+		BlockPartitioner partitioner = new BlockPartitioner();
+		partitioner.configure(job);
+		int[] counts = new int[4];
+		for (int row = 0; row < 4; row++) {
+			for (int col = 0; col < 3; col++)
+				counts[partitioner.getPartition(new BlockKey(row, col), null, 4)]++;
+		}
+		for (int count : counts)
+			assertEquals(3, count);
+
+		assertTrue(new BlockKey(0, 5).compareTo(new BlockKey(1, 0)) < 0);
+		assertEquals(new BlockKey(2, 1), new BlockKey(2, 1));
+	}
+}
@@ -0,0 +1,40 @@
+package mrcl.lib;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class TestContentPool extends TestCase {
+
+	public void testReuse() {
+		ContentPool pool = new ContentPool();
+		ByteBuffer buffer = pool.acquire(64);
+		pool.release(buffer);
+		assertSame(buffer, pool.acquire(64));
+		assertNotSame(buffer, pool.acquire(64));
+		assertEquals(2, pool.getAllocated());
+		assertEquals(1, pool.getReused());
+	}
+
+	public void testCapacity() {
+		ContentPool pool = new ContentPool();
+		pool.setCapacity(1);
+		ByteBuffer first = pool.acquire(16);
+		ByteBuffer second = pool.acquire(16);
+		pool.release(first);
+		pool.release(second);
+		assertSame(first, pool.acquire(16));
+		assertNotSame(second, pool.acquire(16));
+	}
+
+	public void testAcquireIsZeroFilled() {
+		Block block = new Block(new Matrix("pool", 4, 4, 4, 4), 0, 0);
+		Content content = Content.acquire(block);
+		content.fill(1);
+		content.release();
+		content = Content.acquire(block);
+		for (int i = 0; i < 16; i++)
+			assertEquals(0f, content.getFloatBuffer().get(i));
+		content.release();
+	}
+}
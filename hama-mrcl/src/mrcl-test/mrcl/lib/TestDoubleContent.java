@@ -0,0 +1,148 @@
+package mrcl.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Multiplies and stores matrices of {@link ElementType#DOUBLE} values. Block
+ * files are created under the working directory.
+ */
+public class TestDoubleContent extends TestCase {
+	private static final String[] MULTIPLIERS = { "Java", "TiledJava",
+			"ParallelJava", "VectorApi", "Strassen", "Sparse" };
+
+	@Override
+	protected void tearDown() {
+		Content.setLocalMapped(false);
+	}
+
+	public void testMultiplyLocal() {
+		checkMultiplyLocal(false);
+	}
+
+	public void testMultiplyLocalMapped() {
+		checkMultiplyLocal(true);
+	}
+
+	private void checkMultiplyLocal(boolean mapped) {
+		Content.setLocalMapped(mapped);
+		int n = 50;
+		Matrix a = new Matrix("double_a", n, n, 16, 16, ElementType.DOUBLE)
+				.randomizeLocal(2);
+		Matrix b = new Matrix("double_b", n, n, 16, 16, ElementType.DOUBLE)
+				.randomizeLocal(3);
+		assertEquals(Content.HEADER_SIZE + 16 * 16 * 8, new File(new Block(a, 0,
+				0).getBlockPath()).length());
+
+		DoubleBuffer expected = DoubleBuffer.allocate(n * n);
+		JavaMatrixMultiplier.dgemmJava(n, n, n, 1, b.getDoubleBufferLocal(), a
+				.getDoubleBufferLocal(), 0, expected);
+
+		Matrix c = Matrix.multiplyLocal("double_c", a, b);
+		assertEquals(ElementType.DOUBLE, c.getElementType());
+		DoubleBuffer actual = c.getDoubleBufferLocal();
+		for (int i = 0; i < n * n; i++)
+			assertEquals("element " + i, expected.get(i), actual.get(i), 1e-12);
+	}
+
+	public void testMultipliers() {
+		Matrix matrix = new Matrix("double", 40, 40, 40, 40, ElementType.DOUBLE);
+		Block block = new Block(matrix, 0, 0);
+		Content a = new Content(block);
+		a.randomize(4);
+		Content b = new Content(block);
+		b.randomize(5);
+		Content expected = new Content(block);
+		JavaMatrixMultiplier.dgemmJava(40, 40, 40, 1, a.getDoubleBuffer(), b
+				.getDoubleBuffer(), 0, expected.getDoubleBuffer());
+
+		for (String name : MULTIPLIERS) {
+			MatrixMultiplier mm = Matrix.getMatrixMultiplier(name,
+					new Configuration());
+			Content c = new Content(block);
+			c.fill(1);
+			mm.doMultiplyAdd(block, a, b, c, 2, 3);
+			for (int i = 0; i < 40 * 40; i++)
+				assertEquals(name + " element " + i, 2
+						* expected.getDoubleBuffer().get(i) + 3, c.getDoubleBuffer()
+						.get(i), 1e-12);
+		}
+	}
+
+	public void testMixedTypes() {
+		Block doubleBlock = new Block(new Matrix("double", 8, 8, 8, 8,
+				ElementType.DOUBLE), 0, 0);
+		Block floatBlock = new Block(new Matrix("float", 8, 8, 8, 8), 0, 0);
+		try {
+			new TiledJavaMatrixMultiplier().doMultiplyAdd(doubleBlock,
+					new Content(doubleBlock), new Content(floatBlock), new Content(
+							doubleBlock), 1, 0);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			new Content(floatBlock).getDoubleBuffer();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	/**
+	 * Uses the local file system as the remote one. Double blocks ignore the
+	 * configured precision and sparse threshold.
+	 */
+	public void testRemote() {
+		Configuration conf = new Configuration();
+		conf.set(BlockPrecision.PRECISION, "bf16");
+		conf.setFloat(SparseBlock.THRESHOLD, 1.1f);
+		conf.set(BlockCodec.CODEC, "fast");
+		Matrix matrix = new Matrix("double_remote", 16, 16, 16, 16,
+				ElementType.DOUBLE).randomizeRemote(5, conf);
+		assertEquals(ElementType.DOUBLE, Matrix.readRemote("double_remote", conf)
+				.getElementType());
+
+		Block block = new Block(matrix, 0, 0);
+		Content expected = new Content(block);
+		expected.randomize(5);
+		Content actual = Content.readRemote(block, conf);
+		assertFalse(actual.isSparse());
+		for (int i = 0; i < 16 * 16; i++)
+			assertEquals(expected.getDoubleBuffer().get(i), actual
+					.getDoubleBuffer().get(i));
+		actual.release();
+	}
+
+	/**
+	 * Version 2 blocks marked doubles with precision 3.
+	 */
+	public void testVersion2() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(Content.MAGIC);
+		out.writeByte(2);
+		out.writeByte(BlockCodec.NONE.getId());
+		out.writeByte(0);
+		out.writeByte(3);
+		out.writeInt(1);
+		out.writeInt(2);
+		out.writeDouble(0.1);
+		out.writeDouble(-2.5);
+
+		Content content = new Content(new Block(new Matrix("double_v2", 1, 2, 1,
+				2, ElementType.DOUBLE), 0, 0));
+		content.readFields(new DataInputStream(new ByteArrayInputStream(bytes
+				.toByteArray())));
+		assertTrue(content.isDouble());
+		assertEquals(0.1, content.getDoubleBuffer().get(0));
+		assertEquals(-2.5, content.getDoubleBuffer().get(1));
+	}
+}
@@ -0,0 +1,79 @@
+package mrcl.lib;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Generates remote matrices in parts and on several threads. Uses the local
+ * file system as the remote one.
+ */
+public class TestGenerate extends TestCase {
+
+	public void testThreads() {
+		Configuration conf = new Configuration();
+		conf.setInt(Matrix.GENERATE_THREADS, 4);
+		Matrix matrix = new Matrix("generate_threads", 50, 70, 16, 8)
+				.randomizeRemote(5, conf);
+		FloatBuffer expected = new Matrix("generate_local", 50, 70, 16, 8)
+				.randomizeLocal(5).getFloatBufferLocal();
+		assertTrue(Arrays.equals(expected.array(), Matrix.readRemote(
+				"generate_threads", conf).getFloatBufferRemote(conf).array()));
+		assertTrue(Arrays.equals(expected.array(), matrix.getFloatBufferRemote(
+				conf).array()));
+	}
+
+	/**
+	 * Blocks of small, non-square shapes still get values of their own,
+	 * e.g. (0, 8) and (1, 0) of 8 x 4 blocks, whose row offset plus block
+	 * column is the same.
+	 */
+	public void testDistinctBlocks() {
+		Matrix matrix = new Matrix("generate_distinct", 64, 64, 8, 4);
+		Set<Float> firsts = new HashSet<Float>();
+		for (int blockRow = 0; blockRow < matrix.getBlockRows(); blockRow++) {
+			for (int blockCol = 0; blockCol < matrix.getBlockCols(); blockCol++) {
+				Content content = new Content(new Block(matrix, blockRow,
+						blockCol));
+				content.randomize(1);
+				assertTrue(blockRow + "/" + blockCol, firsts.add(content
+						.getFloatBuffer().get(0)));
+			}
+		}
+		assertEquals(Content.mix(1, 3, 5), Content.mix(1, 3, 5));
+		assertFalse(Content.mix(1, 0, 8) == Content.mix(1, 1, 0));
+		assertFalse(Content.mix(1, 0, 0) == Content.mix(2, 0, 0));
+	}
+
+	/**
+	 * The tasks of a generation job write the same blocks as the driver.
+	 */
+	public void testParts() {
+		Configuration conf = new Configuration();
+		Matrix matrix = new Matrix("generate_parts", 70, 30, 8, 16);
+		matrix.writeRemote(conf);
+		List<GenerateArgs> tasks = GenerateArgs.split(matrix, 3, 4);
+		assertEquals(4, tasks.size());
+		int next = 0;
+		for (GenerateArgs args : tasks) {
+			args = new GenerateArgs(args.toString());
+			assertEquals(next, args.getRowFrom());
+			next = args.getRowTo();
+			Matrix.readRemote(args.getMatrix(), conf).randomizeRemote(
+					args.getSeed(), args.getRowFrom(), args.getRowTo(), conf);
+		}
+		assertEquals(matrix.getBlockRows(), next);
+
+		FloatBuffer expected = new Matrix("generate_whole", 70, 30, 8, 16)
+				.randomizeRemote(3, conf).getFloatBufferRemote(conf);
+		assertTrue(Arrays.equals(expected.array(), matrix.getFloatBufferRemote(
+				conf).array()));
+		assertEquals(9, GenerateArgs.split(matrix, 3, 100).size());
+	}
+}
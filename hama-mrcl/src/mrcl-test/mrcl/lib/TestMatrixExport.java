@@ -0,0 +1,125 @@
+package mrcl.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Exports matrices with ragged edge blocks in row-major order. Uses the
+ * local file system as the remote one.
+ */
+public class TestMatrixExport extends TestCase {
+
+	/**
+	 * Returns the values of a random matrix the way randomizeRemote writes
+	 * them, computed block by block.
+	 */
+	private static float[] expected(Matrix matrix, long seed) {
+		float[] values = new float[matrix.getRows() * matrix.getCols()];
+		for (int blockRow = 0; blockRow < matrix.getBlockRows(); blockRow++) {
+			for (int blockCol = 0; blockCol < matrix.getBlockCols(); blockCol++) {
+				Block block = new Block(matrix, blockRow, blockCol);
+				Content content = Content.acquire(block);
+				content.randomize(seed);
+				for (int row = 0; row < content.getRows(); row++)
+					for (int col = 0; col < content.getCols(); col++)
+						values[(block.getRowOffset() + row) * matrix.getCols()
+								+ block.getColOffset() + col] = content
+								.getFloatBuffer().get(row * content.getCols() + col);
+				content.release();
+			}
+		}
+		return values;
+	}
+
+	public void testBuffers() {
+		Configuration conf = new Configuration();
+		Matrix matrix = new Matrix("export_a", 50, 37, 16, 8).randomizeRemote(
+				6, conf);
+		float[] expected = expected(matrix, 6);
+
+		FloatBuffer floats = FloatBuffer.allocate(3 + expected.length);
+		floats.position(3);
+		matrix.exportRemote(floats, conf);
+		assertEquals(floats.capacity(), floats.position());
+		for (int i = 0; i < expected.length; i++)
+			assertEquals("element " + i, expected[i], floats.get(3 + i));
+
+		DoubleBuffer doubles = matrix.getDoubleBufferRemote(conf);
+		for (int i = 0; i < expected.length; i++)
+			assertEquals("element " + i, (double) expected[i], doubles.get(i));
+
+		try {
+			matrix.exportRemote(FloatBuffer.allocate(expected.length - 1), conf);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testStreams() throws IOException {
+		Configuration conf = new Configuration();
+		Matrix matrix = new Matrix("export_b", 41, 30, 8, 16).randomizeRemote(
+				2, conf);
+		float[] expected = expected(matrix, 2);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		matrix.exportRemote(bytes, conf);
+		FloatBuffer streamed = ByteBuffer.wrap(bytes.toByteArray())
+				.asFloatBuffer();
+		assertEquals(expected.length, streamed.remaining());
+		for (int i = 0; i < expected.length; i++)
+			assertEquals("element " + i, expected[i], streamed.get(i));
+
+		File file = File.createTempFile("export", ".bin");
+		file.deleteOnExit();
+		matrix.exportRemote(file, conf);
+		assertEquals(expected.length * 4, file.length());
+		byte[] data = Files.readAllBytes(file.toPath());
+		assertTrue(ByteBuffer.wrap(data).equals(
+				ByteBuffer.wrap(bytes.toByteArray())));
+	}
+
+	public void testDouble() throws IOException {
+		Configuration conf = new Configuration();
+		Matrix matrix = new Matrix("export_c", 20, 25, 8, 8, ElementType.DOUBLE);
+		Random random = new Random(1);
+		double[] expected = new double[20 * 25];
+		for (int blockRow = 0; blockRow < matrix.getBlockRows(); blockRow++) {
+			for (int blockCol = 0; blockCol < matrix.getBlockCols(); blockCol++) {
+				Block block = new Block(matrix, blockRow, blockCol);
+				Content content = Content.acquire(block);
+				for (int row = 0; row < content.getRows(); row++) {
+					for (int col = 0; col < content.getCols(); col++) {
+						double value = random.nextDouble();
+						content.getDoubleBuffer().put(row * content.getCols() + col,
+								value);
+						expected[(block.getRowOffset() + row) * 25
+								+ block.getColOffset() + col] = value;
+					}
+				}
+				content.writeRemote(conf);
+				content.release();
+			}
+		}
+		DoubleBuffer doubles = DoubleBuffer.allocate(expected.length);
+		matrix.exportRemote(doubles, conf);
+		for (int i = 0; i < expected.length; i++)
+			assertEquals("element " + i, expected[i], doubles.get(i));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		matrix.exportRemote(bytes, conf);
+		DoubleBuffer streamed = ByteBuffer.wrap(bytes.toByteArray())
+				.asDoubleBuffer();
+		for (int i = 0; i < expected.length; i++)
+			assertEquals("element " + i, expected[i], streamed.get(i));
+	}
+}
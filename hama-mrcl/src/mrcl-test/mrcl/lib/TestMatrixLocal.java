@@ -0,0 +1,170 @@
+package mrcl.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Multiplies local matrices with ragged edge blocks, with heap and with
+ * memory-mapped block files. Block files are created under the working
+ * directory.
+ */
+public class TestMatrixLocal extends TestCase {
+
+	@Override
+	protected void tearDown() {
+		Content.setLocalMapped(false);
+	}
+
+	public void testMultiplyLocal() {
+		checkMultiplyLocal(false);
+	}
+
+	public void testMultiplyLocalMapped() {
+		checkMultiplyLocal(true);
+	}
+
+	private void checkMultiplyLocal(boolean mapped) {
+		Content.setLocalMapped(mapped);
+		int n = 50;
+		Matrix a = new Matrix("local_a", n, n, 16, 16).randomizeLocal(2);
+		Matrix b = new Matrix("local_b", n, n, 16, 16).randomizeLocal(3);
+
+		FloatBuffer expected = FloatBuffer.allocate(n * n);
+		JavaMatrixMultiplier.sgemmJava(n, 1, b.getFloatBufferLocal(), a
+				.getFloatBufferLocal(), 0, expected);
+
+		Matrix c = Matrix.multiplyLocal("local_c", a, b);
+		FloatBuffer actual = c.getFloatBufferLocal();
+		assertEquals(n * n, actual.limit());
+		for (int i = 0; i < n * n; i++)
+			assertEquals("element " + i, expected.get(i), actual.get(i), 1e-3f);
+	}
+
+	/**
+	 * Edge blocks are stored at their inner size behind the header.
+	 */
+	public void testRaggedBlockFiles() {
+		Matrix a = new Matrix("local_ragged", 50, 40, 16, 16).fillLocal(1);
+		assertEquals(4, a.getBlockRows());
+		assertEquals(3, a.getBlockCols());
+		assertEquals(Content.HEADER_SIZE + 16 * 16 * 4, new File(new Block(a, 0,
+				0).getBlockPath()).length());
+		assertEquals(Content.HEADER_SIZE + 2 * 8 * 4, new File(new Block(a, 3,
+				2).getBlockPath()).length());
+		assertFalse(new File(new Block(a, 4, 0).getBlockPath()).exists());
+	}
+
+	/**
+	 * Result blocks are 16 x 24, the sum of 16 x 8 times 8 x 24 blocks.
+	 */
+	public void testRectangularBlocks() {
+		int n = 50;
+		Matrix a = new Matrix("local_tall", n, n, 16, 8).randomizeLocal(2);
+		Matrix b = new Matrix("local_wide", n, n, 8, 24).randomizeLocal(3);
+
+		FloatBuffer expected = FloatBuffer.allocate(n * n);
+		JavaMatrixMultiplier.sgemmJava(n, 1, b.getFloatBufferLocal(), a
+				.getFloatBufferLocal(), 0, expected);
+
+		Matrix c = Matrix.multiplyLocal("local_rect", a, b);
+		assertEquals(16, c.getBlockHeight());
+		assertEquals(24, c.getBlockWidth());
+		assertEquals(4, c.getBlockRows());
+		assertEquals(3, c.getBlockCols());
+		FloatBuffer actual = c.getFloatBufferLocal();
+		for (int i = 0; i < n * n; i++)
+			assertEquals("element " + i, expected.get(i), actual.get(i), 1e-3f);
+
+		try {
+			Matrix.multiplyLocal("local_rect", b, a);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	/**
+	 * A tall 70 x 30 matrix times a wide 30 x 90 one, with a ragged inner
+	 * block.
+	 */
+	public void testRectangularMatrices() {
+		int m = 70, k = 30, n = 90;
+		Matrix a = new Matrix("local_mk", m, k, 16, 8).randomizeLocal(2);
+		Matrix b = new Matrix("local_kn", k, n, 8, 32).randomizeLocal(3);
+		FloatBuffer aData = a.getFloatBufferLocal();
+		FloatBuffer bData = b.getFloatBufferLocal();
+
+		Matrix c = Matrix.multiplyLocal("local_mn", a, b);
+		assertEquals(m, c.getRows());
+		assertEquals(n, c.getCols());
+		FloatBuffer actual = c.getFloatBufferLocal();
+		for (int i = 0; i < m; i++) {
+			for (int j = 0; j < n; j++) {
+				float expected = 0;
+				for (int p = 0; p < k; p++)
+					expected += aData.get(i * k + p) * bData.get(p * n + j);
+				assertEquals("element " + i + ", " + j, expected, actual.get(i * n
+						+ j), 1e-3f);
+			}
+		}
+
+		try {
+			Matrix.multiplyLocal("local_mn", a, a);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testDescriptor() throws IOException {
+		Matrix matrix = new Matrix("desc", 100, 70, 32, 8, ElementType.DOUBLE);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		matrix.write(new DataOutputStream(bytes));
+		Matrix read = Matrix.read(new DataInputStream(new ByteArrayInputStream(
+				bytes.toByteArray())));
+		assertEquals(32, read.getBlockHeight());
+		assertEquals(8, read.getBlockWidth());
+		assertEquals(4, read.getBlockRows());
+		assertEquals(9, read.getBlockCols());
+		assertEquals(ElementType.DOUBLE, read.getElementType());
+	}
+
+	/**
+	 * Descriptors from before the version byte are read with defaults for
+	 * the fields their layout did not have yet.
+	 */
+	public void testUnversionedDescriptors() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF("desc_old");
+		out.writeInt(3000);
+		out.writeInt(2000);
+		Matrix read = Matrix.read(new DataInputStream(new ByteArrayInputStream(
+				bytes.toByteArray())));
+		assertEquals("desc_old", read.getName());
+		assertEquals(3000, read.getRows());
+		assertEquals(2000, read.getCols());
+		assertEquals(ElementType.FLOAT, read.getElementType());
+		assertEquals(Block.DEFAULT_BLOCK_SIZE, read.getBlockHeight());
+		assertEquals(Block.DEFAULT_BLOCK_SIZE, read.getBlockWidth());
+		assertFalse(read.isPacked());
+
+		out.writeUTF(ElementType.DOUBLE.name());
+		out.writeInt(32);
+		out.writeInt(8);
+		out.writeUTF("");
+		out.writeUTF("p1");
+		read = Matrix.read(new DataInputStream(new ByteArrayInputStream(bytes
+				.toByteArray())));
+		assertEquals(ElementType.DOUBLE, read.getElementType());
+		assertEquals(32, read.getBlockHeight());
+		assertEquals(8, read.getBlockWidth());
+		assertNull(read.getSource());
+		assertEquals("p1", read.getPackedId());
+	}
+}
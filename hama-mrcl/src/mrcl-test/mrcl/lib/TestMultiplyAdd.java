@@ -0,0 +1,84 @@
+package mrcl.lib;
+
+import java.nio.FloatBuffer;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Checks c = alpha * a * b + beta * c in place for every CPU backend.
+ */
+public class TestMultiplyAdd extends TestCase {
+	private static final String[] MULTIPLIERS = { "Java", "TiledJava",
+			"ParallelJava", "VectorApi", "Strassen" };
+
+	public void testDoMultiplyAdd() {
+		int n = 66;
+		Matrix matrix = new Matrix("multiplyAdd", n, n, n, n);
+		Block block = new Block(matrix, 0, 0);
+		Content a = new Content(block);
+		Content b = new Content(block);
+		a.randomize(12);
+		b.randomize(13);
+
+		Configuration conf = new Configuration();
+		conf.setInt(StrassenMatrixMultiplier.CUTOFF, 16);
+
+		FloatBuffer product = new JavaMatrixMultiplier().doMultiplication(
+				block, a, b).getFloatBuffer();
+		for (String name : MULTIPLIERS) {
+			Content c = new Content(block);
+			c.fill(3);
+			Matrix.getMatrixMultiplier(name, conf).doMultiplyAdd(block, a, b, c,
+					2, 0.5f);
+			FloatBuffer actual = c.getFloatBuffer();
+			for (int i = 0; i < n * n; i++) {
+				float expected = 2 * product.get(i) + 1.5f;
+				assertEquals(name + " element " + i, expected, actual.get(i),
+						1e-5f * n * expected);
+			}
+		}
+	}
+
+	/**
+	 * Multiplies edge blocks of a 70 x 70 matrix with 32 x 32 blocks, which
+	 * are 6 x 32, 32 x 6 and 6 x 6 floats.
+	 */
+	public void testRaggedBlocks() {
+		Matrix matrix = new Matrix("ragged", 70, 70, 32, 32);
+		checkRagged(matrix, new Block(matrix, 2, 0), new Block(matrix, 0, 2),
+				new Block(matrix, 2, 2));
+		checkRagged(matrix, new Block(matrix, 0, 2), new Block(matrix, 2, 0),
+				new Block(matrix, 0, 0));
+	}
+
+	private void checkRagged(Matrix matrix, Block bBlock, Block aBlock,
+			Block cBlock) {
+		Content a = new Content(aBlock);
+		Content b = new Content(bBlock);
+		a.randomize(5);
+		b.randomize(6);
+		int m = b.getRows(), n = a.getCols(), k = a.getRows();
+		assertEquals(m * n * 4, new Content(cBlock).getByteBuffer().capacity());
+
+		Configuration conf = new Configuration();
+		conf.setInt(StrassenMatrixMultiplier.CUTOFF, 4);
+		for (String name : MULTIPLIERS) {
+			Content c = new Content(cBlock);
+			c.fill(1);
+			Matrix.getMatrixMultiplier(name, conf).doMultiplyAdd(cBlock, a, b, c,
+					1, 1);
+			for (int i = 0; i < m; i++) {
+				for (int j = 0; j < n; j++) {
+					float expected = 1;
+					for (int p = 0; p < k; p++)
+						expected += b.getFloatBuffer().get(i * k + p)
+								* a.getFloatBuffer().get(p * n + j);
+					assertEquals(name + " element " + i + "," + j, expected, c
+							.getFloatBuffer().get(i * n + j), 1e-4f * k);
+				}
+			}
+		}
+	}
+}
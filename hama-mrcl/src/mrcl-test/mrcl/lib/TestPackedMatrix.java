@@ -0,0 +1,189 @@
+package mrcl.lib;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Writes and reads matrices packed into part files. Uses the local file
+ * system as the remote one.
+ */
+public class TestPackedMatrix extends TestCase {
+
+	public void testRandomize() {
+		Configuration conf = new Configuration();
+		conf.setInt(Matrix.GENERATE_THREADS, 3);
+		new Matrix("packed_random", 50, 40, 16, 8).setPacked(true)
+				.randomizeRemote(4, conf);
+		Matrix matrix = Matrix.readRemote("packed_random", conf);
+		assertTrue(matrix.isPacked());
+		assertFalse(new File(new Block(matrix, 0, 0).getBlockPath()).exists());
+
+		FloatBuffer expected = new Matrix("packed_stored", 50, 40, 16, 8)
+				.randomizeRemote(4, conf).getFloatBufferRemote(conf);
+		assertTrue(Arrays.equals(expected.array(), matrix.getFloatBufferRemote(
+				conf).array()));
+
+		Content content = Content.readRemoteCached(new Block(matrix, 3, 4), conf);
+		assertEquals(2 * 8, content.getFloatBuffer().limit());
+		for (int i = 0; i < 2 * 8; i++)
+			assertEquals(expected.get(48 * 40 + i % 8 + 32 + i / 8 * 40),
+					content.getFloatBuffer().get(i));
+		try {
+			content.writeRemote(conf);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		content.release();
+	}
+
+	/**
+	 * A matrix written by several tasks has a part per task.
+	 */
+	public void testParts() {
+		Configuration conf = new Configuration();
+		Matrix matrix = new Matrix("packed_parts", 70, 30, 8, 16).setPacked(true);
+		matrix.writeRemote(conf);
+		for (GenerateArgs args : GenerateArgs.split(matrix, 3, 4))
+			Matrix.readRemote(args.getMatrix(), conf).randomizeRemote(
+					args.getSeed(), args.getRowFrom(), args.getRowTo(), conf);
+		assertEquals(4, new File(PackedMatrix.getPackedPath(matrix)).list(
+				new FilenameFilter() {
+					@Override
+					public boolean accept(File dir, String name) {
+						return !name.endsWith(".crc");
+					}
+				}).length);
+
+		FloatBuffer expected = new Matrix("packed_whole", 70, 30, 8, 16)
+				.randomizeLocal(3).getFloatBufferLocal();
+		assertTrue(Arrays.equals(expected.array(), Matrix.readRemote(
+				"packed_parts", conf).getFloatBufferRemote(conf).array()));
+	}
+
+	/**
+	 * A packed matrix that is generated again is read with its new values,
+	 * also through the block cache.
+	 */
+	public void testRegenerate() {
+		Configuration conf = new Configuration();
+		Matrix matrix = new Matrix("packed_regenerated", 20, 20, 8, 8)
+				.setPacked(true).randomizeRemote(1, conf);
+		String packedId = matrix.getPackedId();
+		Content.readRemoteCached(new Block(matrix, 1, 1), conf).release();
+
+		matrix.randomizeRemote(2, conf);
+		assertFalse(packedId.equals(matrix.getPackedId()));
+		Content expected = new Content(new Block(matrix, 1, 1));
+		expected.randomize(2);
+		Content actual = Content.readRemoteCached(new Block(Matrix.readRemote(
+				"packed_regenerated", conf), 1, 1), conf);
+		for (int i = 0; i < 8 * 8; i++)
+			assertEquals("element " + i, expected.getFloatBuffer().get(i),
+					actual.getFloatBuffer().get(i));
+		actual.release();
+	}
+
+	public void testPack() throws IOException {
+		Configuration conf = new Configuration();
+		Matrix matrix = new Matrix("packed_converted", 40, 40, 16, 16,
+				ElementType.DOUBLE).randomizeRemote(9, conf);
+		DoubleBuffer expected = matrix.getDoubleBufferRemote(conf);
+		Matrix packed = PackedMatrix.pack(matrix, conf);
+		assertFalse(new File(matrix.getMatrixPath() + "/blocks").exists());
+		assertEquals(packed.getPackedId(), Matrix.readRemote("packed_converted",
+				conf).getPackedId());
+		assertTrue(Arrays.equals(expected.array(), Matrix.readRemote(
+				"packed_converted", conf).getDoubleBufferRemote(conf).array()));
+
+		// Rewriting the matrix unpacked deletes the parts.
+		matrix.randomizeRemote(9, conf);
+		assertFalse(new File(matrix.getMatrixPath() + "/packed").exists());
+		assertTrue(Arrays.equals(expected.array(), Matrix.readRemote(
+				"packed_converted", conf).getDoubleBufferRemote(conf).array()));
+	}
+
+	public void testMissingBlock() throws IOException {
+		Configuration conf = new Configuration();
+		Matrix matrix = new Matrix("packed_missing", 20, 20, 8, 8).setPacked(true);
+		matrix.writeRemote(conf);
+		PackedMatrix.Writer writer = PackedMatrix.create(matrix, "part", conf);
+		Content content = Content.acquire(new Block(matrix, 0, 0));
+		content.fill(1);
+		writer.put(new Block(matrix, 0, 0), content);
+		content.release();
+		writer.close();
+		try {
+			Content.readRemote(new Block(matrix, 1, 0), conf);
+			fail();
+		} catch (RuntimeException e) {
+		}
+	}
+
+	public void testMultiply() {
+		Configuration conf = new Configuration();
+		Matrix a = new Matrix("packed_a", 48, 32, 16, 8).randomizeRemote(1, conf);
+		Matrix b = new Matrix("packed_b", 32, 40, 8, 16).randomizeRemote(2, conf);
+		for (int round = 0; round < a.getBlockCols(); round++) {
+			conf.setBoolean(PackedMatrix.PACKED, false);
+			FloatBuffer expected = Matrix.multiplyRemote("packed_unpacked", a,
+					b, round, conf).getFloatBufferRemote(conf);
+			conf.setBoolean(PackedMatrix.PACKED, true);
+			Matrix inter = Matrix.multiplyRemote("packed_product", a, b, round,
+					conf);
+			assertTrue(inter.isPacked());
+			assertTrue(Arrays.equals(expected.array(), Matrix.readRemote(
+					inter.getName(), conf).getFloatBufferRemote(conf).array()));
+		}
+	}
+
+	/**
+	 * Reads more packed matrices than there are open indexes from several
+	 * threads, so indexes are dropped and opened again.
+	 */
+	public void testManyMatrices() throws Exception {
+		final Configuration conf = new Configuration();
+		final Matrix[] matrices = new Matrix[40];
+		for (int i = 0; i < matrices.length; i++)
+			matrices[i] = new Matrix("packed_many_" + i, 8, 8, 4, 4).setPacked(
+					true).randomizeRemote(i, conf);
+		final FloatBuffer[] expected = new FloatBuffer[matrices.length];
+		for (int i = 0; i < matrices.length; i++)
+			expected[i] = new Matrix("packed_many", 8, 8, 4, 4).randomizeLocal(i)
+					.getFloatBufferLocal();
+
+		final Throwable[] error = new Throwable[1];
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t * 7;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int n = 0; n < 3 * matrices.length; n++) {
+							int i = (offset + n) % matrices.length;
+							assertTrue(Arrays.equals(expected[i].array(),
+									matrices[i].getFloatBufferRemote(conf).array()));
+						}
+					} catch (Throwable e) {
+						synchronized (error) {
+							error[0] = e;
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		if (error[0] != null)
+			throw new AssertionError(error[0]);
+	}
+}
@@ -0,0 +1,32 @@
+package mrcl.lib;
+
+import java.nio.FloatBuffer;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+public class TestParallelJavaMatrixMultiplier extends TestCase {
+
+	public void testDoMultiplication() {
+		int n = 203;
+		Matrix matrix = new Matrix("parallel", n, n, n, n);
+		Block block = new Block(matrix, 0, 0);
+		Content a = new Content(block);
+		Content b = new Content(block);
+		a.randomize(4);
+		b.randomize(5);
+
+		Configuration conf = new Configuration();
+		conf.setInt(ParallelJavaMatrixMultiplier.THREADS, 3);
+		MatrixMultiplier mm = Matrix.getMatrixMultiplier("ParallelJava", conf);
+
+		FloatBuffer expected = new JavaMatrixMultiplier().doMultiplication(
+				block, a, b).getFloatBuffer();
+		FloatBuffer actual = mm.doMultiplication(block, a, b).getFloatBuffer();
+		for (int i = 0; i < n * n; i++) {
+			assertEquals("element " + i, expected.get(i), actual.get(i),
+					1e-5f * n * Math.max(1, Math.abs(expected.get(i))));
+		}
+	}
+}
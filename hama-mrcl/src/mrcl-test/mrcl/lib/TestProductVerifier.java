@@ -0,0 +1,76 @@
+package mrcl.lib;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Verifies products of remote matrices with ragged edge blocks and finds
+ * corrupted blocks. Uses the local file system as the remote one.
+ */
+public class TestProductVerifier extends TestCase {
+
+	private static Matrix multiply(String name, Matrix a, Matrix b,
+			final Configuration conf) {
+		Matrix c = new Matrix(name, a.getRows(), b.getCols(),
+				a.getBlockHeight(), b.getBlockWidth(), a.getElementType());
+		c.writeRemote(conf);
+		Matrix.multiplyTile(c, a, b, 0, c.getBlockRows(), 0, c.getBlockCols(),
+				0, a.getBlockCols(), new Matrix.BlockSink() {
+					@Override
+					public void put(Block block, Content content) {
+						content.writeRemote(conf);
+					}
+				}, conf);
+		return c;
+	}
+
+	private static void check(ElementType type, int threads) {
+		Configuration conf = new Configuration();
+		conf.setInt(ProductVerifier.THREADS, threads);
+		conf.setLong(ProductVerifier.SEED, 5);
+		String prefix = "verify_" + type.name().toLowerCase() + "_";
+		Matrix a = new Matrix(prefix + "a", 50, 36, 16, 8, type).randomizeRemote(
+				1, conf);
+		Matrix b = new Matrix(prefix + "b", 36, 45, 8, 16, type).randomizeRemote(
+				2, conf);
+		Matrix c = multiply(prefix + "c", a, b, conf);
+		assertTrue(ProductVerifier.verify(a, b, c, conf).isEmpty());
+
+		// A small change to one value of block (1, 2).
+		Content content = Content.readRemote(new Block(c, 1, 2), conf);
+		if (type == ElementType.DOUBLE)
+			content.getDoubleBuffer().put(5,
+					content.getDoubleBuffer().get(5) + 0.5);
+		else
+			content.getFloatBuffer().put(5, content.getFloatBuffer().get(5) + 0.5f);
+		content.writeRemote(conf);
+		content.release();
+		List<Block> mismatches = ProductVerifier.verify(a, b, c, conf);
+		assertEquals(1, mismatches.size());
+		assertEquals(1, mismatches.get(0).getBlockRow());
+		assertEquals(2, mismatches.get(0).getBlockCol());
+	}
+
+	public void testFloat() {
+		check(ElementType.FLOAT, 1);
+	}
+
+	public void testDoubleThreads() {
+		check(ElementType.DOUBLE, 3);
+	}
+
+	public void testShapes() {
+		Configuration conf = new Configuration();
+		Matrix a = new Matrix("verify_shape_a", 20, 30, 8, 8);
+		Matrix b = new Matrix("verify_shape_b", 20, 30, 8, 8);
+		try {
+			ProductVerifier.verify(a, b, new Matrix("verify_shape_c", 20, 30,
+					8, 8), conf);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package mrcl.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+public class TestSparseBlock extends TestCase {
+	private static final String[] MULTIPLIERS = { "Java", "TiledJava",
+			"ParallelJava", "VectorApi", "Strassen", "Sparse" };
+
+	private Block _block;
+
+	@Override
+	protected void setUp() {
+		_block = new Block(new Matrix("sparse", 40, 40, 40, 40), 0, 0);
+	}
+
+	/**
+	 * Returns a block where about density of the values are non-zero.
+	 */
+	private Content random(long seed, float density) {
+		Content content = new Content(_block);
+		Random r = new Random(seed);
+		for (int i = 0; i < 40 * 40; i++)
+			content.getFloatBuffer().put(i,
+					r.nextFloat() < density ? r.nextFloat() : 0);
+		return content;
+	}
+
+	private Content roundTrip(Content content, float threshold)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		content.write(new DataOutputStream(bytes), BlockCodec.NONE, threshold);
+		Content read = new Content(_block);
+		read.readFields(new DataInputStream(new ByteArrayInputStream(bytes
+				.toByteArray())));
+		return read;
+	}
+
+	public void testDensityThreshold() throws IOException {
+		Content sparse = random(1, 0.05f);
+		Content read = roundTrip(sparse, 0.1f);
+		assertTrue(read.isSparse());
+		assertTrue(read.getMemoryBytes() < Content.bytes(_block) / 4);
+		assertFalse(roundTrip(sparse, 0.01f).isSparse());
+		assertFalse(roundTrip(sparse, 0).isSparse());
+		assertFalse(roundTrip(random(2, 0.5f), 0.1f).isSparse());
+
+		for (int i = 0; i < 40 * 40; i++)
+			assertEquals(sparse.getFloatBuffer().get(i), read.getFloatBuffer()
+					.get(i));
+		assertFalse(read.isSparse());
+	}
+
+	public void testMultiplySparse() throws IOException {
+		Content a = random(3, 0.05f);
+		Content b = random(4, 0.05f);
+		Content dense = random(5, 1);
+		Content[][] operands = { { roundTrip(a, 0.1f), dense },
+				{ dense, roundTrip(b, 0.1f) },
+				{ roundTrip(a, 0.1f), roundTrip(b, 0.1f) } };
+		Content[][] expectedOperands = { { a, dense }, { dense, b }, { a, b } };
+
+		for (String name : MULTIPLIERS) {
+			MatrixMultiplier mm = Matrix.getMatrixMultiplier(name,
+					new Configuration());
+			for (int t = 0; t < operands.length; t++) {
+				Content expected = new JavaMatrixMultiplier().doMultiplication(
+						_block, expectedOperands[t][0], expectedOperands[t][1]);
+				Content c = new Content(_block);
+				c.fill(1);
+				mm.doMultiplyAdd(_block, operands[t][0], operands[t][1], c, 2, 3);
+				for (int i = 0; i < 40 * 40; i++)
+					assertEquals(name + " case " + t + " element " + i, 2
+							* expected.getFloatBuffer().get(i) + 3, c
+							.getFloatBuffer().get(i), 1e-4f);
+			}
+			assertTrue(operands[2][0].isSparse());
+			assertTrue(operands[2][1].isSparse());
+		}
+	}
+
+	public void testAccumulateSparse() throws IOException {
+		Content a = random(6, 0.05f);
+		Content sum = new Content(_block);
+		sum.fill(1);
+		sum.accumulate(roundTrip(a, 0.1f));
+		for (int i = 0; i < 40 * 40; i++)
+			assertEquals(a.getFloatBuffer().get(i) + 1, sum.getFloatBuffer()
+					.get(i));
+	}
+
+	/**
+	 * Uses the local file system as the remote one.
+	 */
+	public void testRemote() {
+		Configuration conf = new Configuration();
+		Matrix matrix = Matrix.createFillRemote("sparse_remote", 40, 40, 0, conf);
+		Block block = new Block(matrix, 0, 0);
+		Content read = Content.readRemote(block, conf);
+		assertTrue(read.isSparse());
+		assertEquals(0, read.getSparse().getNonZeros());
+		assertTrue(Content.readRemoteCached(block, conf).isSparse());
+
+		conf.setFloat(SparseBlock.THRESHOLD, 0);
+		matrix = Matrix.createFillRemote("sparse_remote", 40, 40, 0, conf);
+		assertFalse(Content.readRemote(block, conf).isSparse());
+	}
+}
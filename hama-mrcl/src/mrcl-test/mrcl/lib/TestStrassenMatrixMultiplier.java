@@ -0,0 +1,74 @@
+package mrcl.lib;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+public class TestStrassenMatrixMultiplier extends TestCase {
+	private static final Log LOG = LogFactory
+			.getLog(TestStrassenMatrixMultiplier.class);
+
+	/**
+	 * 256 recurses three levels down to the cutoff; 200 stops early at an odd
+	 * size.
+	 */
+	public void testSgemmStrassenError() {
+		checkError(256, 32);
+		checkError(200, 16);
+		checkError(17, 16);
+	}
+
+	public void testDoMultiplication() {
+		int n = 96;
+		Matrix matrix = new Matrix("strassen", n, n, n, n);
+		Block block = new Block(matrix, 0, 0);
+		Content a = new Content(block);
+		Content b = new Content(block);
+		a.randomize(10);
+		b.randomize(11);
+
+		FloatBuffer expected = new JavaMatrixMultiplier().doMultiplication(
+				block, a, b).getFloatBuffer();
+		FloatBuffer actual = multiplier(24).doMultiplication(block, a, b)
+				.getFloatBuffer();
+		for (int i = 0; i < n * n; i++)
+			assertEquals(expected.get(i), actual.get(i), 1e-3f * n);
+	}
+
+	private void checkError(int n, int cutoff) {
+		Random r = new Random(n);
+		float[] a = new float[n * n];
+		float[] b = new float[n * n];
+		for (int i = 0; i < n * n; i++) {
+			a[i] = r.nextFloat();
+			b[i] = r.nextFloat();
+		}
+		FloatBuffer expected = FloatBuffer.allocate(n * n);
+		JavaMatrixMultiplier.sgemmJava(n, 1, FloatBuffer.wrap(a), FloatBuffer
+				.wrap(b), 0, expected);
+		float[] actual = new float[n * n];
+		multiplier(cutoff).sgemmStrassen(n, a, b, actual);
+
+		double maxAbs = 0, maxRel = 0;
+		for (int i = 0; i < n * n; i++) {
+			double diff = Math.abs(expected.get(i) - actual[i]);
+			maxAbs = Math.max(maxAbs, diff);
+			maxRel = Math.max(maxRel, diff / Math.abs(expected.get(i)));
+		}
+		LOG.info(String.format("Strassen n=%d cutoff=%d: max abs error %g,"
+				+ " max rel error %g", n, cutoff, maxAbs, maxRel));
+		assertTrue("relative error " + maxRel, maxRel < 1e-4);
+	}
+
+	private static StrassenMatrixMultiplier multiplier(int cutoff) {
+		Configuration conf = new Configuration();
+		conf.setInt(StrassenMatrixMultiplier.CUTOFF, cutoff);
+		return (StrassenMatrixMultiplier) Matrix.getMatrixMultiplier("Strassen",
+				conf);
+	}
+}
@@ -0,0 +1,123 @@
+package mrcl.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Counts the reads, writes, products and additions of remote matrices and
+ * traces them. Uses the local file system as the remote one.
+ */
+public class TestTaskMetrics extends TestCase {
+
+	private static long[] since(long[] before) {
+		long[] now = TaskMetrics.get();
+		for (int i = 0; i < now.length; i++)
+			now[i] -= before[i];
+		return now;
+	}
+
+	public void testMultiply() {
+		Configuration conf = new Configuration();
+		conf.setInt(BlockPipeline.PREFETCH, 0);
+		conf.setInt(BlockPipeline.WRITE_BEHIND, 0);
+		Matrix a = new Matrix("metrics_a", 40, 24, 16, 8).randomizeRemote(1, conf);
+		Matrix b = new Matrix("metrics_b", 24, 30, 8, 16).randomizeRemote(2, conf);
+
+		long[] before = TaskMetrics.get();
+		Matrix.multiplyRemote("metrics", a, b, 1, conf);
+		long[] delta = since(before);
+		// 3 x 2 result blocks from 3 blocks of a and 2 of b.
+		assertEquals(6, delta[TaskMetrics.GEMM_BLOCKS]);
+		assertEquals(2L * 40 * 8 * 30, delta[TaskMetrics.GEMM_FLOPS]);
+		assertEquals(6, delta[TaskMetrics.WRITE_BLOCKS]);
+		assertTrue(delta[TaskMetrics.READ_BLOCKS] >= 5);
+		assertTrue(delta[TaskMetrics.READ_BYTES] > 4 * (40 * 8 + 8 * 30));
+		assertTrue(delta[TaskMetrics.WRITE_BYTES] > 4 * 40 * 30);
+		assertEquals(0, delta[TaskMetrics.ADD_BLOCKS]);
+
+		before = TaskMetrics.get();
+		Content sum = Content.readRemote(new Block(a, 0, 0), conf);
+		Content other = Content.readRemote(new Block(a, 0, 0), conf);
+		sum.accumulate(other);
+		Content.add(new Block(a, 0, 0), sum, other).release();
+		sum.release();
+		other.release();
+		delta = since(before);
+		assertEquals(2, delta[TaskMetrics.READ_BLOCKS]);
+		assertEquals(2, delta[TaskMetrics.ADD_BLOCKS]);
+	}
+
+	/**
+	 * Attached metrics count the work of their thread and of the pipeline
+	 * and round threads it starts, but not that of other threads.
+	 */
+	public void testAttach() throws Exception {
+		final Configuration conf = new Configuration();
+		conf.setInt(Matrix.ROUND_THREADS, 3);
+		final Matrix a = new Matrix("attach_a", 40, 24, 16, 8).randomizeRemote(1,
+				conf);
+		Matrix b = new Matrix("attach_b", 24, 30, 8, 16).randomizeRemote(2, conf);
+
+		TaskMetrics other = new TaskMetrics();
+		final TaskMetrics metrics = new TaskMetrics();
+		assertNull(TaskMetrics.attach(other));
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				TaskMetrics.attach(metrics);
+				Content sum = Content.readRemote(new Block(a, 0, 0), conf);
+				sum.accumulate(sum);
+				sum.release();
+			}
+		};
+		thread.start();
+		Matrix.multiplyRemote("attach", a, b, 1, conf);
+		thread.join();
+		assertSame(other, TaskMetrics.attach(null));
+
+		long[] values = other.getValues();
+		assertEquals(6, values[TaskMetrics.GEMM_BLOCKS]);
+		assertEquals(2L * 40 * 8 * 30, values[TaskMetrics.GEMM_FLOPS]);
+		assertEquals(6, values[TaskMetrics.WRITE_BLOCKS]);
+		assertTrue(values[TaskMetrics.READ_BLOCKS] >= 5);
+		assertEquals(0, values[TaskMetrics.ADD_BLOCKS]);
+		values = metrics.getValues();
+		assertEquals(1, values[TaskMetrics.READ_BLOCKS]);
+		assertEquals(1, values[TaskMetrics.ADD_BLOCKS]);
+		assertEquals(0, values[TaskMetrics.GEMM_BLOCKS]);
+	}
+
+	public void testTrace() throws IOException {
+		Configuration conf = new Configuration();
+		assertNull(TaskTrace.get(conf));
+		File dir = new File("metrics_trace");
+		conf.set(TaskTrace.DIR, dir.getPath());
+		conf.set("mapred.task.id", "attempt_test_m_000001_0");
+		TaskTrace trace = TaskTrace.get(conf);
+		assertSame(trace, TaskTrace.get(conf));
+
+		long[] metrics = new long[TaskMetrics.NAMES.length];
+		metrics[TaskMetrics.GEMM_FLOPS] = 3000;
+		metrics[TaskMetrics.GEMM_NANOS] = 1000;
+		trace.add("multiply", 5000, metrics);
+		trace.add("multiply", 5000, metrics);
+		trace.add("combine", 10, new long[TaskMetrics.NAMES.length]);
+		trace.write();
+		String json = new String(Files.readAllBytes(new File(dir,
+				"attempt_test_m_000001_0.json").toPath()), "UTF-8");
+		assertEquals(json, trace.toJson());
+		assertTrue(json, json.startsWith("{\"task\":\"attempt_test_m_000001_0\","
+				+ "\"phases\":[{\"phase\":\"multiply\",\"calls\":2,\"nanos\":10000,"));
+		assertTrue(json, json.contains("\"gemm.flops\":6000,\"gemm.nanos\":2000,"));
+		assertTrue(json, json.contains("\"gflops\":3.0}"));
+		assertTrue(json, json.contains("{\"phase\":\"combine\",\"calls\":1,"));
+
+		conf.set("mapred.task.id", "attempt_test_m_000002_0");
+		assertNotSame(trace, TaskTrace.get(conf));
+	}
+}
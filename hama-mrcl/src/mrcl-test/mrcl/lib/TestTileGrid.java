@@ -0,0 +1,100 @@
+package mrcl.lib;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Chooses and splits tile grids and multiplies by tiles. Uses the local file
+ * system as the remote one.
+ */
+public class TestTileGrid extends TestCase {
+
+	public void testChoose() {
+		Matrix result = new Matrix("grid", 1000, 1000, 100, 100);
+		TileGrid grid = TileGrid.choose(result, 10, 16, 1L << 30);
+		assertEquals(4, grid.getRowTiles());
+		assertEquals(4, grid.getColTiles());
+		assertEquals(1, grid.getSlabs());
+
+		// More tasks than result blocks split the rounds.
+		grid = TileGrid.choose(result, 10, 400, 1L << 30);
+		assertEquals(100, grid.getRowTiles() * grid.getColTiles());
+		assertEquals(4, grid.getSlabs());
+
+		// A row of 40000-byte blocks in 100000 bytes is at most 2 blocks wide.
+		grid = TileGrid.choose(result, 10, 1, 100000);
+		assertEquals(1, grid.getRowTiles());
+		assertEquals(5, grid.getColTiles());
+	}
+
+	public void testParse() {
+		TileGrid grid = TileGrid.parse("3x2x4");
+		assertEquals("3x2x4", grid.toString());
+		Configuration conf = new Configuration();
+		conf.set(TileGrid.GRID, "3x2x4");
+		Matrix result = new Matrix("grid", 10, 10, 5, 5);
+		assertEquals("2x2x3", TileGrid.get(conf, result, 3, 1).fit(result, 3)
+				.toString());
+		try {
+			TileGrid.parse("3x0x1");
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testSplit() {
+		Matrix a = new Matrix("split_a", 30, 70, 10, 10);
+		Matrix b = new Matrix("split_b", 70, 50, 10, 10);
+		Matrix result = new Matrix("split_c", 30, 50, 10, 10);
+		List<TileArgs> tasks = new TileGrid(2, 3, 3).split(a, b, result);
+		assertEquals(18, tasks.size());
+
+		int[][][] counts = new int[3][5][7];
+		for (TileArgs args : tasks) {
+			assertEquals(args.toString(), new TileArgs(args.toString()).toString());
+			for (int row = args.getRowFrom(); row < args.getRowTo(); row++)
+				for (int col = args.getColFrom(); col < args.getColTo(); col++)
+					for (int round = args.getRoundFrom(); round < args.getRoundTo(); round++)
+						counts[row][col][round]++;
+		}
+		for (int[][] rows : counts)
+			for (int[] cols : rows)
+				for (int count : cols)
+					assertEquals(1, count);
+	}
+
+	public void testMultiplyTile() throws IOException {
+		final Configuration conf = new Configuration();
+		int m = 40, k = 56, n = 24;
+		Matrix a = new Matrix("tile_a", m, k, 16, 16).randomizeRemote(2, conf);
+		Matrix b = new Matrix("tile_b", k, n, 16, 16).randomizeRemote(3, conf);
+		Matrix result = new Matrix("tile_c", m, n, 16, 16).fillRemote(0, conf);
+
+		for (TileArgs args : new TileGrid(2, 2, 2).split(a, b, result)) {
+			Matrix.multiplyTile(result, a, b, args.getRowFrom(), args.getRowTo(),
+					args.getColFrom(), args.getColTo(), args.getRoundFrom(), args
+							.getRoundTo(), new Matrix.BlockSink() {
+						@Override
+						public void put(Block block, Content content) {
+							Content sum = Content.readRemote(block, conf);
+							sum.accumulate(content);
+							sum.writeRemote(conf);
+							sum.release();
+						}
+					}, conf);
+		}
+
+		FloatBuffer expected = Matrix.multiplyLocal("tile_expected",
+				new Matrix("tile_la", m, k, 16, 16).randomizeLocal(2),
+				new Matrix("tile_lb", k, n, 16, 16).randomizeLocal(3))
+				.getFloatBufferLocal();
+		FloatBuffer actual = result.getFloatBufferRemote(conf);
+		for (int i = 0; i < m * n; i++)
+			assertEquals("element " + i, expected.get(i), actual.get(i), 1e-4f);
+	}
+}
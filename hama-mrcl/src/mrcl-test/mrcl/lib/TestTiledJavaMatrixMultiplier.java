@@ -0,0 +1,67 @@
+package mrcl.lib;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TestTiledJavaMatrixMultiplier extends TestCase {
+
+	/**
+	 * Block sizes that are not multiples of the register tile and span more
+	 * than one cache block in every dimension.
+	 */
+	public void testDoMultiplication() {
+		checkDoMultiplication(1);
+		checkDoMultiplication(7);
+		checkDoMultiplication(70);
+		checkDoMultiplication(301);
+	}
+
+	public void testSgemmTiledWithAlphaBeta() {
+		int n = 45;
+		Random r = new Random(1);
+		float[] a = random(r, n * n);
+		float[] b = random(r, n * n);
+		float[] c = random(r, n * n);
+		FloatBuffer expected = FloatBuffer.wrap(c.clone());
+
+		JavaMatrixMultiplier.sgemmJava(n, 0.5f, FloatBuffer.wrap(a),
+				FloatBuffer.wrap(b), 2, expected);
+		TiledJavaMatrixMultiplier.sgemmTiled(n, 0.5f, a, b, 2, c);
+
+		assertClose(expected, FloatBuffer.wrap(c), n);
+	}
+
+	private void checkDoMultiplication(int n) {
+		Matrix matrix = new Matrix("tiled", n, n, n, n);
+		Content a = new Content(new Block(matrix, 0, 0));
+		Content b = new Content(new Block(matrix, 0, 0));
+		a.randomize(2);
+		b.randomize(3);
+
+		Block block = new Block(matrix, 0, 0);
+		Content expected = new JavaMatrixMultiplier().doMultiplication(block,
+				a, b);
+		Content actual = new TiledJavaMatrixMultiplier().doMultiplication(
+				block, a, b);
+
+		assertClose(expected.getFloatBuffer(), actual.getFloatBuffer(), n);
+	}
+
+	private static float[] random(Random r, int length) {
+		float[] data = new float[length];
+		for (int i = 0; i < length; i++)
+			data[i] = r.nextFloat();
+		return data;
+	}
+
+	private static void assertClose(FloatBuffer expected, FloatBuffer actual,
+			int n) {
+		for (int i = 0; i < n * n; i++) {
+			float e = expected.get(i);
+			assertEquals("element " + i, e, actual.get(i),
+					1e-5f * n * Math.max(1, Math.abs(e)));
+		}
+	}
+}
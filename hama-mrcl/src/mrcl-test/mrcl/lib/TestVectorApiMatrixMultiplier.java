@@ -0,0 +1,62 @@
+package mrcl.lib;
+
+import java.nio.FloatBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs against the Vector API backend when the module is present, and against
+ * the fallback otherwise.
+ */
+public class TestVectorApiMatrixMultiplier extends TestCase {
+
+	public void testDoMultiplication() {
+		MatrixMultiplier mm = Matrix.getMatrixMultiplier("VectorApi");
+		for (int n : new int[] { 1, 13, 70, 301 }) {
+			Matrix matrix = new Matrix("vector", n, n, n, n);
+			Block block = new Block(matrix, 0, 0);
+			Content a = new Content(block);
+			Content b = new Content(block);
+			a.randomize(6);
+			b.randomize(7);
+
+			FloatBuffer expected = new JavaMatrixMultiplier().doMultiplication(
+					block, a, b).getFloatBuffer();
+			FloatBuffer actual = mm.doMultiplication(block, a, b).getFloatBuffer();
+			for (int i = 0; i < n * n; i++) {
+				assertEquals("element " + i, expected.get(i), actual.get(i),
+						1e-5f * n * Math.max(1, Math.abs(expected.get(i))));
+			}
+		}
+	}
+
+	public void testContentKernels() {
+		int n = 37;
+		Matrix matrix = new Matrix("vector", n, n, n, n);
+		Block block = new Block(matrix, 0, 0);
+		Content a = new Content(block);
+		Content b = new Content(block);
+		a.randomize(8);
+		b.randomize(9);
+
+		FloatBuffer sum = Content.add(block, a, b).getFloatBuffer();
+		FloatBuffer difference = Content.reduce(matrix, a, b).getFloatBuffer();
+		for (int i = 0; i < n * n; i++) {
+			float x = a.getFloatBuffer().get(i);
+			float y = b.getFloatBuffer().get(i);
+			assertEquals(x + y, sum.get(i), 0);
+			assertEquals(x - y, difference.get(i), 0);
+		}
+	}
+
+	/**
+	 * Only optional backends fall back; unknown names are errors.
+	 */
+	public void testUnknownMultiplier() {
+		try {
+			Matrix.getMatrixMultiplier("VectorAPI");
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package mrcl.lib;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Reads and multiplies matrices whose blocks are generated on read. Uses the
+ * local file system as the remote one.
+ */
+public class TestVirtualMatrix extends TestCase {
+
+	public void testRandom() {
+		Configuration conf = new Configuration();
+		new Matrix("virtual_random", 50, 40, 16, 8).setSource(
+				BlockSource.random(7)).writeRemote(conf);
+		Matrix matrix = Matrix.readRemote("virtual_random", conf);
+		assertTrue(matrix.isVirtual());
+		assertEquals("random:7", matrix.getSource().toString());
+		assertFalse(new File(new Block(matrix, 0, 0).getBlockPath())
+				.exists());
+
+		FloatBuffer expected = new Matrix("virtual_stored", 50, 40, 16, 8)
+				.randomizeRemote(7, conf).getFloatBufferRemote(conf);
+		assertTrue(Arrays.equals(expected.array(), matrix.getFloatBufferRemote(
+				conf).array()));
+		assertTrue(Arrays.equals(expected.array(), matrix.getFloatBufferLocal()
+				.array()));
+	}
+
+	public void testIdentity() {
+		int n = 40;
+		Matrix identity = new Matrix("virtual_identity", n, n, 16, 8)
+				.setSource(BlockSource.identity());
+		Matrix b = new Matrix("virtual_b", n, 30, 8, 16).randomizeLocal(3);
+		FloatBuffer expected = b.getFloatBufferLocal();
+		FloatBuffer actual = Matrix.multiplyLocal("virtual_product", identity, b)
+				.getFloatBufferLocal();
+		for (int i = 0; i < n * 30; i++)
+			assertEquals("element " + i, expected.get(i), actual.get(i));
+	}
+
+	public void testFill() {
+		Configuration conf = new Configuration();
+		Matrix matrix = new Matrix("virtual_fill", 20, 20, 8, 8,
+				ElementType.DOUBLE).setSource(BlockSource.parse("fill:2.5"));
+		Content content = Content.readRemoteCached(new Block(matrix, 2, 1), conf);
+		assertEquals(4 * 8, content.getDoubleBuffer().limit());
+		for (int i = 0; i < 4 * 8; i++)
+			assertEquals(2.5, content.getDoubleBuffer().get(i));
+		try {
+			content.writeRemote(conf);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		content.release();
+
+		try {
+			BlockSource.parse("fill");
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
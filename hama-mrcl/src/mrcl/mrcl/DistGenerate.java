@@ -0,0 +1,154 @@
+package mrcl;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+import mrcl.lib.Block;
+import mrcl.lib.ContentPool;
+import mrcl.lib.ElementType;
+import mrcl.lib.GenerateArgs;
+import mrcl.lib.Matrix;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.lib.NLineInputFormat;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Writes random matrices with a map-only job, so that generating the inputs
+ * scales with the cluster instead of running in the driver. The descriptors
+ * are written by the driver, and every map task writes the blocks of a range
+ * of block rows. The blocks are the same as those of
+ * {@link Matrix#randomizeRemote(long, Configuration)}.
+ *
+ * Run on its own, it generates one matrix. Example: -Dmatrix.name=bb
+ * -Dmatrix.rows=100000 -Dmatrix.cols=100000 -Dblock.size=2048 -Dseed=1
+ */
+@SuppressWarnings("deprecation")
+public class DistGenerate extends Configured implements Tool
+{
+	/**
+	 * Where DistMult generates its inputs: "driver" writes them from the
+	 * driver on mrcl.generate.threads threads, "job" runs a DistGenerate
+	 * job and "virtual" writes only descriptors whose blocks are generated
+	 * on read, see {@link mrcl.lib.BlockSource}. Example: -Dmrcl.generate=job
+	 */
+	public static final String GENERATE = "mrcl.generate";
+
+	public static void main(String[] args) throws Exception
+	{
+		ToolRunner.run(new DistGenerate(), args);
+	}
+
+	@Override
+	public int run(String[] args) throws Exception
+	{
+		Configuration conf = getConf();
+		int size = conf.getInt("matrix.size", 1000);
+		int blockSize = conf.getInt("block.size", Block.DEFAULT_BLOCK_SIZE);
+		Matrix matrix = new Matrix(conf.get("matrix.name", "bb"), conf.getInt("matrix.rows", size), conf.getInt(
+		        "matrix.cols", size), conf.getInt("block.rows", blockSize), conf.getInt("block.cols", blockSize),
+		        ElementType.get(conf));
+		randomizeRemote(conf, new Matrix[] { matrix }, new long[] { conf.getLong("seed", 1) });
+		return 0;
+	}
+
+	/**
+	 * Writes the descriptors and random blocks of matrices, matrices[i] from
+	 * seeds[i], and returns when the job is done. The block rows are split
+	 * into about as many tasks as the cluster has map slots.
+	 */
+	public static void randomizeRemote(Configuration conf, Matrix[] matrices, long[] seeds) throws IOException
+	{
+		JobConf job = new JobConf(conf, DistGenerate.class);
+		int slots = new JobClient(job).getClusterStatus().getMaxMapTasks();
+		long blockRows = 0;
+		for (Matrix matrix : matrices)
+			blockRows += matrix.getBlockRows();
+
+		StringBuilder builder = new StringBuilder();
+		StringBuilder names = new StringBuilder();
+		for (int i = 0; i < matrices.length; i++) {
+			// A packed matrix that is generated again gets new parts.
+			if (matrices[i].isPacked())
+				matrices[i].setPacked(true);
+			matrices[i].writeRemote(conf);
+			// Each matrix gets its share of the slots.
+			int parts = (int) Math.max(1, slots * matrices[i].getBlockRows() / Math.max(1, blockRows));
+			for (GenerateArgs args : GenerateArgs.split(matrices[i], seeds[i], parts))
+				builder.append(args.toString()).append('\n');
+			names.append(i == 0 ? "" : "_").append(matrices[i].getName());
+		}
+
+		FileSystem fs = FileSystem.get(conf);
+		String jobName = String.format("/mrcl/jobs/generate/%s", names);
+		FSDataOutputStream dos = fs.create(new Path(jobName));
+		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(dos.getWrappedStream()));
+		bw.write(builder.toString());
+		bw.close();
+		dos.close();
+		fs.close();
+
+		job.setJobName("Generate-" + names);
+		job.setMapperClass(GenerateMap.class);
+		job.setNumReduceTasks(0);
+		job.setOutputKeyClass(NullWritable.class);
+		job.setOutputValueClass(NullWritable.class);
+		job.setOutputFormat(NullOutputFormat.class);
+		// One map task per line of the job file.
+		job.setInputFormat(NLineInputFormat.class);
+		job.setInt("mapred.line.input.format.linespermap", 1);
+		FileInputFormat.setInputPaths(job, new Path(jobName));
+		JobClient.runJob(job).waitForCompletion();
+	}
+
+	public static class GenerateMap implements Mapper<LongWritable, Text, NullWritable, NullWritable>
+	{
+		private Configuration conf;
+
+		@Override
+		public void map(LongWritable lineNo, Text line, OutputCollector<NullWritable, NullWritable> output,
+		        Reporter reporter) throws IOException
+		{
+			GenerateArgs args = new GenerateArgs(line.toString());
+			reporter.setStatus("generate " + args);
+			Matrix matrix = Matrix.readRemote(args.getMatrix(), conf);
+			if (matrix.isPacked()) {
+				// The task writes one part.
+				matrix.randomizeRemote(args.getSeed(), args.getRowFrom(), args.getRowTo(), conf);
+				return;
+			}
+			for (int blockRow = args.getRowFrom(); blockRow < args.getRowTo(); blockRow++) {
+				matrix.randomizeRemote(args.getSeed(), blockRow, blockRow + 1, conf);
+				reporter.progress();
+			}
+		}
+
+		@Override
+		public void configure(JobConf conf)
+		{
+			this.conf = conf;
+			ContentPool.get().configure(conf);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+		}
+	}
+}
@@ -3,13 +3,31 @@ package mrcl;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
-import java.nio.FloatBuffer;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import mrcl.lib.Block;
+import mrcl.lib.BlockCache;
+import mrcl.lib.BlockKey;
+import mrcl.lib.BlockPartitioner;
+import mrcl.lib.BlockPipeline;
+import mrcl.lib.BlockPrecision;
+import mrcl.lib.BlockSource;
+import mrcl.lib.Content;
+import mrcl.lib.ContentPool;
+import mrcl.lib.ElementType;
 import mrcl.lib.Matrix;
 import mrcl.lib.MatrixMultiplier;
 import mrcl.lib.MultArgs;
+import mrcl.lib.PackedMatrix;
+import mrcl.lib.ProductVerifier;
+import mrcl.lib.ShuffledBlock;
+import mrcl.lib.TaskMetrics;
+import mrcl.lib.TaskTrace;
+import mrcl.lib.TileArgs;
+import mrcl.lib.TileGrid;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
@@ -17,22 +35,43 @@ import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.lib.NLineInputFormat;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
-import org.apache.hadoop.mapred.TextInputFormat;
+import org.apache.hadoop.mapred.RunningJob;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
 @SuppressWarnings("deprecation")
 public class DistMult extends Configured implements Tool
 {
+	public static final String COUNTER_GROUP = "mrcl";
+	/**
+	 * Streams the partial products through the shuffle instead of writing
+	 * them to intermediate matrices. The shuffled blocks are written with
+	 * the block codec and precision of the job, see {@link ShuffledBlock}.
+	 * Example: -Dmrcl.shuffle=true
+	 */
+	public static final String SHUFFLE = "mrcl.shuffle";
+	public static final String RESULT = "mrcl.shuffle.result";
+	/**
+	 * How the multiplication is split into map tasks: "round" gives each task
+	 * one round of products of all result blocks, "grid" gives each task a
+	 * tile of result blocks and a range of rounds, see {@link TileGrid}.
+	 * Example: -Dmrcl.decomposition=grid
+	 */
+	public static final String DECOMPOSITION = "mrcl.decomposition";
+
 	public static void main(String[] args) throws Exception
 	{
 		ToolRunner.run(new DistMult(), args);
@@ -45,25 +84,98 @@ public class DistMult extends Configured implements Tool
 			Configuration conf = getConf();
 			JobConf job = new JobConf(conf, DistMult.class);
 
-			int n = job.getInt("matrix.size", 1000); // Example: -Dmatrix.size=100000
-			Block.BLOCK_SIZE = job.getInt("block.size", Block.DEFAULT_BLOCK_SIZE); // Example: -Dblock.size=2048
-
-			Matrix a = Matrix.createRandomRemote("bb", n, n, 1, conf);
-			a.writeRemote(conf);
-			Matrix b = Matrix.createRandomRemote("cc", n, n, 2, conf);
-			b.writeRemote(conf);
-			String jobName = makeJob(a, b, conf);
+			int size = job.getInt("matrix.size", 1000); // Example: -Dmatrix.size=100000
+			// Computes bb * cc where bb is matrix.rows x matrix.inner and cc is
+			// matrix.inner x matrix.cols, each defaulting to matrix.size.
+			// Example: -Dmatrix.rows=200000 -Dmatrix.inner=1000 -Dmatrix.cols=200000
+			int m = job.getInt("matrix.rows", size);
+			int k = job.getInt("matrix.inner", size);
+			int n = job.getInt("matrix.cols", size);
+			int blockSize = job.getInt("block.size", Block.DEFAULT_BLOCK_SIZE); // Example: -Dblock.size=2048
+			// Result blocks are block.rows x block.cols and sums of
+			// (block.rows x block.inner) * (block.inner x block.cols) products.
+			// Example: -Dblock.rows=4096 -Dblock.inner=512
+			int blockRows = job.getInt("block.rows", blockSize);
+			int blockCols = job.getInt("block.cols", blockSize);
+			int blockInner = job.getInt("block.inner", blockSize);
+
+			ElementType type = ElementType.get(conf); // Example: -Dmrcl.element.type=double
+			Matrix a = new Matrix("bb", m, k, blockRows, blockInner, type);
+			Matrix b = new Matrix("cc", k, n, blockInner, blockCols, type);
+			String generate = job.get(DistGenerate.GENERATE, "driver");
+			// Packed inputs and intermediate matrices have a part file per
+			// task instead of a file per block. Example: -Dmrcl.packed=true
+			if (job.getBoolean(PackedMatrix.PACKED, false) && !"virtual".equals(generate)) {
+				a.setPacked(true);
+				b.setPacked(true);
+			}
+			if ("virtual".equals(generate)) {
+				// The blocks are generated when they are read.
+				a.setSource(BlockSource.random(1)).writeRemote(conf);
+				b.setSource(BlockSource.random(2)).writeRemote(conf);
+			} else if ("job".equals(generate)) {
+				DistGenerate.randomizeRemote(conf, new Matrix[] { a, b }, new long[] { 1, 2 });
+			} else {
+				// Example: -Dmrcl.generate.threads=16
+				a.randomizeRemote(1, conf);
+				b.randomizeRemote(2, conf);
+			}
+			String jobName;
 
 			// Example: -Dmatrix.multiplier=JCublas
 			job.setJobName("MM-" + job.get("matrix.multiplier", MatrixMultiplier.DEFAULT_MULTIPLIER)); 
-			job.setMapperClass(MultMap.class);
-			job.setReducerClass(MultReduce.class);
-			job.setCombinerClass(MultCombine.class);
-			job.setInputFormat(TextInputFormat.class);
-			job.setMapOutputKeyClass(MultArgs.class);
-			job.setMapOutputValueClass(Matrix.class);
-			job.setOutputKeyClass(MultArgs.class);
-			job.setOutputValueClass(Matrix.class);
+			if ("grid".equals(job.get(DECOMPOSITION, "round"))) {
+				Matrix result = new Matrix("result", m, n, blockRows, blockCols, type);
+				result.writeRemote(conf);
+				job.set(RESULT, result.getName());
+				int slots = new JobClient(job).getClusterStatus().getMaxMapTasks();
+				TileGrid grid = TileGrid.get(conf, result, a.getBlockCols(), slots).fit(result, a.getBlockCols());
+				System.out.println("grid " + grid);
+				jobName = makeGridJob(a, b, result, grid, conf);
+				job.setMapperClass(GridMap.class);
+				if (grid.getSlabs() == 1) {
+					// Every task owns its result blocks and writes them itself.
+					job.setNumReduceTasks(0);
+				} else {
+					job.setInt(BlockPartitioner.BLOCK_COLS, result.getBlockCols());
+					job.setReducerClass(SumReduce.class);
+					job.setCombinerClass(SumCombine.class);
+					job.setPartitionerClass(BlockPartitioner.class);
+				}
+				job.setMapOutputKeyClass(BlockKey.class);
+				job.setMapOutputValueClass(ShuffledBlock.class);
+				job.setOutputKeyClass(NullWritable.class);
+				job.setOutputValueClass(NullWritable.class);
+				job.setOutputFormat(NullOutputFormat.class);
+			} else if (job.getBoolean(SHUFFLE, false)) {
+				jobName = makeJob(a, b, conf);
+				// Only the result blocks are written, by the reducers.
+				Matrix result = new Matrix("result", m, n, blockRows, blockCols, type);
+				result.writeRemote(conf);
+				job.set(RESULT, result.getName());
+				job.setInt(BlockPartitioner.BLOCK_COLS, result.getBlockCols());
+				job.setMapperClass(StreamMap.class);
+				job.setReducerClass(SumReduce.class);
+				job.setCombinerClass(SumCombine.class);
+				job.setPartitionerClass(BlockPartitioner.class);
+				job.setMapOutputKeyClass(BlockKey.class);
+				job.setMapOutputValueClass(ShuffledBlock.class);
+				job.setOutputKeyClass(NullWritable.class);
+				job.setOutputValueClass(NullWritable.class);
+				job.setOutputFormat(NullOutputFormat.class);
+			} else {
+				jobName = makeJob(a, b, conf);
+				job.setMapperClass(MultMap.class);
+				job.setReducerClass(MultReduce.class);
+				job.setCombinerClass(MultCombine.class);
+				job.setMapOutputKeyClass(MultArgs.class);
+				job.setMapOutputValueClass(Matrix.class);
+				job.setOutputKeyClass(MultArgs.class);
+				job.setOutputValueClass(Matrix.class);
+			}
+			// One map task per line of the job file.
+			job.setInputFormat(NLineInputFormat.class);
+			job.setInt("mapred.line.input.format.linespermap", 1);
 			FileInputFormat.setInputPaths(job, new Path(jobName));
 			FileSystem fs = FileSystem.get(conf);
 			Path outDir = new Path("some");
@@ -72,19 +184,31 @@ public class DistMult extends Configured implements Tool
 			fs.close();
 			FileOutputFormat.setOutputPath(job, outDir);
 
-			JobClient.runJob(job).waitForCompletion();
-
-			if (job.getBoolean("validate", false)) { // Example: -Dvalidate=true
-				FloatBuffer distResult = Matrix.readRemote("result", conf).getFloatBufferRemote(conf);
-
-				Matrix c = Matrix.createRandomLocal("c", n, n, 1);
-				Matrix d = Matrix.createRandomLocal("d", n, n, 2);
+			RunningJob running = JobClient.runJob(job);
+			running.waitForCompletion();
+			printMetrics(running.getCounters());
+
+			// Example: -Dvalidate=freivalds -Dmrcl.verify.threads=8
+			if ("freivalds".equals(job.get("validate"))) {
+				// Checks the result against the inputs without multiplying them.
+				List<Block> mismatches = ProductVerifier.verify(a, b, Matrix.readRemote("result", conf), conf);
+				for (Block block : mismatches)
+					System.out.printf("result block (%d, %d) differs\n", block.getBlockRow(), block.getBlockCol());
+				System.out.printf("%d result blocks differ\n", mismatches.size());
+			} else if (job.getBoolean("validate", false)) { // Example: -Dvalidate=true
+				DoubleBuffer distResult = Matrix.readRemote("result", conf).getDoubleBufferRemote(conf);
+
+				Matrix c = new Matrix("c", m, k, blockRows, blockInner, type).randomizeLocal(1);
+				Matrix d = new Matrix("d", k, n, blockInner, blockCols, type).randomizeLocal(2);
 				Matrix e = Matrix.multiplyLocal("e", c, d);
-				FloatBuffer localResult = e.getFloatBufferLocal();
+				DoubleBuffer localResult = e.getDoubleBufferLocal();
 
 				for (int i = 0; i < 100; i++) {
 					System.out.printf("%f, %f\n", distResult.get(i), localResult.get(i));
 				}
+				printErrors(type == ElementType.DOUBLE ? "double" : job.get(
+				        BlockPrecision.PRECISION, BlockPrecision.DEFAULT_PRECISION),
+				        localResult, distResult);
 			}
 
 		} catch (Exception e) {
@@ -93,6 +217,47 @@ public class DistMult extends Configured implements Tool
 		return 0;
 	}
 
+	/**
+	 * Prints the GFLOP/s of the block products and the read and write
+	 * bandwidth of the map tasks. They are rates over the time spent in
+	 * each kind of work, summed over all tasks, not over the job.
+	 */
+	static void printMetrics(Counters counters)
+	{
+		Counters.Group group = counters.getGroup(COUNTER_GROUP);
+		long[] metrics = new long[TaskMetrics.NAMES.length];
+		for (int i = 0; i < metrics.length; i++)
+			metrics[i] = group.getCounter("mrcl." + TaskMetrics.NAMES[i]);
+		System.out.printf("multiply: %.2f GFLOP/s, read %.1f MB/s, write %.1f MB/s\n",
+		        TaskMetrics.getGflops(metrics), rate(metrics[TaskMetrics.READ_BYTES], metrics[TaskMetrics.READ_NANOS]),
+		        rate(metrics[TaskMetrics.WRITE_BYTES], metrics[TaskMetrics.WRITE_NANOS]));
+	}
+
+	private static double rate(long bytes, long nanos)
+	{
+		return nanos == 0 ? 0 : bytes * 1000.0 / nanos;
+	}
+
+	/**
+	 * Prints the maximum absolute, maximum relative and root mean square
+	 * error of a result, e.g. to see what a reduced mrcl.block.precision
+	 * costs.
+	 */
+	static void printErrors(String label, DoubleBuffer expected, DoubleBuffer actual)
+	{
+		double maxAbs = 0, maxRel = 0, sumSquares = 0;
+		int size = expected.limit();
+		for (int i = 0; i < size; i++) {
+			double error = Math.abs(actual.get(i) - expected.get(i));
+			maxAbs = Math.max(maxAbs, error);
+			if (expected.get(i) != 0)
+				maxRel = Math.max(maxRel, error / Math.abs(expected.get(i)));
+			sumSquares += error * error;
+		}
+		System.out.printf("%s: max abs error %g, max rel error %g, rms error %g\n", label, maxAbs, maxRel,
+		        Math.sqrt(sumSquares / size));
+	}
+
 	public String makeJob(Matrix a, Matrix b, Configuration conf)
 	{
 		try {
@@ -114,6 +279,88 @@ public class DistMult extends Configured implements Tool
 		}
 	}
 
+	/**
+	 * Writes one {@link TileArgs} line per task of grid.
+	 */
+	public String makeGridJob(Matrix a, Matrix b, Matrix result, TileGrid grid, Configuration conf)
+	{
+		try {
+			FileSystem fs = FileSystem.get(conf);
+			String jobName = String.format("/mrcl/jobs/grid/%s/%s", a.getName(), b.getName());
+			FSDataOutputStream dos = fs.create(new Path(jobName));
+			StringBuilder builder = new StringBuilder();
+			for (TileArgs args : grid.split(a, b, result))
+				builder.append(args.toString()).append('\n');
+			BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(dos.getWrappedStream()));
+			bw.write(builder.toString());
+			bw.close();
+			dos.close();
+			fs.close();
+			return jobName;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Adds the milliseconds spent in each {@link BlockPipeline} stage since
+	 * nanos to the counters. Large read.wait or write.wait times mean that a
+	 * job is bound by I/O rather than by the multiplier.
+	 */
+	static void countStages(Reporter reporter, long[] nanos)
+	{
+		long[] now = BlockPipeline.getNanos();
+		for (int i = 0; i < now.length; i++)
+			reporter.incrCounter(COUNTER_GROUP, "mrcl.time." + BlockPipeline.STAGES[i] + ".ms",
+			        (now[i] - nanos[i]) / 1000000);
+	}
+
+	/**
+	 * Measures a phase of a task, e.g. "multiply" or "reduce". Its own
+	 * {@link TaskMetrics} are attached to the calling thread until it ends,
+	 * so a combiner that runs on the spill thread during a map does not count
+	 * the work of the map, or the other way round. When it ends, the metrics
+	 * go to the counters mrcl.PHASE.NAME, mrcl.NAME for "multiply", and to
+	 * the {@link TaskTrace} of the task.
+	 */
+	static class Phase
+	{
+		private final String name;
+		private final long start = System.nanoTime();
+		private final TaskMetrics metrics = new TaskMetrics();
+		private final TaskMetrics previous = TaskMetrics.attach(metrics);
+
+		Phase(String name)
+		{
+			this.name = name;
+		}
+
+		void end(Reporter reporter, Configuration conf)
+		{
+			TaskMetrics.attach(previous);
+			long nanos = System.nanoTime() - start;
+			long[] values = metrics.getValues();
+			String prefix = "multiply".equals(name) ? "mrcl." : "mrcl." + name + ".";
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != 0)
+					reporter.incrCounter(COUNTER_GROUP, prefix + TaskMetrics.NAMES[i], values[i]);
+			}
+			TaskTrace trace = TaskTrace.get(conf);
+			if (trace != null)
+				trace.add(name, nanos, values);
+		}
+	}
+
+	/**
+	 * Writes the trace of the task, if mrcl.trace.dir is set.
+	 */
+	static void writeTrace(Configuration conf) throws IOException
+	{
+		TaskTrace trace = TaskTrace.get(conf);
+		if (trace != null)
+			trace.write();
+	}
+
 	public static class MultMap implements Mapper<LongWritable, Text, MultArgs, Matrix>
 	{
 
@@ -130,9 +377,18 @@ public class DistMult extends Configured implements Tool
 			Matrix b = Matrix.readRemote(args.getB(), conf);
 
 			reporter.setStatus("multiply");
+			BlockCache cache = BlockCache.get();
+			long hits = cache.getHits();
+			long misses = cache.getMisses();
+			long[] nanos = BlockPipeline.getNanos();
+			Phase phase = new Phase("multiply");
 			Matrix inter = Matrix.multiplyRemote(a.getName() + "_" + b.getName(), a, b, args.getRound(), conf);
+			reporter.incrCounter(COUNTER_GROUP, "mrcl.cache.hits", cache.getHits() - hits);
+			reporter.incrCounter(COUNTER_GROUP, "mrcl.cache.misses", cache.getMisses() - misses);
+			countStages(reporter, nanos);
 			reporter.setStatus("write");
 			inter.writeRemote(conf);
+			phase.end(reporter, conf);
 
 			reporter.setStatus("collect");
 			output.collect(new MultArgs(a.getName(), b.getName(), 0), inter);
@@ -142,16 +398,33 @@ public class DistMult extends Configured implements Tool
 		public void configure(JobConf conf)
 		{
 			this.conf = conf;
-			Block.BLOCK_SIZE = conf.getInt("block.size", Block.DEFAULT_BLOCK_SIZE);
+			ContentPool.get().configure(conf);
+			BlockCache.get().configure(conf);
 		}
 
 		@Override
 		public void close() throws IOException
 		{
+			writeTrace(conf);
 		}
 
 	}
 
+	/**
+	 * Copies the matrix descriptors out of a values iterator, which reuses
+	 * its value object.
+	 */
+	static List<Matrix> collect(Iterator<Matrix> values, Reporter reporter)
+	{
+		List<Matrix> list = new ArrayList<Matrix>();
+		while (values.hasNext()) {
+			Matrix value = values.next();
+			list.add(new Matrix(value));
+			reporter.progress();
+		}
+		return list;
+	}
+
 	public static class MultCombine implements Reducer<MultArgs, Matrix, MultArgs, Matrix>
 	{
 		private Configuration conf;
@@ -160,22 +433,38 @@ public class DistMult extends Configured implements Tool
 		public void reduce(MultArgs key, Iterator<Matrix> values, OutputCollector<MultArgs, Matrix> output,
 		        Reporter reporter) throws IOException
 		{
-			Matrix value = values.next();
-			Matrix sum = Matrix.createFillRemote("/__tmp/sum/" + value.getName(), value.getRows(), value.getCols(), 0,
-			        conf);
+			Phase phase = new Phase("combine");
+			List<Matrix> list = collect(values, reporter);
+			Matrix sum = Matrix.sumRemote("/__tmp/sum/" + list.get(0).getName(), list, conf);
+			phase.end(reporter, conf);
+			output.collect(key, sum);
+		}
 
-			sum.writeRemote(conf);
-			sum = Matrix.addRemote("/__tmp/sum/" + value.getName(), sum, value, conf);
-			sum.writeRemote(conf);
-			reporter.progress();
+		@Override
+		public void configure(JobConf conf)
+		{
+			this.conf = conf;
+			ContentPool.get().configure(conf);
+		}
 
-			while (values.hasNext()) {
-				reporter.progress();
-				value = values.next();
-				sum = Matrix.addRemote("/__tmp/sum/" + value.getName(), sum, value, conf);
-				sum.writeRemote(conf);
-			}
+		@Override
+		public void close() throws IOException
+		{
+			writeTrace(conf);
+		}
+	}
+
+	public static class MultReduce implements Reducer<MultArgs, Matrix, MultArgs, Matrix>
+	{
+		private Configuration conf;
 
+		@Override
+		public void reduce(MultArgs key, Iterator<Matrix> values, OutputCollector<MultArgs, Matrix> output,
+		        Reporter reporter) throws IOException
+		{
+			Phase phase = new Phase("reduce");
+			Matrix sum = Matrix.sumRemote("result", collect(values, reporter), conf);
+			phase.end(reporter, conf);
 			output.collect(key, sum);
 		}
 
@@ -183,47 +472,216 @@ public class DistMult extends Configured implements Tool
 		public void configure(JobConf conf)
 		{
 			this.conf = conf;
-			Block.BLOCK_SIZE = conf.getInt("block.size", Block.DEFAULT_BLOCK_SIZE);
+			ContentPool.get().configure(conf);
 		}
 
 		@Override
 		public void close() throws IOException
 		{
+			writeTrace(conf);
 		}
 	}
 
-	public static class MultReduce implements Reducer<MultArgs, Matrix, MultArgs, Matrix>
+	/**
+	 * Computes the products of a round like {@link MultMap}, but emits each
+	 * block into the shuffle, keyed by its position in the result.
+	 */
+	public static class StreamMap implements Mapper<LongWritable, Text, BlockKey, ShuffledBlock>
 	{
 		private Configuration conf;
 
 		@Override
-		public void reduce(MultArgs key, Iterator<Matrix> values, OutputCollector<MultArgs, Matrix> output,
+		public void map(LongWritable lineNo, Text line, final OutputCollector<BlockKey, ShuffledBlock> output,
 		        Reporter reporter) throws IOException
 		{
-			Matrix a = Matrix.readRemote(key.getA(), conf);
-			Matrix sum = Matrix.createFillRemote("/__tmp/base", a.getRows(), a.getCols(), 0, conf);
+			MultArgs args = new MultArgs(line.toString());
+			reporter.setStatus("read matrices");
+			Matrix a = Matrix.readRemote(args.getA(), conf);
+			Matrix b = Matrix.readRemote(args.getB(), conf);
+			Matrix result = Matrix.readRemote(conf.get(RESULT), conf);
+
+			reporter.setStatus("multiply");
+			BlockCache cache = BlockCache.get();
+			long hits = cache.getHits();
+			long misses = cache.getMisses();
+			long[] nanos = BlockPipeline.getNanos();
+			Phase phase = new Phase("multiply");
+			Matrix.multiplyRound(result, a, b, args.getRound(), new Matrix.BlockSink() {
+				@Override
+				public void put(Block block, Content content) throws IOException
+				{
+					// The collector serializes the block right away and is not
+					// thread-safe.
+					synchronized (output) {
+						output.collect(new BlockKey(block.getBlockRow(), block.getBlockCol()),
+						        new ShuffledBlock(content, conf));
+					}
+				}
+			}, conf);
+			reporter.incrCounter(COUNTER_GROUP, "mrcl.cache.hits", cache.getHits() - hits);
+			reporter.incrCounter(COUNTER_GROUP, "mrcl.cache.misses", cache.getMisses() - misses);
+			countStages(reporter, nanos);
+			phase.end(reporter, conf);
+		}
+
+		@Override
+		public void configure(JobConf conf)
+		{
+			this.conf = conf;
+			ContentPool.get().configure(conf);
+			BlockCache.get().configure(conf);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			writeTrace(conf);
+		}
+	}
+
+	/**
+	 * Computes a tile of result blocks over a range of rounds. Without
+	 * reducers the task owns the tile and writes its blocks; otherwise it
+	 * emits them into the shuffle to be summed with the other slabs.
+	 */
+	public static class GridMap implements Mapper<LongWritable, Text, BlockKey, ShuffledBlock>
+	{
+		private JobConf conf;
+
+		@Override
+		public void map(LongWritable lineNo, Text line, final OutputCollector<BlockKey, ShuffledBlock> output,
+		        final Reporter reporter) throws IOException
+		{
+			TileArgs args = new TileArgs(line.toString());
+			reporter.setStatus("read matrices");
+			Matrix a = Matrix.readRemote(args.getA(), conf);
+			Matrix b = Matrix.readRemote(args.getB(), conf);
+			Matrix result = Matrix.readRemote(conf.get(RESULT), conf);
+
+			reporter.setStatus("multiply " + args);
+			BlockCache cache = BlockCache.get();
+			long hits = cache.getHits();
+			long misses = cache.getMisses();
+			long[] nanos = BlockPipeline.getNanos();
+			Phase phase = new Phase("multiply");
+			final boolean owner = conf.getNumReduceTasks() == 0;
+			Matrix.multiplyTile(result, a, b, args.getRowFrom(), args.getRowTo(), args.getColFrom(),
+			        args.getColTo(), args.getRoundFrom(), args.getRoundTo(), new Matrix.BlockSink() {
+				        @Override
+				        public void put(Block block, Content content) throws IOException
+				        {
+					        if (owner)
+						        content.writeRemote(conf);
+					        else
+						        output.collect(new BlockKey(block.getBlockRow(), block.getBlockCol()),
+						                new ShuffledBlock(content, conf));
+					        reporter.progress();
+				        }
+			        }, conf);
+			reporter.incrCounter(COUNTER_GROUP, "mrcl.cache.hits", cache.getHits() - hits);
+			reporter.incrCounter(COUNTER_GROUP, "mrcl.cache.misses", cache.getMisses() - misses);
+			countStages(reporter, nanos);
+			phase.end(reporter, conf);
+		}
+
+		@Override
+		public void configure(JobConf conf)
+		{
+			this.conf = conf;
+			ContentPool.get().configure(conf);
+			BlockCache.get().configure(conf);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			writeTrace(conf);
+		}
+	}
+
+	/**
+	 * Sums the values of a key into a pooled block. The iterator reuses its
+	 * value object, so the first value is copied.
+	 */
+	static Content sum(Iterator<ShuffledBlock> values, Reporter reporter)
+	{
+		Content sum = null;
+		while (values.hasNext()) {
+			Content value = values.next().get();
+			if (sum == null)
+				sum = value.copy();
+			else
+				sum.accumulate(value);
+			reporter.progress();
+		}
+		return sum;
+	}
+
+	public static class SumCombine implements Reducer<BlockKey, ShuffledBlock, BlockKey, ShuffledBlock>
+	{
+		private Configuration conf;
+
+		@Override
+		public void reduce(BlockKey key, Iterator<ShuffledBlock> values, OutputCollector<BlockKey, ShuffledBlock> output,
+		        Reporter reporter) throws IOException
+		{
+			Phase phase = new Phase("combine");
+			Content sum = sum(values, reporter);
+			phase.end(reporter, conf);
+			output.collect(key, new ShuffledBlock(sum, conf));
+			sum.release();
+		}
+
+		@Override
+		public void configure(JobConf conf)
+		{
+			this.conf = conf;
+			ContentPool.get().configure(conf);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			writeTrace(conf);
+		}
+	}
+
+	/**
+	 * Writes each result block once, when all of its products have arrived.
+	 */
+	public static class SumReduce implements Reducer<BlockKey, ShuffledBlock, NullWritable, NullWritable>
+	{
+		private Configuration conf;
+		private Matrix result;
+
+		@Override
+		public void reduce(BlockKey key, Iterator<ShuffledBlock> values, OutputCollector<NullWritable, NullWritable> output,
+		        Reporter reporter) throws IOException
+		{
+			if (result == null)
+				result = Matrix.readRemote(conf.get(RESULT), conf);
+			Phase phase = new Phase("reduce");
+			Content sum = Content.acquire(new Block(result, key.getBlockRow(), key.getBlockCol()));
 			while (values.hasNext()) {
-				Matrix value = values.next();
-				if (!values.hasNext())
-					sum = Matrix.addRemote("result", sum, value, conf);
-				else
-					sum = Matrix.addRemote("/__tmp/sum/" + value.getName(), sum, value, conf);
-				sum.writeRemote(conf);
+				sum.accumulate(values.next().get());
+				reporter.progress();
 			}
-
-			output.collect(key, sum);
+			sum.writeRemote(conf);
+			sum.release();
+			phase.end(reporter, conf);
 		}
 
 		@Override
 		public void configure(JobConf conf)
 		{
 			this.conf = conf;
-			Block.BLOCK_SIZE = conf.getInt("block.size", Block.DEFAULT_BLOCK_SIZE);
+			ContentPool.get().configure(conf);
 		}
 
 		@Override
 		public void close() throws IOException
 		{
+			writeTrace(conf);
 		}
 	}
 }
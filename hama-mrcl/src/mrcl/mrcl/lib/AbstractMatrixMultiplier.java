@@ -0,0 +1,165 @@
+package mrcl.lib;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Base class of the built-in backends. Implements
+ * {@link MatrixMultiplier#doMultiplication} on top of
+ * {@link MatrixMultiplier#doMultiplyAdd}.
+ *
+ * Blocks are stored row by row, so the column-major C = A * B of the
+ * multiplier contract is the row-major C = B * A: b is m x k, a is k x n and
+ * c is m x n, where edge blocks may be smaller than the block size of their
+ * matrix in any of the three dimensions.
+ *
+ * Blocks of {@link ElementType#DOUBLE} matrices are multiplied in double by
+ * {@link #doMultiplyAddDouble}; alpha and beta are widened to double.
+ */
+public abstract class AbstractMatrixMultiplier implements MatrixMultiplier
+{
+	@Override
+	public Content doMultiplication(Block block, Content a, Content b)
+	{
+		Content content = Content.acquire(block);
+		doMultiplyAdd(block, a, b, content, 1, 0);
+		return content;
+	}
+
+	/**
+	 * Hands double operands to {@link #doMultiplyAddDouble}, sparse ones to
+	 * the {@link SparseMatrixMultiplier} kernels and dense ones to
+	 * {@link #doMultiplyAddDense}.
+	 */
+	@Override
+	public void doMultiplyAdd(Block block, Content a, Content b, Content c,
+			float alpha, float beta)
+	{
+		checkExtents(a, b, c);
+		if (a.isDouble() || b.isDouble() || c.isDouble()) {
+			if (!a.isDouble() || !b.isDouble() || !c.isDouble())
+				throw new IllegalArgumentException("Cannot mix float and double blocks");
+			doMultiplyAddDouble(block, a, b, c, alpha, beta);
+		} else if (a.isSparse() || b.isSparse())
+			SparseMatrixMultiplier.multiplyAddSparse(a, b, c, alpha, beta);
+		else
+			doMultiplyAddDense(block, a, b, c, alpha, beta);
+	}
+
+	/**
+	 * {@link #doMultiplyAdd} for dense operands of matching extents.
+	 */
+	protected abstract void doMultiplyAddDense(Block block, Content a,
+			Content b, Content c, float alpha, float beta);
+
+	/**
+	 * {@link #doMultiplyAdd} for double blocks. Backends without a double
+	 * kernel of their own use {@link TiledJavaMatrixMultiplier#dgemm}.
+	 */
+	protected void doMultiplyAddDouble(Block block, Content a, Content b,
+			Content c, double alpha, double beta)
+	{
+		int m = b.getRows(), n = a.getCols(), k = a.getRows();
+		double[] aData = toDoubleArray(a, 0);
+		double[] bData = toDoubleArray(b, 1);
+		double[] cData = beta == 0 ? doubleScratch(2, m * n) : toDoubleArray(c, 2);
+		TiledJavaMatrixMultiplier.dgemm(m, n, k, alpha, bData, 0, k, aData, 0, n,
+				beta, cData, 0, n);
+		fromDoubleArray(cData, c);
+	}
+
+	/**
+	 * Per-thread float arrays for the operands and the result, so that
+	 * multiplying a block does not allocate.
+	 */
+	private static final ThreadLocal<float[][]> _scratch = new ThreadLocal<float[][]>() {
+		@Override
+		protected float[][] initialValue() {
+			return new float[3][0];
+		}
+	};
+
+	private static final ThreadLocal<double[][]> _doubleScratch = new ThreadLocal<double[][]>() {
+		@Override
+		protected double[][] initialValue() {
+			return new double[3][0];
+		}
+	};
+
+	/**
+	 * Checks that b * a can be added to c, see the class comment.
+	 */
+	protected static void checkExtents(Content a, Content b, Content c) {
+		if (b.getCols() != a.getRows() || c.getRows() != b.getRows()
+				|| c.getCols() != a.getCols())
+			throw new IllegalArgumentException("Cannot add " + b.getRows() + "x"
+					+ b.getCols() + " * " + a.getRows() + "x" + a.getCols()
+					+ " to " + c.getRows() + "x" + c.getCols());
+	}
+
+	/**
+	 * Returns the scratch array of the given slot (0 to 2) with room for at
+	 * least length floats. The content is undefined.
+	 */
+	protected static float[] scratch(int slot, int length) {
+		float[][] arrays = _scratch.get();
+		if (arrays[slot].length < length)
+			arrays[slot] = new float[length];
+		return arrays[slot];
+	}
+
+	/**
+	 * Copies the float data of a block into the head of the scratch array of
+	 * a slot.
+	 */
+	protected static float[] toArray(Content content, int slot) {
+		// Work on a duplicate so that concurrent readers of the same block
+		// don't race on the buffer position.
+		int length = content.getRows() * content.getCols();
+		float[] data = scratch(slot, length);
+		FloatBuffer source = content.getFloatBuffer().duplicate();
+		source.rewind();
+		source.get(data, 0, length);
+		return data;
+	}
+
+	/**
+	 * Copies the head of an array back into the float data of a block.
+	 */
+	protected static void fromArray(float[] data, Content content) {
+		FloatBuffer target = content.getFloatBuffer().duplicate();
+		target.rewind();
+		target.put(data, 0, content.getRows() * content.getCols());
+	}
+
+	/**
+	 * Same as {@link #scratch} for doubles.
+	 */
+	protected static double[] doubleScratch(int slot, int length) {
+		double[][] arrays = _doubleScratch.get();
+		if (arrays[slot].length < length)
+			arrays[slot] = new double[length];
+		return arrays[slot];
+	}
+
+	/**
+	 * Same as {@link #toArray} for double blocks.
+	 */
+	protected static double[] toDoubleArray(Content content, int slot) {
+		int length = content.getRows() * content.getCols();
+		double[] data = doubleScratch(slot, length);
+		DoubleBuffer source = content.getDoubleBuffer().duplicate();
+		source.rewind();
+		source.get(data, 0, length);
+		return data;
+	}
+
+	/**
+	 * Same as {@link #fromArray} for double blocks.
+	 */
+	protected static void fromDoubleArray(double[] data, Content content) {
+		DoubleBuffer target = content.getDoubleBuffer().duplicate();
+		target.rewind();
+		target.put(data, 0, content.getRows() * content.getCols());
+	}
+}
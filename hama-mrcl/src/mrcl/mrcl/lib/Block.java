@@ -1,7 +1,11 @@
 package mrcl.lib;
 
+/**
+ * A block of a matrix. Blocks are getBlockHeight() x getBlockWidth() of their
+ * matrix; the blocks of the last block row and column are cut to the size of
+ * the matrix.
+ */
 public class Block {
-	public static int BLOCK_SIZE = 0;
 	public static final int DEFAULT_BLOCK_SIZE = 1024;
 	private Matrix _matrix;
 	private int _blockRow;
@@ -10,25 +14,28 @@ public class Block {
 	private int _innerCols;
 	
 	public Block(Matrix matrix, int blockRow, int blockCol) {
-		if (BLOCK_SIZE == 0)
-			throw new IllegalArgumentException("BLOCK_SIZE is not initialized.");
-		
 		_matrix = matrix;
 		_blockRow = blockRow;
 		_blockCol = blockCol;
 
 		int rows = matrix.getRows();
 		int cols = matrix.getCols();
+		int height = matrix.getBlockHeight();
+		int width = matrix.getBlockWidth();
 
-		int fromRow = blockRow * BLOCK_SIZE;
-		int toRow = Math.min((blockRow + 1) * BLOCK_SIZE, rows);
-		int fromCol = blockCol * BLOCK_SIZE;
-		int toCol = Math.min((blockCol + 1) * BLOCK_SIZE, cols);
+		int fromRow = blockRow * height;
+		int toRow = Math.min((blockRow + 1) * height, rows);
+		int fromCol = blockCol * width;
+		int toCol = Math.min((blockCol + 1) * width, cols);
 
 		_innerRows = toRow - fromRow;
 		_innerCols = toCol - fromCol;
 	}
 
+	public Matrix getMatrix() {
+		return _matrix;
+	}
+
 	public int getBlockRow() {
 		return _blockRow;
 	}
@@ -45,6 +52,31 @@ public class Block {
 		return _innerCols;
 	}
 
+	/**
+	 * Returns the matrix row of the first row of the block.
+	 */
+	public int getRowOffset() {
+		return _blockRow * _matrix.getBlockHeight();
+	}
+
+	/**
+	 * Returns the matrix column of the first column of the block.
+	 */
+	public int getColOffset() {
+		return _blockCol * _matrix.getBlockWidth();
+	}
+
+	public ElementType getElementType() {
+		return _matrix.getElementType();
+	}
+
+	/**
+	 * Returns the source of the blocks of a virtual matrix, or null.
+	 */
+	public BlockSource getSource() {
+		return _matrix.getSource();
+	}
+
 	public String getBlockPath() {
 		return _matrix.getMatrixPath() + "/blocks/r" + _blockRow + "/c" + _blockCol;
 	}
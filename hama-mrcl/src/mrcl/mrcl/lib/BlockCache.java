@@ -0,0 +1,106 @@
+package mrcl.lib;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A per-JVM LRU cache of remote blocks, bounded by a byte budget.
+ *
+ * Entries are keyed by block path and file modification time, so a block
+ * that is rewritten is never served stale to a descriptor read after it.
+ * The times are listed a block row at a time, see
+ * {@link Matrix#getBlockTime}. Cached blocks are shared, and
+ * {@link Content#readRemoteCached} hands out read-only views of them.
+ *
+ * The budget is mrcl.cache.bytes and defaults to a quarter of the maximum
+ * heap; 0 disables the cache.
+ */
+public class BlockCache {
+	public static final String CAPACITY = "mrcl.cache.bytes";
+
+	private static final BlockCache INSTANCE = new BlockCache();
+
+	private final LinkedHashMap<String, Content> _entries = new LinkedHashMap<String, Content>(
+			16, 0.75f, true);
+	private long _capacity = Runtime.getRuntime().maxMemory() / 4;
+	private long _bytes;
+	private long _hits;
+	private long _misses;
+
+	public static BlockCache get() {
+		return INSTANCE;
+	}
+
+	public synchronized void configure(Configuration conf) {
+		setCapacity(conf.getLong(CAPACITY, Runtime.getRuntime().maxMemory() / 4));
+	}
+
+	public synchronized void setCapacity(long capacity) {
+		_capacity = capacity;
+		evict();
+	}
+
+	public synchronized boolean isEnabled() {
+		return _capacity > 0;
+	}
+
+	public static String key(String path, long modificationTime) {
+		return path + "@" + modificationTime;
+	}
+
+	/**
+	 * Returns the cached block for key, or null. Counts a hit or a miss.
+	 */
+	public synchronized Content get(String key) {
+		Content content = _entries.get(key);
+		if (content == null)
+			_misses++;
+		else
+			_hits++;
+		return content;
+	}
+
+	/**
+	 * Adds a block, evicting the least recently used entries to stay within
+	 * the budget. Blocks larger than the whole budget are not cached.
+	 */
+	public synchronized void put(String key, Content content) {
+		int bytes = content.getMemoryBytes();
+		if (bytes > _capacity)
+			return;
+		Content previous = _entries.put(key, content);
+		if (previous != null)
+			_bytes -= previous.getMemoryBytes();
+		_bytes += bytes;
+		evict();
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Content>> it = _entries.entrySet()
+				.iterator();
+		while (_bytes > _capacity && it.hasNext()) {
+			_bytes -= it.next().getValue().getMemoryBytes();
+			it.remove();
+		}
+	}
+
+	public synchronized void clear() {
+		_entries.clear();
+		_bytes = 0;
+	}
+
+	public synchronized long getBytes() {
+		return _bytes;
+	}
+
+	public synchronized long getHits() {
+		return _hits;
+	}
+
+	public synchronized long getMisses() {
+		return _misses;
+	}
+}
@@ -0,0 +1,231 @@
+package mrcl.lib;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Encodes the float data of remote block files. The codec is chosen by
+ * mrcl.block.codec when a block is written and recorded in the block header,
+ * so readers detect it on their own.
+ *
+ * <ul>
+ * <li>none: the raw floats (default).</li>
+ * <li>deflate: zlib at the default level.</li>
+ * <li>fast: zlib at its fastest level, for when the network is not much
+ * slower than compressing.</li>
+ * <li>shuffle: the bytes of all values are regrouped by their position in
+ * the value before fast zlib, so that signs and exponents, which vary little
+ * between neighbouring values, end up next to each other.</li>
+ * </ul>
+ *
+ * Example: -Dmrcl.block.codec=shuffle
+ */
+public abstract class BlockCodec {
+	public static final String CODEC = "mrcl.block.codec";
+	public static final String DEFAULT_CODEC = "none";
+
+	public static final BlockCodec NONE = new None();
+	public static final BlockCodec DEFLATE = new Zlib(1, "deflate",
+			Deflater.DEFAULT_COMPRESSION);
+	public static final BlockCodec FAST = new Zlib(2, "fast",
+			Deflater.BEST_SPEED);
+	public static final BlockCodec SHUFFLE = new Shuffle(3, "shuffle");
+
+	private static final BlockCodec[] CODECS = { NONE, DEFLATE, FAST, SHUFFLE };
+
+	/**
+	 * Compressed data is framed in chunks of at most this many bytes.
+	 */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<byte[][]> _buffers = new ThreadLocal<byte[][]>() {
+		@Override
+		protected byte[][] initialValue() {
+			return new byte[][] { new byte[CHUNK_SIZE], new byte[0] };
+		}
+	};
+
+	private final int _id;
+	private final String _name;
+
+	private BlockCodec(int id, String name) {
+		_id = id;
+		_name = name;
+	}
+
+	public static BlockCodec get(Configuration conf) {
+		return forName(conf.get(CODEC, DEFAULT_CODEC));
+	}
+
+	public static BlockCodec forName(String name) {
+		for (BlockCodec codec : CODECS) {
+			if (codec._name.equals(name))
+				return codec;
+		}
+		throw new IllegalArgumentException("Unknown " + CODEC + ": " + name);
+	}
+
+	static BlockCodec forId(int id) throws IOException {
+		if (id < 0 || id >= CODECS.length)
+			throw new IOException("Unknown block codec " + id);
+		return CODECS[id];
+	}
+
+	int getId() {
+		return _id;
+	}
+
+	public String getName() {
+		return _name;
+	}
+
+	/**
+	 * Writes length bytes of data from offset, made of values of width bytes
+	 * each.
+	 */
+	public abstract void write(DataOutput output, byte[] data, int offset,
+			int length, int width) throws IOException;
+
+	/**
+	 * Reads exactly length bytes into data from offset, written with the
+	 * same width.
+	 */
+	public abstract void read(DataInput input, byte[] data, int offset,
+			int length, int width) throws IOException;
+
+	private static class None extends BlockCodec {
+		None() {
+			super(0, "none");
+		}
+
+		@Override
+		public void write(DataOutput output, byte[] data, int offset,
+				int length, int width) throws IOException {
+			output.write(data, offset, length);
+		}
+
+		@Override
+		public void read(DataInput input, byte[] data, int offset,
+				int length, int width) throws IOException {
+			input.readFully(data, offset, length);
+		}
+	}
+
+	/**
+	 * zlib data in chunks, each preceded by its length and the last one
+	 * followed by a zero length.
+	 */
+	private static class Zlib extends BlockCodec {
+		private final int _level;
+
+		Zlib(int id, String name, int level) {
+			super(id, name);
+			_level = level;
+		}
+
+		@Override
+		public void write(DataOutput output, byte[] data, int offset,
+				int length, int width) throws IOException {
+			byte[] chunk = _buffers.get()[0];
+			Deflater deflater = new Deflater(_level);
+			try {
+				deflater.setInput(data, offset, length);
+				deflater.finish();
+				while (!deflater.finished()) {
+					int n = deflater.deflate(chunk);
+					if (n > 0) {
+						output.writeInt(n);
+						output.write(chunk, 0, n);
+					}
+				}
+				output.writeInt(0);
+			} finally {
+				deflater.end();
+			}
+		}
+
+		@Override
+		public void read(DataInput input, byte[] data, int offset,
+				int length, int width) throws IOException {
+			byte[] chunk = _buffers.get()[0];
+			Inflater inflater = new Inflater();
+			try {
+				int end = offset + length;
+				for (int n = input.readInt(); n > 0; n = input.readInt()) {
+					if (n > chunk.length)
+						throw new IOException("Corrupt block: chunk of " + n
+								+ " bytes");
+					input.readFully(chunk, 0, n);
+					inflater.setInput(chunk, 0, n);
+					while (!inflater.needsInput()) {
+						int inflated = inflater.inflate(data, offset, end - offset);
+						if (inflated == 0)
+							break;
+						offset += inflated;
+					}
+				}
+				if (offset != end || !inflater.finished())
+					throw new IOException("Corrupt block: expected " + length
+							+ " bytes");
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt block: " + e.getMessage());
+			} finally {
+				inflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Fast zlib over the values with their bytes transposed: first byte 0 of
+	 * every value, then byte 1, and so on. Bytes after the last whole value
+	 * follow unchanged.
+	 */
+	private static class Shuffle extends Zlib {
+		Shuffle(int id, String name) {
+			super(id, name, Deflater.BEST_SPEED);
+		}
+
+		@Override
+		public void write(DataOutput output, byte[] data, int offset,
+				int length, int width) throws IOException {
+			byte[] shuffled = shuffleBuffer(length);
+			int values = length / width;
+			for (int i = 0; i < values; i++) {
+				int src = offset + i * width;
+				for (int b = 0; b < width; b++)
+					shuffled[b * values + i] = data[src + b];
+			}
+			int whole = values * width;
+			System.arraycopy(data, offset + whole, shuffled, whole, length - whole);
+			super.write(output, shuffled, 0, length, width);
+		}
+
+		@Override
+		public void read(DataInput input, byte[] data, int offset,
+				int length, int width) throws IOException {
+			byte[] shuffled = shuffleBuffer(length);
+			super.read(input, shuffled, 0, length, width);
+			int values = length / width;
+			for (int i = 0; i < values; i++) {
+				int dst = offset + i * width;
+				for (int b = 0; b < width; b++)
+					data[dst + b] = shuffled[b * values + i];
+			}
+			int whole = values * width;
+			System.arraycopy(shuffled, whole, data, offset + whole, length - whole);
+		}
+
+		private static byte[] shuffleBuffer(int length) {
+			byte[][] buffers = _buffers.get();
+			if (buffers[1].length < length)
+				buffers[1] = new byte[length];
+			return buffers[1];
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package mrcl.lib;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.WritableComparable;
+
+/**
+ * The position of a block in its matrix. It keys the partial products that
+ * DistMult streams through the shuffle, so that all products of one result
+ * block meet in the same combiner and reducer.
+ */
+public class BlockKey implements WritableComparable<BlockKey> {
+	private int _blockRow;
+	private int _blockCol;
+
+	public BlockKey() {
+	}
+
+	public BlockKey(int blockRow, int blockCol) {
+		_blockRow = blockRow;
+		_blockCol = blockCol;
+	}
+
+	public int getBlockRow() {
+		return _blockRow;
+	}
+
+	public int getBlockCol() {
+		return _blockCol;
+	}
+
+	public String toString() {
+		return String.format("r%d-c%d", _blockRow, _blockCol);
+	}
+
+	@Override
+	public void readFields(DataInput input) throws IOException {
+		_blockRow = input.readInt();
+		_blockCol = input.readInt();
+	}
+
+	@Override
+	public void write(DataOutput output) throws IOException {
+		output.writeInt(_blockRow);
+		output.writeInt(_blockCol);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * _blockRow + _blockCol;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		BlockKey other = (BlockKey) obj;
+		return _blockRow == other._blockRow && _blockCol == other._blockCol;
+	}
+
+	@Override
+	public int compareTo(BlockKey o) {
+		if (_blockRow != o._blockRow)
+			return _blockRow < o._blockRow ? -1 : 1;
+		if (_blockCol != o._blockCol)
+			return _blockCol < o._blockCol ? -1 : 1;
+		return 0;
+	}
+}
@@ -0,0 +1,27 @@
+package mrcl.lib;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Partitioner;
+
+/**
+ * Deals the blocks of a result matrix to the reducers in row-major order, so
+ * every reducer gets an equal share of blocks regardless of how block
+ * positions hash. The number of block columns is taken from
+ * mrcl.partition.block.cols.
+ */
+public class BlockPartitioner implements Partitioner<BlockKey, ShuffledBlock> {
+	public static final String BLOCK_COLS = "mrcl.partition.block.cols";
+
+	private int _blockCols = 1;
+
+	@Override
+	public void configure(JobConf job) {
+		_blockCols = job.getInt(BLOCK_COLS, 1);
+	}
+
+	@Override
+	public int getPartition(BlockKey key, ShuffledBlock value, int numPartitions) {
+		long index = (long) key.getBlockRow() * _blockCols + key.getBlockCol();
+		return (int) (index % numPartitions);
+	}
+}
@@ -0,0 +1,229 @@
+package mrcl.lib;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Overlaps the remote reads and writes of a multiplication with its
+ * computation. Blocks that will be needed are read in order by a background
+ * thread, at most mrcl.prefetch.depth (default 2) ahead of the consumer, and
+ * finished blocks are copied and written by another background thread, with
+ * at most mrcl.write.behind.depth (default 2) writes pending. A depth of 0
+ * reads or writes on the calling thread.
+ *
+ * The time spent in each stage is summed per JVM, see {@link #getNanos}, so
+ * that a job can tell whether it is bound by I/O (large waits) or by
+ * computation. Example: -Dmrcl.prefetch.depth=4 -Dmrcl.write.behind.depth=4
+ */
+public class BlockPipeline {
+	public static final String PREFETCH = "mrcl.prefetch.depth";
+	public static final String WRITE_BEHIND = "mrcl.write.behind.depth";
+	public static final int DEFAULT_DEPTH = 2;
+
+	/**
+	 * The stages whose times {@link #getNanos} returns, in order: reading
+	 * blocks, waiting for a prefetched block, multiplying, writing blocks
+	 * and waiting for room in the write queue.
+	 */
+	public static final String[] STAGES = { "read", "read.wait", "compute",
+			"write", "write.wait" };
+	static final int READ = 0;
+	static final int READ_WAIT = 1;
+	static final int COMPUTE = 2;
+	static final int WRITE = 3;
+	static final int WRITE_WAIT = 4;
+
+	private static final AtomicLong[] NANOS = new AtomicLong[STAGES.length];
+	static {
+		for (int i = 0; i < NANOS.length; i++)
+			NANOS[i] = new AtomicLong();
+	}
+
+	private final Configuration _conf;
+	private final int _prefetchDepth;
+	private final int _writeDepth;
+	private final Deque<Future<Content>> _reads = new ArrayDeque<Future<Content>>();
+	private final Deque<Future<?>> _writes = new ArrayDeque<Future<?>>();
+	private Iterator<Block> _blocks;
+	private ExecutorService _reader;
+	private ExecutorService _writer;
+	private Semaphore _writeSlots;
+
+	public BlockPipeline(Configuration conf) {
+		_conf = conf;
+		_prefetchDepth = conf.getInt(PREFETCH, DEFAULT_DEPTH);
+		_writeDepth = conf.getInt(WRITE_BEHIND, DEFAULT_DEPTH);
+	}
+
+	/**
+	 * Returns the nanoseconds spent in each of {@link #STAGES} by this JVM
+	 * so far.
+	 */
+	public static long[] getNanos() {
+		long[] nanos = new long[NANOS.length];
+		for (int i = 0; i < nanos.length; i++)
+			nanos[i] = NANOS[i].get();
+		return nanos;
+	}
+
+	static void addNanos(int stage, long nanos) {
+		NANOS[stage].addAndGet(nanos);
+	}
+
+	/**
+	 * Starts reading blocks in order. {@link #next} returns them.
+	 */
+	public void prefetch(List<Block> blocks) {
+		_blocks = blocks.iterator();
+		if (_prefetchDepth > 0 && _reader == null)
+			_reader = Executors.newSingleThreadExecutor();
+		fill();
+	}
+
+	private void fill() {
+		while (_reader != null && _reads.size() < _prefetchDepth
+				&& _blocks.hasNext()) {
+			final Block block = _blocks.next();
+			_reads.add(_reader.submit(TaskMetrics.inherit(new Callable<Content>() {
+				@Override
+				public Content call() {
+					return read(block);
+				}
+			})));
+		}
+	}
+
+	private Content read(Block block) {
+		long start = System.nanoTime();
+		Content content = Content.readRemoteCached(block, _conf);
+		addNanos(READ, System.nanoTime() - start);
+		return content;
+	}
+
+	/**
+	 * Returns the next block of {@link #prefetch}, which the caller
+	 * releases.
+	 */
+	public Content next() {
+		if (_reader == null)
+			return read(_blocks.next());
+		long start = System.nanoTime();
+		Future<Content> read = _reads.poll();
+		try {
+			return read.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			addNanos(READ_WAIT, System.nanoTime() - start);
+			fill();
+		}
+	}
+
+	/**
+	 * Returns a sink that hands copies of the blocks to sink on the write
+	 * thread. Failures are thrown by a later put or by {@link #flush}.
+	 */
+	public Matrix.BlockSink writeBehind(final Matrix.BlockSink sink) {
+		if (_writeDepth <= 0) {
+			return new Matrix.BlockSink() {
+				@Override
+				public void put(Block block, Content content) throws IOException {
+					long start = System.nanoTime();
+					sink.put(block, content);
+					addNanos(WRITE, System.nanoTime() - start);
+				}
+			};
+		}
+		if (_writer == null) {
+			_writer = Executors.newSingleThreadExecutor();
+			_writeSlots = new Semaphore(_writeDepth);
+		}
+		return new Matrix.BlockSink() {
+			@Override
+			public void put(final Block block, Content content) throws IOException {
+				long start = System.nanoTime();
+				_writeSlots.acquireUninterruptibly();
+				addNanos(WRITE_WAIT, System.nanoTime() - start);
+				final Content copy = content.copy();
+				Future<?> write = _writer.submit(TaskMetrics.inherit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						long start = System.nanoTime();
+						try {
+							sink.put(block, copy);
+						} finally {
+							copy.release();
+							_writeSlots.release();
+							addNanos(WRITE, System.nanoTime() - start);
+						}
+						return null;
+					}
+				}));
+				synchronized (_writes) {
+					_writes.add(write);
+					checkWrites(false);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Rethrows the failure of a finished write, and waits for all writes if
+	 * all is set.
+	 */
+	private void checkWrites(boolean all) throws IOException {
+		while (!_writes.isEmpty() && (all || _writes.peek().isDone())) {
+			try {
+				_writes.poll().get();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Waits for the pending writes and rethrows the first failure.
+	 */
+	public void flush() throws IOException {
+		synchronized (_writes) {
+			checkWrites(true);
+		}
+	}
+
+	/**
+	 * Stops the threads without waiting for pending writes. Blocks that
+	 * were prefetched but not taken are released.
+	 */
+	public void close() {
+		if (_reader != null)
+			_reader.shutdownNow();
+		if (_writer != null)
+			_writer.shutdownNow();
+		for (Future<Content> read : _reads) {
+			try {
+				read.get().release();
+			} catch (Exception e) {
+				// Only the reads that were taken can fail the multiplication.
+			}
+		}
+		_reads.clear();
+	}
+}
@@ -0,0 +1,238 @@
+package mrcl.lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * The precision in which the values of remote block files are stored. The
+ * precision is chosen by mrcl.block.precision when a block is written and
+ * recorded in the block header. The values of float blocks are converted
+ * back to float when they are read, so the multipliers compute and
+ * accumulate in float.
+ *
+ * <ul>
+ * <li>fp32: IEEE single precision, lossless (default).</li>
+ * <li>fp16: IEEE half precision, 11 significant bits but only a range of
+ * about 6e-8 to 65504; larger values become infinite.</li>
+ * <li>bf16: bfloat16, the upper half of a float with 8 significant bits and
+ * the full float range.</li>
+ * </ul>
+ *
+ * Both 16-bit formats round to nearest even. Example:
+ * -Dmrcl.block.precision=bf16
+ *
+ * Blocks of {@link ElementType#DOUBLE} matrices are always stored
+ * unconverted, whatever mrcl.block.precision is, see {@link Content}.
+ */
+public abstract class BlockPrecision {
+	public static final String PRECISION = "mrcl.block.precision";
+	public static final String DEFAULT_PRECISION = "fp32";
+
+	public static final BlockPrecision FP32 = new Fp32();
+	public static final BlockPrecision FP16 = new Fp16();
+	public static final BlockPrecision BF16 = new Bf16();
+
+	private static final BlockPrecision[] PRECISIONS = { FP32, FP16, BF16 };
+
+	private final int _id;
+	private final String _name;
+	private final int _bytes;
+
+	private BlockPrecision(int id, String name, int bytes) {
+		_id = id;
+		_name = name;
+		_bytes = bytes;
+	}
+
+	public static BlockPrecision get(Configuration conf) {
+		return forName(conf.get(PRECISION, DEFAULT_PRECISION));
+	}
+
+	public static BlockPrecision forName(String name) {
+		for (BlockPrecision precision : PRECISIONS) {
+			if (precision._name.equals(name))
+				return precision;
+		}
+		throw new IllegalArgumentException("Unknown " + PRECISION + ": " + name);
+	}
+
+	static BlockPrecision forId(int id) throws IOException {
+		if (id < 0 || id >= PRECISIONS.length)
+			throw new IOException("Unknown block precision " + id);
+		return PRECISIONS[id];
+	}
+
+	int getId() {
+		return _id;
+	}
+
+	public String getName() {
+		return _name;
+	}
+
+	/**
+	 * Returns the stored size of one value in bytes.
+	 */
+	public int getBytes() {
+		return _bytes;
+	}
+
+	/**
+	 * Returns the stored form of count floats from the start of values.
+	 */
+	abstract byte[] encode(FloatBuffer values, int count);
+
+	/**
+	 * Converts count stored values from offset of data into the start of
+	 * values.
+	 */
+	abstract void decode(byte[] data, int offset, FloatBuffer values,
+			int count);
+
+	/**
+	 * Returns the value that is stored for f.
+	 */
+	public abstract float round(float f);
+
+	private static class Fp32 extends BlockPrecision {
+		Fp32() {
+			super(0, "fp32", 4);
+		}
+
+		@Override
+		byte[] encode(FloatBuffer values, int count) {
+			FloatBuffer source = values.duplicate();
+			source.rewind();
+			source.limit(count);
+			ByteBuffer data = ByteBuffer.allocate(count * 4);
+			data.asFloatBuffer().put(source);
+			return data.array();
+		}
+
+		@Override
+		void decode(byte[] data, int offset, FloatBuffer values, int count) {
+			FloatBuffer target = values.duplicate();
+			target.rewind();
+			target.put(ByteBuffer.wrap(data, offset, count * 4).slice()
+					.asFloatBuffer());
+		}
+
+		@Override
+		public float round(float f) {
+			return f;
+		}
+	}
+
+	/**
+	 * A precision that stores each value in a big-endian short.
+	 */
+	private static abstract class Short16 extends BlockPrecision {
+		Short16(int id, String name) {
+			super(id, name, 2);
+		}
+
+		abstract int toBits(float f);
+
+		abstract float fromBits(int bits);
+
+		@Override
+		byte[] encode(FloatBuffer values, int count) {
+			byte[] data = new byte[count * 2];
+			for (int i = 0; i < count; i++) {
+				int bits = toBits(values.get(i));
+				data[2 * i] = (byte) (bits >>> 8);
+				data[2 * i + 1] = (byte) bits;
+			}
+			return data;
+		}
+
+		@Override
+		void decode(byte[] data, int offset, FloatBuffer values, int count) {
+			for (int i = 0; i < count; i++) {
+				int at = offset + 2 * i;
+				values.put(i, fromBits((data[at] & 0xff) << 8 | data[at + 1] & 0xff));
+			}
+		}
+
+		@Override
+		public float round(float f) {
+			return fromBits(toBits(f));
+		}
+	}
+
+	private static class Fp16 extends Short16 {
+		Fp16() {
+			super(1, "fp16");
+		}
+
+		@Override
+		int toBits(float f) {
+			int bits = Float.floatToRawIntBits(f);
+			int sign = (bits >>> 16) & 0x8000;
+			int exp = (bits >>> 23) & 0xff;
+			int mant = bits & 0x7fffff;
+			if (exp == 0xff)
+				return sign | 0x7c00 | (mant != 0 ? 0x200 : 0);
+			int e = exp - 127 + 15;
+			if (e >= 0x1f)
+				return sign | 0x7c00;
+			if (e <= 0) {
+				// Subnormal half, or zero if even rounding cannot reach the
+				// smallest one.
+				if (e < -10)
+					return sign;
+				mant |= 0x800000;
+				int shift = 14 - e;
+				int half = mant >> shift;
+				int rest = mant & ((1 << shift) - 1);
+				int halfway = 1 << (shift - 1);
+				if (rest > halfway || (rest == halfway && (half & 1) != 0))
+					half++;
+				return sign | half;
+			}
+			// A carry out of the mantissa correctly bumps the exponent, up to
+			// infinity.
+			int half = e << 10 | mant >> 13;
+			int rest = mant & 0x1fff;
+			if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0))
+				half++;
+			return sign | half;
+		}
+
+		@Override
+		float fromBits(int bits) {
+			int sign = (bits & 0x8000) << 16;
+			int exp = (bits >>> 10) & 0x1f;
+			int mant = bits & 0x3ff;
+			if (exp == 0x1f)
+				return Float.intBitsToFloat(sign | 0x7f800000 | mant << 13);
+			if (exp == 0) {
+				float value = mant * 0x1p-24f;
+				return sign != 0 ? -value : value;
+			}
+			return Float.intBitsToFloat(sign | (exp + 112) << 23 | mant << 13);
+		}
+	}
+
+	private static class Bf16 extends Short16 {
+		Bf16() {
+			super(2, "bf16");
+		}
+
+		@Override
+		int toBits(float f) {
+			int bits = Float.floatToRawIntBits(f);
+			if (Float.isNaN(f))
+				return (bits >>> 16) | 0x40;
+			return (bits + 0x7fff + ((bits >>> 16) & 1)) >>> 16;
+		}
+
+		@Override
+		float fromBits(int bits) {
+			return Float.intBitsToFloat(bits << 16);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package mrcl.lib;
+
+/**
+ * Defines the blocks of a virtual matrix, which has a descriptor but no
+ * block files. {@link Content#readLocal}, {@link Content#readRemote} and
+ * {@link Content#readRemoteCached} synthesize its blocks instead of reading
+ * them, so constant, identity and random operands cost no I/O. The source is
+ * recorded in the descriptor as "fill:VALUE", "identity" or "random:SEED".
+ *
+ * A random source gives the same blocks as {@link Matrix#randomizeRemote}
+ * with the same seed.
+ */
+public abstract class BlockSource {
+	private final String _name;
+
+	private BlockSource(String name) {
+		_name = name;
+	}
+
+	public static BlockSource fill(float value) {
+		return new Fill(value);
+	}
+
+	public static BlockSource identity() {
+		return new Identity();
+	}
+
+	public static BlockSource random(long seed) {
+		return new Random(seed);
+	}
+
+	/**
+	 * Parses the form of {@link #toString}.
+	 */
+	public static BlockSource parse(String source) {
+		int colon = source.indexOf(':');
+		String name = colon < 0 ? source : source.substring(0, colon);
+		String value = colon < 0 ? null : source.substring(colon + 1);
+		try {
+			if (name.equals("fill") && value != null)
+				return fill(Float.parseFloat(value));
+			if (name.equals("identity") && value == null)
+				return identity();
+			if (name.equals("random") && value != null)
+				return random(Long.parseLong(value));
+		} catch (NumberFormatException e) {
+		}
+		throw new IllegalArgumentException("Unknown block source: " + source);
+	}
+
+	/**
+	 * Returns a pooled block with the values of this source.
+	 */
+	Content generate(Block block) {
+		Content content = Content.acquireUninitialized(block);
+		generate(content);
+		return content;
+	}
+
+	abstract void generate(Content content);
+
+	public String toString() {
+		return _name;
+	}
+
+	private static class Fill extends BlockSource {
+		private final float _value;
+
+		Fill(float value) {
+			super("fill:" + value);
+			_value = value;
+		}
+
+		@Override
+		void generate(Content content) {
+			content.fill(_value);
+		}
+	}
+
+	private static class Identity extends BlockSource {
+		Identity() {
+			super("identity");
+		}
+
+		@Override
+		void generate(Content content) {
+			content.identity();
+		}
+	}
+
+	private static class Random extends BlockSource {
+		private final long _seed;
+
+		Random(long seed) {
+			super("random:" + seed);
+			_seed = seed;
+		}
+
+		@Override
+		void generate(Content content) {
+			content.randomize(_seed);
+		}
+	}
+}
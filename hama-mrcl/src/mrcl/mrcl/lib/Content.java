@@ -1,5 +1,8 @@
 package mrcl.lib;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
@@ -8,177 +11,840 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
 import java.util.Random;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Writable;
 
 /**
  * Contains the actual content of a matrix as byte/float buffer representation.
+ *
+ * Blocks created by {@link #acquire}, {@link #add}, {@link #reduce} and the
+ * read methods use pooled buffers; {@link #release()} hands them back.
+ * With mrcl.local.mmap, local blocks are memory-mapped files instead.
+ *
+ * Only the inner rows x inner cols of a block are stored, row by row, so
+ * edge blocks are smaller than the block size of their matrix. The
+ * serialized form starts with a header of {@link #HEADER_SIZE} bytes: MAGIC
+ * as int, VERSION, the {@link BlockCodec} id, the layout (dense floats,
+ * sparse floats or dense doubles) and the {@link BlockPrecision} id as
+ * bytes, and rows and cols as ints. Remote blocks are written with the codec
+ * of mrcl.block.codec and the precision of mrcl.block.precision; local
+ * blocks are always uncompressed fp32.
+ *
+ * Blocks of {@link ElementType#DOUBLE} matrices hold doubles, which are
+ * accessed through {@link #getDoubleBuffer()} instead of
+ * {@link #getFloatBuffer()}. They are always dense and stored unconverted,
+ * so they never lose precision on the way; their precision byte is 0.
+ * Version 2 blocks had no double layout and marked dense doubles with
+ * precision 3 instead; they are still read.
+ *
+ * Remote blocks that are mostly zero are written as a {@link SparseBlock} and
+ * stay sparse when they are read, so that the multipliers can skip the zeros.
+ * Every other method converts a sparse block to the dense form first.
  */
 public class Content implements Writable {
+	public static final int MAGIC = 0x4d52434c; // "MRCL"
+	public static final int VERSION = 3;
+	public static final int HEADER_SIZE = 16;
+	private static final int DENSE = 0;
+	private static final int SPARSE = 1;
+	private static final int DOUBLE = 2;
+	private static final int V2_DOUBLE_PRECISION = 3;
+
 	private ByteBuffer _byteBuffer;
 	private FloatBuffer _floatBuffer;
+	private DoubleBuffer _doubleBuffer;
+	private ElementType _elementType;
+	private SparseBlock _sparse;
 	private Block _block;
+	private int _rows;
+	private int _cols;
+	private boolean _pooled;
+	private boolean _mapped;
+
+	/**
+	 * Whether local blocks are memory-mapped instead of read into heap
+	 * buffers. Example: -Dmrcl.local.mmap=true
+	 */
+	private static boolean _localMapped = Boolean.getBoolean("mrcl.local.mmap");
 
 	public Content(Block block) {
+		this(block, ByteBuffer.allocate(bytes(block)), false, false);
+	}
+
+	/**
+	 * For {@link ShuffledBlock}, which deserializes shuffled blocks with
+	 * {@link #readFields}. The block is unknown, so the content can only be
+	 * read, accumulated and written again.
+	 */
+	Content() {
+		_elementType = ElementType.FLOAT;
+	}
+
+	private Content(Block block, ByteBuffer byteBuffer, boolean pooled,
+			boolean mapped) {
 		_block = block;
-		_byteBuffer = ByteBuffer.allocate(Block.BLOCK_SIZE * Block.BLOCK_SIZE * 4);
-		_byteBuffer.rewind();
-		_floatBuffer = _byteBuffer.asFloatBuffer();
-		_floatBuffer.rewind();
+		_rows = block.getInnerRows();
+		_cols = block.getInnerCols();
+		_elementType = block.getElementType();
+		setBuffer(byteBuffer);
+		_pooled = pooled;
+		_mapped = mapped;
+	}
+
+	private Content(Block block, SparseBlock sparse) {
+		_block = block;
+		_elementType = ElementType.FLOAT;
+		_rows = sparse.getRows();
+		_cols = sparse.getCols();
+		_sparse = sparse;
+	}
+
+	public static boolean isLocalMapped() {
+		return _localMapped;
+	}
+
+	public static void setLocalMapped(boolean localMapped) {
+		_localMapped = localMapped;
 	}
 
 	public static Content make(Block block) {
 		return new Content(block);
 	}
 
+	/**
+	 * Returns the size of the data of a block in bytes.
+	 */
+	static int bytes(Block block) {
+		return block.getInnerRows() * block.getInnerCols()
+				* block.getElementType().getBytes();
+	}
+
+	/**
+	 * Uses byteBuffer for the values, with a view of the element type.
+	 */
+	private void setBuffer(ByteBuffer byteBuffer) {
+		_byteBuffer = byteBuffer;
+		_byteBuffer.rewind();
+		_floatBuffer = null;
+		_doubleBuffer = null;
+		if (_elementType == ElementType.DOUBLE)
+			_doubleBuffer = _byteBuffer.asDoubleBuffer();
+		else
+			_floatBuffer = _byteBuffer.asFloatBuffer();
+	}
+
+	/**
+	 * Returns a zero-filled block whose buffer comes from {@link ContentPool}.
+	 * Call {@link #release()} when it is no longer used.
+	 */
+	public static Content acquire(Block block) {
+		Content content = acquireUninitialized(block);
+		Arrays.fill(content._byteBuffer.array(), (byte) 0);
+		return content;
+	}
+
+	/**
+	 * Same as {@link #acquire(Block)} for callers that overwrite the whole
+	 * buffer.
+	 */
+	static Content acquireUninitialized(Block block) {
+		return new Content(block, ContentPool.get().acquire(bytes(block)),
+				true, false);
+	}
+
+	/**
+	 * Returns a zero-filled block that will be written with
+	 * {@link #writeLocal()}. In mapped mode the block file is created (or
+	 * truncated) right away with its header, and the data after the header is
+	 * mapped read-write, so every update goes straight to the page cache and
+	 * writeLocal() copies nothing.
+	 */
+	public static Content createLocal(Block block) {
+		if (!_localMapped)
+			return acquire(block);
+		try {
+			File f = new File(block.getBlockPath());
+			File p = f.getParentFile();
+			if (!p.exists())
+				p.mkdirs();
+			int bytes = bytes(block);
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			raf.setLength(0);
+			writeHeader(raf, BlockCodec.NONE,
+					block.getElementType() == ElementType.DOUBLE ? DOUBLE : DENSE,
+					BlockPrecision.FP32, block.getInnerRows(), block
+							.getInnerCols());
+			raf.setLength(HEADER_SIZE + bytes);
+			MappedByteBuffer buffer = raf.getChannel().map(MapMode.READ_WRITE,
+					HEADER_SIZE, bytes);
+			raf.close();
+			return new Content(block, buffer, false, true);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns a copy with a pooled buffer, e.g. to keep a value of a reduce
+	 * iterator, which reuses its objects. A sparse block shares its
+	 * immutable {@link SparseBlock}.
+	 */
+	public Content copy() {
+		Content copy = new Content();
+		copy._block = _block;
+		copy._rows = _rows;
+		copy._cols = _cols;
+		copy._elementType = _elementType;
+		copy._pooled = true;
+		SparseBlock sparse = getSparse();
+		if (sparse != null) {
+			copy._sparse = sparse;
+			return copy;
+		}
+		ByteBuffer source = _byteBuffer.duplicate();
+		source.rewind();
+		ByteBuffer buffer = ContentPool.get().acquire(source.remaining());
+		buffer.put(source);
+		copy.setBuffer(buffer);
+		return copy;
+	}
+
+	/**
+	 * Returns the buffer to the pool if it came from there. The content must
+	 * not be used afterwards.
+	 */
+	public void release() {
+		if (_pooled && _byteBuffer != null)
+			ContentPool.get().release(_byteBuffer);
+		_byteBuffer = null;
+		_floatBuffer = null;
+		_doubleBuffer = null;
+		_sparse = null;
+	}
+
+	/**
+	 * Returns the sparse form of the block, or null if it is dense.
+	 */
+	public synchronized SparseBlock getSparse() {
+		return _sparse;
+	}
+
+	public boolean isSparse() {
+		return getSparse() != null;
+	}
+
+	/**
+	 * Replaces the sparse form by a dense buffer.
+	 */
+	private synchronized void densify() {
+		if (_sparse == null)
+			return;
+		int bytes = _rows * _cols * 4;
+		setBuffer(_pooled ? ContentPool.get().acquire(bytes) : ByteBuffer
+				.allocate(bytes));
+		_sparse.toDense(_floatBuffer);
+		_sparse = null;
+	}
+
+	/**
+	 * Returns the memory held by the block data in bytes.
+	 */
+	synchronized int getMemoryBytes() {
+		return _sparse != null ? _sparse.getBytes() : _byteBuffer.capacity();
+	}
+
+	public int getRows() {
+		return _rows;
+	}
+
+	public int getCols() {
+		return _cols;
+	}
+
+	public ElementType getElementType() {
+		return _elementType;
+	}
+
+	public boolean isDouble() {
+		return _elementType == ElementType.DOUBLE;
+	}
+
 	public void fill(float fillValue) {
-		int rows = _block.getInnerRows();
-		int cols = _block.getInnerCols();
-		for (int row = 0; row < rows; row++) {
-			for (int col = 0; col < cols; col++) {
-				_floatBuffer.position(row * Block.BLOCK_SIZE + col);
-				_floatBuffer.put(fillValue);
-			}
+		densify();
+		for (int i = 0; i < _rows * _cols; i++) {
+			if (_doubleBuffer != null)
+				_doubleBuffer.put(i, fillValue);
+			else
+				_floatBuffer.put(i, fillValue);
 		}
-		_floatBuffer.rewind();
 	}
 
+	/**
+	 * Sets random values that depend only on seed and the position of the
+	 * block, so every block of a matrix gets its own values whatever the
+	 * block shape.
+	 */
 	public void randomize(long seed) {
-		Random r = new Random(seed + Block.BLOCK_SIZE * _block.getBlockRow()
-				+ _block.getBlockCol());
-		int rows = _block.getInnerRows();
-		int cols = _block.getInnerCols();
-		for (int row = 0; row < rows; row++) {
-			for (int col = 0; col < cols; col++) {
-				_floatBuffer.position(row * Block.BLOCK_SIZE + col);
-				_floatBuffer.put(r.nextFloat());
-			}
+		Random r = new Random(mix(seed, _block.getBlockRow(), _block
+				.getBlockCol()));
+		densify();
+		for (int i = 0; i < _rows * _cols; i++) {
+			if (_doubleBuffer != null)
+				_doubleBuffer.put(i, r.nextDouble());
+			else
+				_floatBuffer.put(i, r.nextFloat());
 		}
-		_floatBuffer.rewind();
 	}
 
+	/**
+	 * Returns a 64-bit hash of a seed and a block position, the SplitMix64
+	 * finalizer of seed times the golden ratio plus the position. Positions
+	 * of one seed never collide.
+	 */
+	static long mix(long seed, int blockRow, int blockCol) {
+		long h = seed * 0x9e3779b97f4a7c15L
+				+ ((long) blockRow << 32 | blockCol & 0xffffffffL);
+		h = (h ^ h >>> 30) * 0xbf58476d1ce4e5b9L;
+		h = (h ^ h >>> 27) * 0x94d049bb133111ebL;
+		return h ^ h >>> 31;
+	}
+
+	/**
+	 * Blocks of virtual matrices are never read from files, so writing one
+	 * would be lost.
+	 */
+	private void checkStored() {
+		if (_block != null && _block.getSource() != null)
+			throw new IllegalStateException("Cannot write "
+					+ _block.getBlockPath() + " of a virtual matrix ("
+					+ _block.getSource() + ")");
+	}
+
+	/**
+	 * Sets the block to its part of the identity matrix.
+	 */
+	public void identity() {
+		fill(0);
+		for (int row = 0; row < _rows; row++) {
+			int col = _block.getRowOffset() + row - _block.getColOffset();
+			if (col < 0 || col >= _cols)
+				continue;
+			if (_doubleBuffer != null)
+				_doubleBuffer.put(row * _cols + col, 1);
+			else
+				_floatBuffer.put(row * _cols + col, 1);
+		}
+	}
+
+	/**
+	 * Writes the block to its local file. Mapped blocks already live in
+	 * their file, so there is nothing left to write.
+	 */
 	public void writeLocal() {
+		checkStored();
+		if (_mapped)
+			return;
 		try {
 			File f = new File(_block.getBlockPath());
 			File p = f.getParentFile();
 			if (!p.exists())
 				p.mkdirs();
-			System.out.println(f.getAbsolutePath());
-			if (!f.exists())
-				f.createNewFile();
-			FileOutputStream fos = new FileOutputStream(f);
-			FileChannel fc = fos.getChannel();
-			// fc.position(0);
-			fc.write(_byteBuffer);
-			fc.close();
-			fos.close();
+			DataOutputStream dos = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(f)));
+			writeBlock(dos, BlockCodec.NONE, BlockPrecision.FP32, null);
+			dos.close();
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 
 	public float[] getRow(int row) {
-		float[] ret = new float[_block.getInnerCols()];
-		_floatBuffer.position(Block.BLOCK_SIZE * row);
-		_floatBuffer.get(ret);
-		_floatBuffer.rewind();
+		FloatBuffer source = getFloatBuffer().duplicate();
+		float[] ret = new float[_cols];
+		source.position(_cols * row);
+		source.get(ret);
+		return ret;
+	}
+
+	/**
+	 * Returns a row of a float or double block as doubles.
+	 */
+	public double[] getDoubleRow(int row) {
+		double[] ret = new double[_cols];
+		if (_elementType == ElementType.DOUBLE) {
+			DoubleBuffer source = _doubleBuffer.duplicate();
+			source.position(_cols * row);
+			source.get(ret);
+			return ret;
+		}
+		FloatBuffer source = getFloatBuffer();
+		for (int col = 0; col < _cols; col++)
+			ret[col] = source.get(_cols * row + col);
 		return ret;
 	}
 	
 	public FloatBuffer getFloatBuffer() {
+		if (_elementType != ElementType.FLOAT)
+			throw new IllegalStateException("Block of " + _elementType
+					+ " values has no float buffer");
+		densify();
 		return _floatBuffer;
 	}
+
+	public DoubleBuffer getDoubleBuffer() {
+		if (_elementType != ElementType.DOUBLE)
+			throw new IllegalStateException("Block of " + _elementType
+					+ " values has no double buffer");
+		return _doubleBuffer;
+	}
 	
 	public ByteBuffer getByteBuffer() {
+		densify();
 		return _byteBuffer;
 	}
 
 	public static Content add(Block block, Content a, Content b) {
-		Content content = new Content(block);
-		int blockSizeSquared = Block.BLOCK_SIZE * Block.BLOCK_SIZE;
-		for (int i = 0; i < blockSizeSquared; i++) {
-			content._floatBuffer.put(i, a._floatBuffer.get(i)
-					+ b._floatBuffer.get(i));
-		}
+		long start = System.nanoTime();
+		Content content = acquireUninitialized(block);
+		checkExtent(content, a);
+		checkExtent(content, b);
+		if (content.isDouble())
+			ContentKernels.get().addDouble(a.getByteBuffer(),
+					b.getByteBuffer(), content._byteBuffer, a._rows * a._cols);
+		else
+			ContentKernels.get().add(a.getByteBuffer(), b.getByteBuffer(),
+					content._byteBuffer, a._rows * a._cols);
+		TaskMetrics.add(System.nanoTime() - start);
 		return content;
 	}
 
+	/**
+	 * Adds other to this block in place. Only the non-zeros of a sparse
+	 * block are visited.
+	 */
+	public void accumulate(Content other) {
+		long start = System.nanoTime();
+		accumulateInto(other);
+		TaskMetrics.add(System.nanoTime() - start);
+	}
+
+	private void accumulateInto(Content other) {
+		checkExtent(this, other);
+		ByteBuffer target = getByteBuffer();
+		SparseBlock sparse = other.getSparse();
+		if (isDouble()) {
+			ContentKernels.get().addDouble(target, other.getByteBuffer(), target,
+					_rows * _cols);
+			return;
+		}
+		if (sparse == null) {
+			ContentKernels.get().add(target, other.getByteBuffer(), target,
+					_rows * _cols);
+			return;
+		}
+		int[] rowStart = sparse.getRowStart();
+		int[] colIndex = sparse.getColIndex();
+		float[] values = sparse.getValues();
+		for (int i = 0; i < _rows; i++) {
+			for (int idx = rowStart[i]; idx < rowStart[i + 1]; idx++) {
+				int at = i * _cols + colIndex[idx];
+				_floatBuffer.put(at, _floatBuffer.get(at) + values[idx]);
+			}
+		}
+	}
+
+	private static void checkExtent(Content x, Content y) {
+		if (x._rows != y._rows || x._cols != y._cols)
+			throw new IllegalArgumentException("Block sizes differ: " + x._rows
+					+ "x" + x._cols + " and " + y._rows + "x" + y._cols);
+		if (x._elementType != y._elementType)
+			throw new IllegalArgumentException("Element types differ: "
+					+ x._elementType + " and " + y._elementType);
+	}
+
 	public static Content reduce(Matrix matrix, Content a, Content b) {
 		Block block = new Block(matrix, a._block.getBlockRow(), a._block
 				.getBlockCol());
-		Content content = new Content(block);
-		int blockSizeSquared = Block.BLOCK_SIZE * Block.BLOCK_SIZE;
-		for (int i = 0; i < blockSizeSquared; i++) {
-			content._floatBuffer.put(i, a._floatBuffer.get(i)
-					- b._floatBuffer.get(i));
-		}
+		Content content = acquireUninitialized(block);
+		checkExtent(content, a);
+		checkExtent(content, b);
+		if (content.isDouble())
+			ContentKernels.get().subtractDouble(a.getByteBuffer(),
+					b.getByteBuffer(), content._byteBuffer, a._rows * a._cols);
+		else
+			ContentKernels.get().subtract(a.getByteBuffer(), b.getByteBuffer(),
+					content._byteBuffer, a._rows * a._cols);
 		return content;
 	}
 
+	/**
+	 * Reads a block with its header. If the header has a different size than
+	 * the current buffer, a buffer of the new size is taken.
+	 */
 	@Override
 	public void readFields(DataInput input) throws IOException {
-		input.readFully(_byteBuffer.array());
+		int version = readHeader(input);
+		BlockCodec codec = BlockCodec.forId(input.readUnsignedByte());
+		int layout = input.readUnsignedByte();
+		int precisionId = input.readUnsignedByte();
+		layout = getLayout(version, layout, precisionId);
+		int rows = input.readInt();
+		int cols = input.readInt();
+		if (layout == DOUBLE) {
+			readDense(input, codec, BlockPrecision.FP32, ElementType.DOUBLE,
+					rows, cols);
+			return;
+		}
+		BlockPrecision precision = BlockPrecision.forId(precisionId);
+		if (layout == SPARSE) {
+			int nnz = input.readInt();
+			byte[] data = new byte[SparseBlock.bytes(rows, nnz, precision)];
+			codec.read(input, data, 0, data.length, precision.getBytes());
+			synchronized (this) {
+				if (_pooled && _byteBuffer != null)
+					ContentPool.get().release(_byteBuffer);
+				_byteBuffer = null;
+				_floatBuffer = null;
+				_doubleBuffer = null;
+				_elementType = ElementType.FLOAT;
+				_sparse = SparseBlock.fromBytes(rows, cols, nnz, precision, data);
+			}
+			_rows = rows;
+			_cols = cols;
+			return;
+		}
+		if (layout != DENSE)
+			throw new IOException("Unknown block layout " + layout);
+		readDense(input, codec, precision, ElementType.FLOAT, rows, cols);
+	}
+
+	/**
+	 * Reads dense values into the buffer. Floats stored at another precision
+	 * than fp32 are converted; doubles are read as fp32 is, unconverted.
+	 */
+	private void readDense(DataInput input, BlockCodec codec,
+			BlockPrecision precision, ElementType elementType, int rows, int cols)
+			throws IOException {
+		synchronized (this) {
+			_sparse = null;
+		}
+		int bytes = rows * cols * elementType.getBytes();
+		if (_byteBuffer == null || _byteBuffer.capacity() != bytes) {
+			if (_pooled && _byteBuffer != null)
+				ContentPool.get().release(_byteBuffer);
+			_byteBuffer = _pooled ? ContentPool.get().acquire(bytes) : ByteBuffer
+					.allocate(bytes);
+		}
+		_elementType = elementType;
+		setBuffer(_byteBuffer);
+		_rows = rows;
+		_cols = cols;
+		if (precision == BlockPrecision.FP32) {
+			codec.read(input, _byteBuffer.array(), _byteBuffer.arrayOffset(),
+					bytes, elementType.getBytes());
+			return;
+		}
+		byte[] data = new byte[rows * cols * precision.getBytes()];
+		codec.read(input, data, 0, data.length, precision.getBytes());
+		precision.decode(data, 0, _floatBuffer, rows * cols);
 	}
 
+	/**
+	 * Reads and checks MAGIC, and returns the version.
+	 */
+	private static int readHeader(DataInput input) throws IOException {
+		int magic = input.readInt();
+		if (magic != MAGIC)
+			throw new IOException("Not a block: bad magic "
+					+ Integer.toHexString(magic));
+		int version = input.readUnsignedByte();
+		if (version != VERSION && version != 2)
+			throw new IOException("Unsupported block version " + version);
+		return version;
+	}
+
+	/**
+	 * Returns the layout of a block from its header bytes.
+	 */
+	private static int getLayout(int version, int layout, int precisionId) {
+		if (version == 2 && layout == DENSE
+				&& precisionId == V2_DOUBLE_PRECISION)
+			return DOUBLE;
+		return layout;
+	}
+
+	private static void writeHeader(DataOutput output, BlockCodec codec,
+			int layout, BlockPrecision precision, int rows, int cols)
+			throws IOException {
+		output.writeInt(MAGIC);
+		output.writeByte(VERSION);
+		output.writeByte(codec.getId());
+		output.writeByte(layout);
+		output.writeByte(precision.getId());
+		output.writeInt(rows);
+		output.writeInt(cols);
+	}
+
+	/**
+	 * Makes sure that a block read from a file has the extent of its Block.
+	 */
+	private void checkBlock() throws IOException {
+		if (_rows != _block.getInnerRows() || _cols != _block.getInnerCols()
+				|| _elementType != _block.getElementType())
+			throw new IOException(_block.getBlockPath() + " has " + _rows + "x"
+					+ _cols + " " + _elementType + " values, expected "
+					+ _block.getInnerRows() + "x" + _block.getInnerCols() + " "
+					+ _block.getElementType());
+	}
+
+	/**
+	 * Writes the block uncompressed, keeping its layout.
+	 */
 	@Override
 	public void write(DataOutput output) throws IOException {
-		output.write(_byteBuffer.array());
+		write(output, BlockCodec.NONE);
+	}
+
+	/**
+	 * Writes the block with the given codec, keeping its layout.
+	 */
+	public void write(DataOutput output, BlockCodec codec) throws IOException {
+		writeBlock(output, codec, BlockPrecision.FP32, getSparse());
+	}
+
+	public void write(DataOutput output, BlockCodec codec,
+			float sparseThreshold) throws IOException {
+		write(output, codec, BlockPrecision.FP32, sparseThreshold);
+	}
+
+	/**
+	 * Writes the block with the given codec and precision, sparse if less
+	 * than sparseThreshold of its values are non-zero and dense otherwise.
+	 * Double blocks are always written dense and unconverted.
+	 */
+	public void write(DataOutput output, BlockCodec codec,
+			BlockPrecision precision, float sparseThreshold) throws IOException {
+		if (isDouble()) {
+			writeBlock(output, codec, precision, null);
+			return;
+		}
+		SparseBlock sparse = getSparse();
+		if (sparse == null)
+			sparse = SparseBlock.fromDense(getFloatBuffer(), _rows, _cols,
+					sparseThreshold);
+		else if (sparse.getNonZeros() >= sparseThreshold * _rows * _cols)
+			sparse = null;
+		writeBlock(output, codec, precision, sparse);
+	}
+
+	/**
+	 * Writes sparse if it is not null and the dense data otherwise. Doubles
+	 * ignore precision.
+	 */
+	private void writeBlock(DataOutput output, BlockCodec codec,
+			BlockPrecision precision, SparseBlock sparse) throws IOException {
+		if (isDouble()) {
+			precision = BlockPrecision.FP32;
+			writeHeader(output, codec, DOUBLE, precision, _rows, _cols);
+		} else {
+			writeHeader(output, codec, sparse == null ? DENSE : SPARSE,
+					precision, _rows, _cols);
+		}
+		if (sparse != null) {
+			output.writeInt(sparse.getNonZeros());
+			byte[] data = sparse.toBytes(precision);
+			codec.write(output, data, 0, data.length, precision.getBytes());
+			return;
+		}
+		densify();
+		if (precision != BlockPrecision.FP32) {
+			byte[] data = precision.encode(_floatBuffer, _rows * _cols);
+			codec.write(output, data, 0, data.length, precision.getBytes());
+			return;
+		}
+		int width = _elementType.getBytes();
+		if (_byteBuffer.hasArray()) {
+			codec.write(output, _byteBuffer.array(), _byteBuffer.arrayOffset(),
+					_byteBuffer.capacity(), width);
+			return;
+		}
+		// Mapped blocks have no backing array; copy them out in chunks, or
+		// as a whole if they are compressed.
+		ByteBuffer source = _byteBuffer.duplicate();
+		source.rewind();
+		if (codec != BlockCodec.NONE) {
+			byte[] data = new byte[source.remaining()];
+			source.get(data);
+			codec.write(output, data, 0, data.length, width);
+			return;
+		}
+		byte[] chunk = new byte[Math.min(source.remaining(), 64 * 1024)];
+		while (source.hasRemaining()) {
+			int length = Math.min(chunk.length, source.remaining());
+			source.get(chunk, 0, length);
+			output.write(chunk, 0, length);
+		}
 	}
 
 	public void writeRemote(Configuration conf) {
+		checkStored();
+		if (_block.getMatrix().isPacked())
+			throw new IllegalStateException(_block.getMatrix().getName()
+					+ " is packed; write its blocks with a PackedMatrix.Writer");
+		// The FileSystem instance is shared and cached by Hadoop, so it is
+		// left open for other threads reading and writing blocks.
 		try {
+			long start = System.nanoTime();
 			FileSystem fs = FileSystem.get(conf);
 			Path p = new Path(_block.getBlockPath());
 			if (!fs.exists(p.getParent()))
 				fs.mkdirs(p.getParent());
 			DataOutputStream dos = fs.create(p);
-			
-			write(dos);
+			writeRemote(dos, conf);
 			dos.close();
-			fs.close();
+			_block.getMatrix().clearBlockTime(_block);
+			TaskMetrics.write(dos.size(), System.nanoTime() - start);
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Writes the block like {@link #writeRemote(Configuration)} into output.
+	 */
+	void writeRemote(DataOutput output, Configuration conf) throws IOException {
+		write(output, BlockCodec.get(conf), BlockPrecision.get(conf), conf
+				.getFloat(SparseBlock.THRESHOLD, SparseBlock.DEFAULT_THRESHOLD));
+	}
+
+	/**
+	 * Reads a local block. In mapped mode the file is mapped read-only
+	 * instead, and the block must not be modified.
+	 */
 	public static Content readLocal(Block block) {
+		if (block.getSource() != null)
+			return block.getSource().generate(block);
+		if (_localMapped)
+			return mapLocal(block);
+		try {
+			Content content = acquireUninitialized(block);
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(block.getBlockPath())));
+			content.readFields(dis);
+			dis.close();
+			content.checkBlock();
+			return content;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static Content mapLocal(Block block) {
 		try {
-			Content content = new Content(block);
-			FileInputStream fis = new FileInputStream(content._block
-					.getBlockPath());
-			FileChannel fc = fis.getChannel();
-			content._byteBuffer = ByteBuffer.allocate(Block.BLOCK_SIZE * Block.BLOCK_SIZE * 4);
-			fc.read(content._byteBuffer);
-			content._byteBuffer.rewind();
-			content._floatBuffer = content._byteBuffer.asFloatBuffer();
-			content._floatBuffer.rewind();
-			fc.close();
-			fis.close();
+			RandomAccessFile raf = new RandomAccessFile(block.getBlockPath(), "r");
+			int version = readHeader(raf);
+			int codec = raf.readUnsignedByte();
+			int layout = raf.readUnsignedByte();
+			int precisionId = raf.readUnsignedByte();
+			layout = getLayout(version, layout, precisionId);
+			boolean plain = block.getElementType() == ElementType.DOUBLE
+					? layout == DOUBLE
+					: layout == DENSE && precisionId == BlockPrecision.FP32.getId();
+			if (codec != BlockCodec.NONE.getId() || !plain)
+				throw new IOException(block.getBlockPath()
+						+ " is not a plain dense block and cannot be mapped");
+			int rows = raf.readInt();
+			int cols = raf.readInt();
+			MappedByteBuffer buffer = raf.getChannel().map(MapMode.READ_ONLY,
+					HEADER_SIZE, (long) rows * cols
+							* block.getElementType().getBytes());
+			raf.close();
+			Content content = new Content(block, buffer, false, true);
+			content._rows = rows;
+			content._cols = cols;
+			content.checkBlock();
 			return content;
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Reads a remote block through the per-JVM {@link BlockCache}. The
+	 * returned block is read-only because its data is shared with the cache;
+	 * releasing it does not return the buffer to the pool.
+	 */
+	public static Content readRemoteCached(Block block, Configuration conf) {
+		BlockCache cache = BlockCache.get();
+		if (!cache.isEnabled() || block.getSource() != null)
+			return readRemote(block, conf);
+		try {
+			FileSystem fs = FileSystem.get(conf);
+			Path path = fs.makeQualified(new Path(block.getBlockPath()));
+			boolean packed = block.getMatrix().isPacked();
+			String key = packed ? PackedMatrix.getKey(block, conf) : BlockCache
+					.key(path.toString(), block.getMatrix().getBlockTime(block, fs));
+			Content content = cache.get(key);
+			if (content == null) {
+				content = new Content(block);
+				readRemote(content, conf);
+				cache.put(key, content);
+			}
+			// A sparse view densifies into its own buffer if it has to.
+			SparseBlock sparse = content.getSparse();
+			if (sparse != null)
+				return new Content(block, sparse);
+			return new Content(block, content._byteBuffer.asReadOnlyBuffer(),
+					false, false);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public static Content readRemote(Block block, Configuration conf) {
+		if (block.getSource() != null)
+			return block.getSource().generate(block);
 		try {
-			Content content = new Content(block);
-			FileSystem fs;
-			fs = FileSystem.get(conf);
-			DataInputStream dis = fs.open(new Path(block.getBlockPath()));
-			content.readFields(dis);
-			dis.close();
-			fs.close();
+			Content content = acquireUninitialized(block);
+			readRemote(content, conf);
 			return content;
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
+
+	/**
+	 * Reads the remote block of content, from its file or its packed part.
+	 */
+	private static void readRemote(Content content, Configuration conf)
+			throws IOException {
+		long start = System.nanoTime();
+		Block block = content._block;
+		long bytes;
+		if (block.getMatrix().isPacked()) {
+			byte[] data = PackedMatrix.read(block, conf);
+			content.readFields(new DataInputStream(new ByteArrayInputStream(data)));
+			bytes = data.length;
+		} else {
+			FSDataInputStream in = FileSystem.get(conf).open(
+					new Path(block.getBlockPath()));
+			content.readFields(in);
+			bytes = in.getPos();
+			in.close();
+		}
+		content.checkBlock();
+		TaskMetrics.read(bytes, System.nanoTime() - start);
+	}
 }
\ No newline at end of file
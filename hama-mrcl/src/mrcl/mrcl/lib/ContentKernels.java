@@ -0,0 +1,81 @@
+package mrcl.lib;
+
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Elementwise kernels over the float data of {@link Content} buffers.
+ *
+ * The Vector API implementation is loaded reflectively so that this class
+ * still works on JVMs without the jdk.incubator.vector module; in that case,
+ * or when -Dmrcl.vector.disable=true is given, the scalar loops are used.
+ */
+public abstract class ContentKernels {
+	private static final Log LOG = LogFactory.getLog(ContentKernels.class);
+	private static final ContentKernels INSTANCE = load();
+
+	public static ContentKernels get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * out[i] = a[i] + b[i] for the first length floats of each buffer.
+	 */
+	public abstract void add(ByteBuffer a, ByteBuffer b, ByteBuffer out,
+			int length);
+
+	/**
+	 * out[i] = a[i] - b[i] for the first length floats of each buffer.
+	 */
+	public abstract void subtract(ByteBuffer a, ByteBuffer b, ByteBuffer out,
+			int length);
+
+	/**
+	 * out[i] = a[i] + b[i] for the first length doubles of each buffer.
+	 */
+	public void addDouble(ByteBuffer a, ByteBuffer b, ByteBuffer out,
+			int length) {
+		for (int i = 0; i < length * 8; i += 8)
+			out.putDouble(i, a.getDouble(i) + b.getDouble(i));
+	}
+
+	/**
+	 * out[i] = a[i] - b[i] for the first length doubles of each buffer.
+	 */
+	public void subtractDouble(ByteBuffer a, ByteBuffer b, ByteBuffer out,
+			int length) {
+		for (int i = 0; i < length * 8; i += 8)
+			out.putDouble(i, a.getDouble(i) - b.getDouble(i));
+	}
+
+	private static ContentKernels load() {
+		if (Boolean.getBoolean("mrcl.vector.disable"))
+			return new Scalar();
+		try {
+			return (ContentKernels) Class.forName(
+					"mrcl.lib.VectorApiContentKernels").newInstance();
+		} catch (Exception e) {
+			LOG.info("Vector API kernels are not available, using scalar ones: " + e);
+		} catch (LinkageError e) {
+			LOG.info("Vector API kernels are not available, using scalar ones: " + e);
+		}
+		return new Scalar();
+	}
+
+	static class Scalar extends ContentKernels {
+		@Override
+		public void add(ByteBuffer a, ByteBuffer b, ByteBuffer out, int length) {
+			for (int i = 0; i < length * 4; i += 4)
+				out.putFloat(i, a.getFloat(i) + b.getFloat(i));
+		}
+
+		@Override
+		public void subtract(ByteBuffer a, ByteBuffer b, ByteBuffer out,
+				int length) {
+			for (int i = 0; i < length * 4; i += 4)
+				out.putFloat(i, a.getFloat(i) - b.getFloat(i));
+		}
+	}
+}
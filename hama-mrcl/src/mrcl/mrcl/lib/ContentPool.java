@@ -0,0 +1,79 @@
+package mrcl.lib;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A bounded per-JVM pool of block buffers, keyed by their size in bytes.
+ *
+ * {@link Content#acquire} and {@link Content#release} take buffers from and
+ * return them to this pool. At most mrcl.pool.buffers free buffers are kept
+ * per size; buffers released beyond that are left to the garbage collector,
+ * and buffers that are never released are simply not reused.
+ */
+public class ContentPool {
+	public static final String CAPACITY = "mrcl.pool.buffers";
+	public static final int DEFAULT_CAPACITY = 16;
+
+	private static final ContentPool INSTANCE = new ContentPool();
+
+	private final Map<Integer, Deque<ByteBuffer>> _free = new HashMap<Integer, Deque<ByteBuffer>>();
+	private int _capacity = DEFAULT_CAPACITY;
+	private long _allocated;
+	private long _reused;
+
+	public static ContentPool get() {
+		return INSTANCE;
+	}
+
+	public synchronized void configure(Configuration conf) {
+		setCapacity(conf.getInt(CAPACITY, DEFAULT_CAPACITY));
+	}
+
+	public synchronized void setCapacity(int capacity) {
+		_capacity = capacity;
+		for (Deque<ByteBuffer> buffers : _free.values()) {
+			while (buffers.size() > capacity)
+				buffers.pop();
+		}
+	}
+
+	/**
+	 * Returns a buffer of the given size. Its content is undefined.
+	 */
+	public synchronized ByteBuffer acquire(int bytes) {
+		Deque<ByteBuffer> buffers = _free.get(bytes);
+		if (buffers != null && !buffers.isEmpty()) {
+			_reused++;
+			ByteBuffer buffer = buffers.pop();
+			buffer.clear();
+			return buffer;
+		}
+		_allocated++;
+		return ByteBuffer.allocate(bytes);
+	}
+
+	public synchronized void release(ByteBuffer buffer) {
+		int bytes = buffer.capacity();
+		Deque<ByteBuffer> buffers = _free.get(bytes);
+		if (buffers == null) {
+			buffers = new ArrayDeque<ByteBuffer>();
+			_free.put(bytes, buffers);
+		}
+		if (buffers.size() < _capacity)
+			buffers.push(buffer);
+	}
+
+	public synchronized long getAllocated() {
+		return _allocated;
+	}
+
+	public synchronized long getReused() {
+		return _reused;
+	}
+}
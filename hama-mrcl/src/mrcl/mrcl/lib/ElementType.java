@@ -0,0 +1,38 @@
+package mrcl.lib;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * The in-memory type of the values of a matrix. It is recorded in the matrix
+ * descriptor, and all blocks of a matrix hold values of its type. DistMult
+ * creates its inputs with the type of mrcl.element.type. Example:
+ * -Dmrcl.element.type=double
+ */
+public enum ElementType {
+	FLOAT(4), DOUBLE(8);
+
+	public static final String ELEMENT_TYPE = "mrcl.element.type";
+
+	private final int _bytes;
+
+	private ElementType(int bytes) {
+		_bytes = bytes;
+	}
+
+	/**
+	 * Returns the size of one value in bytes.
+	 */
+	public int getBytes() {
+		return _bytes;
+	}
+
+	public static ElementType get(Configuration conf) {
+		String name = conf.get(ELEMENT_TYPE, "float");
+		for (ElementType type : values()) {
+			if (type.name().equalsIgnoreCase(name))
+				return type;
+		}
+		throw new IllegalArgumentException("Unknown " + ELEMENT_TYPE + ": "
+				+ name);
+	}
+}
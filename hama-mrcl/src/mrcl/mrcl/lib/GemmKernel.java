@@ -0,0 +1,18 @@
+package mrcl.lib;
+
+/**
+ * A dense single-precision kernel on row-major float arrays. Backends that
+ * implement it can be used for the leaves of recursive multipliers such as
+ * {@link StrassenMatrixMultiplier}.
+ */
+public interface GemmKernel
+{
+	/**
+	 * Row-major C = alpha * A * B + beta * C, where A is m x k, B is k x n and
+	 * C is m x n. Each operand is addressed by an offset and a leading
+	 * dimension so that sub-matrices can be passed without copying.
+	 */
+	public void gemm(int m, int n, int k, float alpha, float[] a, int aOff,
+			int lda, float[] b, int bOff, int ldb, float beta, float[] c,
+			int cOff, int ldc);
+}
@@ -0,0 +1,68 @@
+package mrcl.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The work of one task of a generation job: the random blocks of the block
+ * rows [rowFrom, rowTo) of a matrix whose descriptor is already written.
+ * Written one per line into the job input, like {@link MultArgs}.
+ */
+public class GenerateArgs {
+	private final String _matrix;
+	private final long _seed;
+	private final int _rowFrom, _rowTo;
+
+	public GenerateArgs(String matrix, long seed, int rowFrom, int rowTo) {
+		if (seed < 0)
+			throw new IllegalArgumentException("Negative seed " + seed + " of "
+					+ matrix);
+		_matrix = matrix;
+		_seed = seed;
+		_rowFrom = rowFrom;
+		_rowTo = rowTo;
+	}
+
+	public GenerateArgs(String string) {
+		String[] words = string.trim().split("-");
+		_matrix = words[0];
+		_seed = Long.parseLong(words[1]);
+		_rowFrom = Integer.parseInt(words[2]);
+		_rowTo = Integer.parseInt(words[3]);
+	}
+
+	/**
+	 * Splits the block rows of matrix into parts ranges that differ in size
+	 * by at most one, leaving out empty ones.
+	 */
+	public static List<GenerateArgs> split(Matrix matrix, long seed, int parts) {
+		int blockRows = matrix.getBlockRows();
+		parts = Math.max(1, Math.min(parts, blockRows));
+		List<GenerateArgs> tasks = new ArrayList<GenerateArgs>();
+		for (int part = 0; part < parts; part++) {
+			tasks.add(new GenerateArgs(matrix.getName(), seed, (int) ((long) part
+					* blockRows / parts), (int) ((long) (part + 1) * blockRows / parts)));
+		}
+		return tasks;
+	}
+
+	public String toString() {
+		return String.format("%s-%d-%d-%d", _matrix, _seed, _rowFrom, _rowTo);
+	}
+
+	public String getMatrix() {
+		return _matrix;
+	}
+
+	public long getSeed() {
+		return _seed;
+	}
+
+	public int getRowFrom() {
+		return _rowFrom;
+	}
+
+	public int getRowTo() {
+		return _rowTo;
+	}
+}
@@ -1,40 +1,57 @@
 package mrcl.lib;
 
-import java.nio.FloatBuffer;
-
 import jcuda.Pointer;
 import jcuda.Sizeof;
 import jcuda.jcublas.JCublas;
 
 /**
  * Performs matrix multiplication with JCublas extension.
+ *
+ * Each call initializes and shuts down CUBLAS, so this backend must not be
+ * used with mrcl.round.threads > 1.
  */
-public class JCublasMatrixMultiplier implements MatrixMultiplier
+public class JCublasMatrixMultiplier extends AbstractMatrixMultiplier
 {
 	public JCublasMatrixMultiplier() {
 	}
 
 	@Override
-	public Content doMultiplication(Block block, Content a, Content b)
+	protected void doMultiplyAddDense(Block block, Content a, Content b,
+			Content c, float alpha, float beta)
+	{
+		float [] aData = toArray(a, 0);
+		float [] bData = toArray(b, 1);
+		float [] cData = beta == 0 ? scratch(2, c.getRows() * c.getCols())
+				: toArray(c, 2);
+		sgemmJCublas(a.getCols(), b.getRows(), a.getRows(), alpha, aData,
+				bData, beta, cData);
+		fromArray(cData, c);
+	}
+
+	@Override
+	protected void doMultiplyAddDouble(Block block, Content a, Content b,
+			Content c, double alpha, double beta)
 	{
-		Content content = new Content(block);
-		float [] aData = new float[Block.BLOCK_SIZE * Block.BLOCK_SIZE];
-		float [] bData = new float[Block.BLOCK_SIZE * Block.BLOCK_SIZE];
-		float [] cData = new float[Block.BLOCK_SIZE * Block.BLOCK_SIZE];
-		FloatBuffer floatBufferA = a.getFloatBuffer();
-		FloatBuffer floatBufferB = b.getFloatBuffer();
-		floatBufferA.rewind();
-		floatBufferA.get(aData);
-		floatBufferB.rewind();
-		floatBufferB.get(bData);
-		sgemmJCublas(Block.BLOCK_SIZE, 1, aData, bData, 0, cData);
-		content.getFloatBuffer().put(cData);
-		return content;
+		double [] aData = toDoubleArray(a, 0);
+		double [] bData = toDoubleArray(b, 1);
+		double [] cData = beta == 0 ? doubleScratch(2, c.getRows()
+				* c.getCols()) : toDoubleArray(c, 2);
+		dgemmJCublas(a.getCols(), b.getRows(), a.getRows(), alpha, aData,
+				bData, beta, cData);
+		fromDoubleArray(cData, c);
 	}
 
 	public static void sgemmJCublas(int n, float alpha, float A[], float B[],
 			float beta, float C[]) {
-		int nn = n * n;
+		sgemmJCublas(n, n, n, alpha, A, B, beta, C);
+	}
+
+	/**
+	 * Column-major C = alpha * A * B + beta * C, where A is m x k, B is k x n
+	 * and C is m x n.
+	 */
+	public static void sgemmJCublas(int m, int n, int k, float alpha,
+			float A[], float B[], float beta, float C[]) {
 
 		// Initialize JCublas
 		JCublas.cublasInit();
@@ -43,21 +60,21 @@ public class JCublasMatrixMultiplier implements MatrixMultiplier
 		Pointer d_A = new Pointer();
 		Pointer d_B = new Pointer();
 		Pointer d_C = new Pointer();
-		JCublas.cublasAlloc(nn, Sizeof.FLOAT, d_A);
-		JCublas.cublasAlloc(nn, Sizeof.FLOAT, d_B);
-		JCublas.cublasAlloc(nn, Sizeof.FLOAT, d_C);
+		JCublas.cublasAlloc(m * k, Sizeof.FLOAT, d_A);
+		JCublas.cublasAlloc(k * n, Sizeof.FLOAT, d_B);
+		JCublas.cublasAlloc(m * n, Sizeof.FLOAT, d_C);
 
 		// Copy the memory from the host to the device
-		JCublas.cublasSetVector(nn, Sizeof.FLOAT, Pointer.to(A), 1, d_A, 1);
-		JCublas.cublasSetVector(nn, Sizeof.FLOAT, Pointer.to(B), 1, d_B, 1);
-		JCublas.cublasSetVector(nn, Sizeof.FLOAT, Pointer.to(C), 1, d_C, 1);
+		JCublas.cublasSetVector(m * k, Sizeof.FLOAT, Pointer.to(A), 1, d_A, 1);
+		JCublas.cublasSetVector(k * n, Sizeof.FLOAT, Pointer.to(B), 1, d_B, 1);
+		JCublas.cublasSetVector(m * n, Sizeof.FLOAT, Pointer.to(C), 1, d_C, 1);
 
 		// Execute sgemm
-		JCublas.cublasSgemm('n', 'n', n, n, n, alpha, d_A, n, d_B, n, beta,
-				d_C, n);
+		JCublas.cublasSgemm('n', 'n', m, n, k, alpha, d_A, m, d_B, k, beta,
+				d_C, m);
 
 		// Copy the result from the device to the host
-		JCublas.cublasGetVector(nn, Sizeof.FLOAT, d_C, 1, Pointer.to(C), 1);
+		JCublas.cublasGetVector(m * n, Sizeof.FLOAT, d_C, 1, Pointer.to(C), 1);
 
 		// Clean up
 		JCublas.cublasFree(d_A);
@@ -66,4 +83,35 @@ public class JCublasMatrixMultiplier implements MatrixMultiplier
 
 		JCublas.cublasShutdown();
 	}
+
+	/**
+	 * Same as {@link #sgemmJCublas(int, int, int, float, float[], float[],
+	 * float, float[])} in double. Needs a device with double support.
+	 */
+	public static void dgemmJCublas(int m, int n, int k, double alpha,
+			double A[], double B[], double beta, double C[]) {
+		JCublas.cublasInit();
+
+		Pointer d_A = new Pointer();
+		Pointer d_B = new Pointer();
+		Pointer d_C = new Pointer();
+		JCublas.cublasAlloc(m * k, Sizeof.DOUBLE, d_A);
+		JCublas.cublasAlloc(k * n, Sizeof.DOUBLE, d_B);
+		JCublas.cublasAlloc(m * n, Sizeof.DOUBLE, d_C);
+
+		JCublas.cublasSetVector(m * k, Sizeof.DOUBLE, Pointer.to(A), 1, d_A, 1);
+		JCublas.cublasSetVector(k * n, Sizeof.DOUBLE, Pointer.to(B), 1, d_B, 1);
+		JCublas.cublasSetVector(m * n, Sizeof.DOUBLE, Pointer.to(C), 1, d_C, 1);
+
+		JCublas.cublasDgemm('n', 'n', m, n, k, alpha, d_A, m, d_B, k, beta,
+				d_C, m);
+
+		JCublas.cublasGetVector(m * n, Sizeof.DOUBLE, d_C, 1, Pointer.to(C), 1);
+
+		JCublas.cublasFree(d_A);
+		JCublas.cublasFree(d_B);
+		JCublas.cublasFree(d_C);
+
+		JCublas.cublasShutdown();
+	}
 }
@@ -1,33 +1,69 @@
 package mrcl.lib;
 
+import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
 
 /**
  * Performs matrix multiplication with pure Java code.
  */
-public class JavaMatrixMultiplier implements MatrixMultiplier
+public class JavaMatrixMultiplier extends AbstractMatrixMultiplier
 {
 	public JavaMatrixMultiplier() {
 	}
 
 	@Override
-	public Content doMultiplication(Block block, Content a, Content b)
+	protected void doMultiplyAddDense(Block block, Content a, Content b,
+			Content c, float alpha, float beta)
 	{
-		Content content = new Content(block);
-		sgemmJava(Block.BLOCK_SIZE, 1, a.getFloatBuffer(), b.getFloatBuffer(), 0,
-				content.getFloatBuffer());
-		return content;
+		sgemmJava(a.getCols(), b.getRows(), a.getRows(), alpha, a
+				.getFloatBuffer(), b.getFloatBuffer(), beta, c.getFloatBuffer());
+	}
+
+	@Override
+	protected void doMultiplyAddDouble(Block block, Content a, Content b,
+			Content c, double alpha, double beta)
+	{
+		dgemmJava(a.getCols(), b.getRows(), a.getRows(), alpha, a
+				.getDoubleBuffer(), b.getDoubleBuffer(), beta, c.getDoubleBuffer());
 	}
 
 	public static void sgemmJava(int n, float alpha, FloatBuffer A,
 			FloatBuffer B, float beta, FloatBuffer C) {
-		for (int i = 0; i < n; ++i) {
+		sgemmJava(n, n, n, alpha, A, B, beta, C);
+	}
+
+	/**
+	 * Column-major C = alpha * A * B + beta * C, where A is m x k, B is k x n
+	 * and C is m x n.
+	 */
+	public static void sgemmJava(int m, int n, int k, float alpha,
+			FloatBuffer A, FloatBuffer B, float beta, FloatBuffer C) {
+		for (int i = 0; i < m; ++i) {
 			for (int j = 0; j < n; ++j) {
 				float prod = 0;
-				for (int k = 0; k < n; ++k) {
-					prod += A.get(k * n + i) * B.get(j * n + k);
+				for (int p = 0; p < k; ++p) {
+					prod += A.get(p * m + i) * B.get(j * k + p);
+				}
+				C.put(j * m + i, alpha * prod
+						+ (beta == 0 ? 0 : beta * C.get(j * m + i)));
+			}
+		}
+	}
+
+	/**
+	 * Same as {@link #sgemmJava(int, int, int, float, FloatBuffer, FloatBuffer,
+	 * float, FloatBuffer)} in double.
+	 */
+	public static void dgemmJava(int m, int n, int k, double alpha,
+			DoubleBuffer A, DoubleBuffer B, double beta, DoubleBuffer C) {
+		for (int i = 0; i < m; ++i) {
+			for (int j = 0; j < n; ++j) {
+				double prod = 0;
+				for (int p = 0; p < k; ++p) {
+					prod += A.get(p * m + i) * B.get(j * k + p);
 				}
-				C.put(j * n + i, alpha * prod + beta * C.get(j * n + i));
+				C.put(j * m + i, alpha * prod
+						+ (beta == 0 ? 0 : beta * C.get(j * m + i)));
 			}
 		}
 	}
@@ -1,101 +1,370 @@
 package mrcl.lib;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
 
+/**
+ * The descriptor of a matrix: its name, size, element type, block size and,
+ * for a virtual matrix, the {@link BlockSource} of its blocks.
+ *
+ * Every matrix has its own block height and width, which are kept in the
+ * descriptor, so matrices with different (and non-square) tilings can be
+ * used side by side in one JVM.
+ */
 public class Matrix implements Writable {
+	private static final Log LOG = LogFactory.getLog(Matrix.class);
+	/**
+	 * The multiplier that is only compiled on JDK 16 and later.
+	 */
+	private static final String VECTOR_API_MULTIPLIER = "VectorApi";
+	public static final String ROUND_THREADS = "mrcl.round.threads";
+	public static final String GENERATE_THREADS = "mrcl.generate.threads";
+	/**
+	 * The descriptor starts with VERSIONED | VERSION. Descriptors from before
+	 * the version start with the length of the name instead, whose high
+	 * byte never has the VERSIONED bit for names below 32 KB.
+	 */
+	private static final int VERSION = 1;
+	private static final int VERSIONED = 0x80;
+
 	private String _name;
 	private int _cols;
 	private int _rows;
-	private int _blockRows;
-	private int _blockCols;
+	private int _blockHeight;
+	private int _blockWidth;
+	private BlockSource _source;
+	private String _packedId;
+	private ElementType _elementType = ElementType.FLOAT;
+	// The modification times of the block files by block row and block
+	// column, 0 if unknown; see getBlockTime.
+	private long[][] _blockTimes;
 
 	private Matrix() {
 	}
 
+	/**
+	 * Creates a float matrix of square blocks of
+	 * {@link Block#DEFAULT_BLOCK_SIZE}.
+	 */
 	public Matrix(String matrixName, int rows, int cols) {
+		this(matrixName, rows, cols, ElementType.FLOAT);
+	}
+
+	public Matrix(String matrixName, int rows, int cols,
+			ElementType elementType) {
+		this(matrixName, rows, cols, Block.DEFAULT_BLOCK_SIZE,
+				Block.DEFAULT_BLOCK_SIZE, elementType);
+	}
+
+	public Matrix(String matrixName, int rows, int cols, int blockHeight,
+			int blockWidth) {
+		this(matrixName, rows, cols, blockHeight, blockWidth, ElementType.FLOAT);
+	}
+
+	public Matrix(String matrixName, int rows, int cols, int blockHeight,
+			int blockWidth, ElementType elementType) {
+		if (blockHeight < 1 || blockWidth < 1)
+			throw new IllegalArgumentException("Invalid block size "
+					+ blockHeight + "x" + blockWidth + " of " + matrixName);
 		_name = matrixName;
 		_rows = rows;
 		_cols = cols;
+		_blockHeight = blockHeight;
+		_blockWidth = blockWidth;
+		_elementType = elementType;
+	}
+
+	/**
+	 * Copies the descriptor of matrix.
+	 */
+	public Matrix(Matrix matrix) {
+		this(matrix._name, matrix._rows, matrix._cols, matrix._blockHeight,
+				matrix._blockWidth, matrix._elementType);
+		_source = matrix._source;
+		_packedId = matrix._packedId;
+	}
+
+	/**
+	 * Makes this a packed matrix, whose remote blocks are stored in a few
+	 * part files under a new id, see {@link PackedMatrix}, or a matrix of
+	 * block files again.
+	 */
+	public Matrix setPacked(boolean packed) {
+		_packedId = packed ? Long.toString(System.currentTimeMillis(), 36)
+				+ Integer.toString(new Random().nextInt(1 << 30), 36) : null;
+		return this;
+	}
+
+	public boolean isPacked() {
+		return _packedId != null;
+	}
 
-		_blockRows = rows / Block.BLOCK_SIZE;
-		_blockCols = cols / Block.BLOCK_SIZE;
+	/**
+	 * Returns the id of the parts of a packed matrix, or null.
+	 */
+	public String getPackedId() {
+		return _packedId;
+	}
+
+	/**
+	 * Makes this a virtual matrix whose blocks come from source instead of
+	 * block files, see {@link BlockSource}. Write the descriptor with
+	 * {@link #writeRemote} to use it remotely. Null makes it stored again.
+	 */
+	public Matrix setSource(BlockSource source) {
+		_source = source;
+		return this;
+	}
+
+	/**
+	 * Returns the source of the blocks of a virtual matrix, or null for a
+	 * matrix of block files.
+	 */
+	public BlockSource getSource() {
+		return _source;
+	}
+
+	public boolean isVirtual() {
+		return _source != null;
 	}
 
 	public static Matrix createFillLocal(String matrixName, int rows, int cols,
 			float fill) {
-		Matrix matrix = new Matrix(matrixName, rows, cols);
-		for (int blockRow = 0; blockRow <= matrix._blockRows; blockRow++) {
-			for (int blockCol = 0; blockCol <= matrix._blockCols; blockCol++) {
-				Content content = Content.make(new Block(matrix, blockRow,
+		return new Matrix(matrixName, rows, cols).fillLocal(fill);
+	}
+
+	public static Matrix createFillRemote(String matrixName, int rows,
+			int cols, float fill, Configuration conf) {
+		return createFillRemote(matrixName, rows, cols, fill,
+				ElementType.FLOAT, conf);
+	}
+
+	public static Matrix createFillRemote(String matrixName, int rows,
+			int cols, float fill, ElementType elementType, Configuration conf) {
+		return new Matrix(matrixName, rows, cols, elementType).fillRemote(fill,
+				conf);
+	}
+
+	public static Matrix createRandomLocal(String matrixName, int rows,
+			int cols, long seed) {
+		return createRandomLocal(matrixName, rows, cols, seed,
+				ElementType.FLOAT);
+	}
+
+	public static Matrix createRandomLocal(String matrixName, int rows,
+			int cols, long seed, ElementType elementType) {
+		return new Matrix(matrixName, rows, cols, elementType)
+				.randomizeLocal(seed);
+	}
+
+	public static Matrix createRandomRemote(String matrixName, int rows,
+			int cols, int seed, Configuration conf) {
+		return createRandomRemote(matrixName, rows, cols, seed,
+				ElementType.FLOAT, conf);
+	}
+
+	public static Matrix createRandomRemote(String matrixName, int rows,
+			int cols, int seed, ElementType elementType, Configuration conf) {
+		return new Matrix(matrixName, rows, cols, elementType).randomizeRemote(
+				seed, conf);
+	}
+
+	/**
+	 * Writes local blocks of fill values for this descriptor.
+	 */
+	public Matrix fillLocal(float fill) {
+		for (int blockRow = 0; blockRow < getBlockRows(); blockRow++) {
+			for (int blockCol = 0; blockCol < getBlockCols(); blockCol++) {
+				Content content = Content.createLocal(new Block(this, blockRow,
 						blockCol));
 				content.fill(fill);
 				content.writeLocal();
+				content.release();
 			}
 		}
-		return matrix;
+		return this;
 	}
 
-	public static Matrix createFillRemote(String matrixName, int rows,
-			int cols, float fill, Configuration conf) {
-		Matrix matrix = new Matrix(matrixName, rows, cols);
-		for (int blockRow = 0; blockRow <= matrix._blockRows; blockRow++) {
-			for (int blockCol = 0; blockCol <= matrix._blockCols; blockCol++) {
-				Content content = Content.make(new Block(matrix, blockRow,
-						blockCol));
+	/**
+	 * Writes remote blocks of fill values and the descriptor.
+	 */
+	public Matrix fillRemote(float fill, Configuration conf) {
+		renewPackedId();
+		fillRemote(fill, 0, getBlockRows(), conf);
+		writeRemote(conf);
+		return this;
+	}
+
+	/**
+	 * Writes the remote blocks of fill values in the block rows [blockRowFrom,
+	 * blockRowTo), but not the descriptor.
+	 */
+	public Matrix fillRemote(final float fill, int blockRowFrom,
+			int blockRowTo, Configuration conf) {
+		return generateRemote(new BlockGenerator() {
+			@Override
+			public void generate(Content content) {
 				content.fill(fill);
-				content.writeRemote(conf);
 			}
-		}
-		matrix.writeRemote(conf);
-		return matrix;
+		}, blockRowFrom, blockRowTo, conf);
 	}
 
-	public static Matrix createRandomLocal(String matrixName, int rows,
-			int cols, long seed) {
-		Matrix matrix = new Matrix(matrixName, rows, cols);
+	/**
+	 * Writes local blocks of random values for this descriptor. The values
+	 * depend on the seed and the block size.
+	 */
+	public Matrix randomizeLocal(long seed) {
 		// ./matrix/MATRIX_NAME/descriptor // descriptor, which contains size
 		// ./matrix/MATRIX_NAME/blocks/0/0 // block data
 		// ./matrix/MATRIX_NAME/blocks/... // ...
-
-		// int innerRows = MatrixBlockDescriptor.BLOCK_SIZE, innerCols =
-		// MatrixBlockDescriptor.BLOCK_SIZE;
-		for (int blockRow = 0; blockRow <= matrix._blockRows; blockRow++) {
-			for (int blockCol = 0; blockCol <= matrix._blockCols; blockCol++) {
-				Content content = Content.make(new Block(matrix, blockRow,
+		for (int blockRow = 0; blockRow < getBlockRows(); blockRow++) {
+			for (int blockCol = 0; blockCol < getBlockCols(); blockCol++) {
+				Content content = Content.createLocal(new Block(this, blockRow,
 						blockCol));
 				content.randomize(seed);
 				content.writeLocal();
+				content.release();
 			}
 		}
-		return matrix;
+		return this;
 	}
 
-	public static Matrix createRandomRemote(String matrixName, int rows,
-			int cols, int seed, Configuration conf) {
-		Matrix matrix = new Matrix(matrixName, rows, cols);
+	/**
+	 * Writes remote blocks of random values and the descriptor.
+	 */
+	public Matrix randomizeRemote(long seed, Configuration conf) {
+		renewPackedId();
+		randomizeRemote(seed, 0, getBlockRows(), conf);
+		writeRemote(conf);
+		return this;
+	}
 
-		for (int blockRow = 0; blockRow <= matrix._blockRows; blockRow++) {
-			for (int blockCol = 0; blockCol <= matrix._blockCols; blockCol++) {
-				Content content = Content.make(new Block(matrix, blockRow,
-						blockCol));
+	/**
+	 * Writes the remote blocks of random values in the block rows
+	 * [blockRowFrom, blockRowTo), but not the descriptor. Every block depends
+	 * only on the seed and its position, so a matrix can be written in parts
+	 * by several tasks.
+	 */
+	public Matrix randomizeRemote(final long seed, int blockRowFrom,
+			int blockRowTo, Configuration conf) {
+		return generateRemote(new BlockGenerator() {
+			@Override
+			public void generate(Content content) {
 				content.randomize(seed);
-				content.writeRemote(conf);
 			}
+		}, blockRowFrom, blockRowTo, conf);
+	}
+
+	/**
+	 * Gives a packed matrix that is generated again a new id, so that its new
+	 * parts never share a path, an open index or a {@link BlockCache} key
+	 * with the parts they replace.
+	 */
+	private void renewPackedId() {
+		if (isPacked())
+			setPacked(true);
+	}
+
+	/**
+	 * Sets the values of a block before it is written.
+	 */
+	private interface BlockGenerator {
+		void generate(Content content);
+	}
+
+	/**
+	 * Generates and writes the blocks of some block rows, on
+	 * mrcl.generate.threads threads (default 1). The blocks of a packed
+	 * matrix go to one part, "r" followed by blockRowFrom, of its current
+	 * packed id.
+	 */
+	private Matrix generateRemote(final BlockGenerator generator,
+			int blockRowFrom, int blockRowTo, final Configuration conf) {
+		// Example: -Dmrcl.generate.threads=8
+		int threads = conf.getInt(GENERATE_THREADS, 1);
+		ExecutorService executor = threads > 1 ? Executors
+				.newFixedThreadPool(threads) : null;
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try {
+			final PackedMatrix.Writer writer = isPacked() ? PackedMatrix.create(
+					this, "r" + blockRowFrom, conf) : null;
+			for (int blockRow = blockRowFrom; blockRow < blockRowTo; blockRow++) {
+				for (int blockCol = 0; blockCol < getBlockCols(); blockCol++) {
+					final Block block = new Block(this, blockRow, blockCol);
+					Runnable task = new Runnable() {
+						@Override
+						public void run() {
+							Content content = Content.acquire(block);
+							generator.generate(content);
+							if (writer == null) {
+								content.writeRemote(conf);
+							} else {
+								try {
+									writer.put(block, content);
+								} catch (IOException e) {
+									throw new RuntimeException(e);
+								}
+							}
+							content.release();
+						}
+					};
+					if (executor == null)
+						task.run();
+					else
+						submit(executor, task, futures, threads);
+				}
+			}
+			for (Future<?> future : futures)
+				future.get();
+			if (writer != null)
+				writer.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
 		}
-		matrix.writeRemote(conf);
-		return matrix;
+		return this;
 	}
 
+	/**
+	 * Returns a * b, where a is m x k and b is k x n. The rounds are the k /
+	 * blockWidth block columns of a.
+	 */
 	public static Matrix multiplyLocal(String resultName, Matrix a, Matrix b) {
 		return multiplyLocal(resultName, a, b, 0, a.getBlockCols());
 	}
@@ -108,81 +377,313 @@ public class Matrix implements Writable {
 	
 	public static Matrix multiplyLocal(String resultName, Matrix a, Matrix b,
 			int fromRound, int toRound, String matrixMultiplier) {
-		int rows = a.getRows();
-		int cols = b.getCols();
-		int bRows = a.getBlockRows();
-		int bCols = b.getBlockCols();
-
-		Matrix result = Matrix.createFillLocal(resultName, rows, cols, 0);
+		Matrix result = new Matrix(resultName, a.getRows(), b.getCols(), a
+				.getBlockHeight(), b.getBlockWidth(), getElementType(a, b));
+		int bRows = result.getBlockRows();
+		int bCols = result.getBlockCols();
 		MatrixMultiplier mm = getMatrixMultiplier(matrixMultiplier);
 
-		for (int round = fromRound; round < toRound; round++) {
-			// make intermediate results
-			Matrix inter = Matrix.createFillLocal("__inter__" + resultName, rows,
-					cols, 0);
-
-			for (int bRow = 0; bRow < bRows; bRow++) {
-				for (int bCol = 0; bCol < bCols; bCol++) {
-					Block interBlock = new Block(inter, bRow, bCol);
-					Content interContent = mm.doMultiplication(interBlock,
-							Content.readLocal(new Block(a, round, bCol)),
-							Content.readLocal(new Block(b, bRow, round)));
-
-					Block resultBlock = new Block(result, bRow, bCol);
-					Content resultContent = Content.add(resultBlock, Content
-							.readLocal(new Block(result, bRow, bCol)),
-							interContent);
-					resultContent.writeLocal();
+		// Each result block stays in memory while all rounds are accumulated
+		// into it, and is written once.
+		for (int bRow = 0; bRow < bRows; bRow++) {
+			for (int bCol = 0; bCol < bCols; bCol++) {
+				Block resultBlock = new Block(result, bRow, bCol);
+				Content resultContent = Content.createLocal(resultBlock);
+				for (int round = fromRound; round < toRound; round++) {
+					Content aContent = Content.readLocal(new Block(a, bRow, round));
+					Content bContent = Content.readLocal(new Block(b, round, bCol));
+					// The multipliers compute the row-major product of their
+					// second and first operands.
+					mm.doMultiplyAdd(resultBlock, bContent, aContent,
+							resultContent, 1, 1);
+					aContent.release();
+					bContent.release();
 				}
+				resultContent.writeLocal();
+				resultContent.release();
 			}
 		}
 		return result;
 	}
 
+	/**
+	 * Receives the blocks of a round as they are computed. It is called from
+	 * the write-behind thread of {@link BlockPipeline}, or with
+	 * mrcl.write.behind.depth=0 and mrcl.round.threads > 1 from several
+	 * threads; the content is released when put returns.
+	 */
+	public interface BlockSink {
+		void put(Block block, Content content) throws IOException;
+	}
+
 	public static Matrix multiplyRemote(String resultName, Matrix a, Matrix b,
-			int round, Configuration conf) {
-		int rows = a.getRows();
-		int cols = b.getCols();
-		int bRows = a.getBlockRows();
-		int bCols = b.getBlockCols();
+			int round, final Configuration conf) {
+		// make intermediate results; every block is written by the round, so
+		// it is not filled beforehand.
+		Matrix inter = new Matrix(String.format("__tmp/%s_%d", resultName,
+				round), a.getRows(), b.getCols(), a.getBlockHeight(), b
+				.getBlockWidth(), getElementType(a, b));
+		// Example: -Dmrcl.packed=true
+		if (conf.getBoolean(PackedMatrix.PACKED, false)) {
+			// One part file instead of a file per block.
+			inter.setPacked(true);
+			try {
+				PackedMatrix.Writer writer = PackedMatrix.create(inter, "part",
+						conf);
+				multiplyRound(inter, a, b, round, writer, conf);
+				writer.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			inter.writeRemote(conf);
+			return inter;
+		}
+		inter.writeRemote(conf);
+		multiplyRound(inter, a, b, round, new BlockSink() {
+			@Override
+			public void put(Block block, Content content) {
+				content.writeRemote(conf);
+			}
+		}, conf);
+		return inter;
+	}
 
-		// Matrix result = Matrix
-		// .createFillRemote(resultName, rows, cols, 0, conf);
+	/**
+	 * Computes the products a(i, round) * b(round, j) of one round for every
+	 * block (i, j) of result and hands them to sink instead of writing them.
+	 * The blocks are read ahead and handed to sink behind the computation,
+	 * see {@link BlockPipeline}.
+	 */
+	public static void multiplyRound(Matrix result, Matrix a, Matrix b,
+			int round, BlockSink sink, Configuration conf) {
+		getElementType(a, b);
+		int bRows = result.getBlockRows();
+		int bCols = result.getBlockCols();
+		MatrixMultiplier mm = getMatrixMultiplier(conf.get("matrix.multiplier", MatrixMultiplier.DEFAULT_MULTIPLIER), conf);
 
-		// make intermediate results
-		Matrix inter = Matrix.createFillRemote(String.format("__tmp/%s_%d",
-				resultName, round), rows, cols, 0, conf);
-		MatrixMultiplier mm = getMatrixMultiplier(conf.get("matrix.multiplier", MatrixMultiplier.DEFAULT_MULTIPLIER));
-		
+		List<Block> reads = new ArrayList<Block>();
 		for (int bRow = 0; bRow < bRows; bRow++) {
-			Content bContent = Content.readRemote(new Block(b, bRow, round),
-					conf);
-			for (int bCol = 0; bCol < bCols; bCol++) {
-				Block interBlock = new Block(inter, bRow, bCol);
-				Content interContent = mm.doMultiplication(interBlock,
-						Content.readRemote(new Block(a, round, bCol), conf),
-						bContent);
-				interContent.writeRemote(conf);
-				//
-				// Content resultContent = Content.add(result, Content
-				// .read(new Block(result, bRow, bCol)), interContent);
-				// resultContent.writeRemote(conf);
+			reads.add(new Block(a, bRow, round));
+			for (int bCol = 0; bCol < bCols; bCol++)
+				reads.add(new Block(b, round, bCol));
+		}
+		BlockPipeline pipeline = new BlockPipeline(conf);
+		pipeline.prefetch(reads);
+		BlockSink out = pipeline.writeBehind(sink);
+
+		// Example: -Dmrcl.round.threads=8
+		int threads = conf.getInt(ROUND_THREADS, 1);
+		ExecutorService executor = threads > 1 ? Executors
+				.newFixedThreadPool(threads) : null;
+		try {
+			for (int bRow = 0; bRow < bRows; bRow++) {
+				Content aContent = pipeline.next();
+				List<Future<?>> futures = new ArrayList<Future<?>>();
+				for (int bCol = 0; bCol < bCols; bCol++) {
+					Runnable task = new MultiplyBlockTask(mm, new Block(result, bRow,
+							bCol), aContent, pipeline.next(), out);
+					if (executor == null)
+						task.run();
+					else
+						submit(executor, task, futures, threads);
+				}
+				// Output blocks of one bRow share aContent; waiting here keeps
+				// only one A block in memory at a time.
+				for (Future<?> future : futures)
+					future.get();
+				aContent.release();
 			}
+			pipeline.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
+			pipeline.close();
+		}
+	}
+
+	/**
+	 * Submits a task, first waiting until fewer than threads tasks are
+	 * queued or running, so that the blocks read for them stay bounded. The
+	 * task runs with the {@link TaskMetrics} of the calling thread.
+	 */
+	private static void submit(ExecutorService executor, Runnable task,
+			List<Future<?>> futures, int threads) throws InterruptedException,
+			ExecutionException {
+		if (futures.size() >= threads)
+			futures.get(futures.size() - threads).get();
+		futures.add(executor.submit(TaskMetrics.inherit(task)));
+	}
+
+	/**
+	 * Computes the result blocks [rowFrom, rowTo) x [colFrom, colTo), summed
+	 * over the rounds [roundFrom, roundTo), and hands each one to sink when
+	 * it is complete. One block row of the tile is accumulated at a time, so
+	 * every block of a is read once and at most colTo - colFrom result
+	 * blocks are held in memory. Reads and sink are pipelined like in
+	 * {@link #multiplyRound}.
+	 */
+	public static void multiplyTile(Matrix result, Matrix a, Matrix b,
+			int rowFrom, int rowTo, int colFrom, int colTo, int roundFrom,
+			int roundTo, BlockSink sink, Configuration conf) {
+		getElementType(a, b);
+		MatrixMultiplier mm = getMatrixMultiplier(conf.get("matrix.multiplier", MatrixMultiplier.DEFAULT_MULTIPLIER), conf);
+
+		List<Block> reads = new ArrayList<Block>();
+		for (int bRow = rowFrom; bRow < rowTo; bRow++) {
+			for (int round = roundFrom; round < roundTo; round++) {
+				reads.add(new Block(a, bRow, round));
+				for (int bCol = colFrom; bCol < colTo; bCol++)
+					reads.add(new Block(b, round, bCol));
+			}
+		}
+		BlockPipeline pipeline = new BlockPipeline(conf);
+		pipeline.prefetch(reads);
+		BlockSink out = pipeline.writeBehind(sink);
+
+		// Example: -Dmrcl.round.threads=8
+		int threads = conf.getInt(ROUND_THREADS, 1);
+		ExecutorService executor = threads > 1 ? Executors
+				.newFixedThreadPool(threads) : null;
+		Content[] sums = new Content[colTo - colFrom];
+		try {
+			for (int bRow = rowFrom; bRow < rowTo; bRow++) {
+				for (int bCol = colFrom; bCol < colTo; bCol++)
+					sums[bCol - colFrom] = Content.acquire(new Block(result, bRow,
+							bCol));
+				for (int round = roundFrom; round < roundTo; round++) {
+					Content aContent = pipeline.next();
+					List<Future<?>> futures = new ArrayList<Future<?>>();
+					for (int bCol = colFrom; bCol < colTo; bCol++) {
+						Runnable task = new AccumulateBlockTask(mm, new Block(result,
+								bRow, bCol), aContent, pipeline.next(), sums[bCol
+								- colFrom]);
+						if (executor == null)
+							task.run();
+						else
+							submit(executor, task, futures, threads);
+					}
+					for (Future<?> future : futures)
+						future.get();
+					aContent.release();
+				}
+				for (int bCol = colFrom; bCol < colTo; bCol++) {
+					out.put(new Block(result, bRow, bCol), sums[bCol - colFrom]);
+					sums[bCol - colFrom].release();
+				}
+			}
+			pipeline.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
+			pipeline.close();
+		}
+	}
+
+	/**
+	 * Computes c = a * b + beta * c and records its time as the compute
+	 * stage of {@link BlockPipeline} and in {@link TaskMetrics}.
+	 */
+	private static void multiplyAdd(MatrixMultiplier mm, Block block,
+			Content a, Content b, Content c, float beta) {
+		long start = System.nanoTime();
+		// The multipliers compute the row-major product of their second and
+		// first operands.
+		mm.doMultiplyAdd(block, b, a, c, 1, beta);
+		long nanos = System.nanoTime() - start;
+		BlockPipeline.addNanos(BlockPipeline.COMPUTE, nanos);
+		TaskMetrics.gemm(2L * a.getRows() * a.getCols() * b.getCols(), nanos);
+	}
+
+	/**
+	 * Adds the product of one block pair to a result block of a tile.
+	 */
+	private static class AccumulateBlockTask implements Runnable {
+		private final MatrixMultiplier _mm;
+		private final Block _sumBlock;
+		private final Content _aContent;
+		private final Content _bContent;
+		private final Content _sum;
+
+		AccumulateBlockTask(MatrixMultiplier mm, Block sumBlock,
+				Content aContent, Content bContent, Content sum) {
+			_mm = mm;
+			_sumBlock = sumBlock;
+			_aContent = aContent;
+			_bContent = bContent;
+			_sum = sum;
+		}
+
+		@Override
+		public void run() {
+			multiplyAdd(_mm, _sumBlock, _aContent, _bContent, _sum, 1);
+			_bContent.release();
+		}
+	}
+
+	/**
+	 * Computes one output block of a round. Multiplier implementations used
+	 * with mrcl.round.threads > 1 must be thread-safe.
+	 */
+	private static class MultiplyBlockTask implements Runnable {
+		private final MatrixMultiplier _mm;
+		private final Block _interBlock;
+		private final Content _aContent;
+		private final Content _bContent;
+		private final BlockSink _sink;
+
+		MultiplyBlockTask(MatrixMultiplier mm, Block interBlock,
+				Content aContent, Content bContent, BlockSink sink) {
+			_mm = mm;
+			_interBlock = interBlock;
+			_aContent = aContent;
+			_bContent = bContent;
+			_sink = sink;
+		}
+
+		@Override
+		public void run() {
+			Content interContent = Content.acquire(_interBlock);
+			multiplyAdd(_mm, _interBlock, _aContent, _bContent, interContent, 0);
+			_bContent.release();
+			try {
+				_sink.put(_interBlock, interContent);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			interContent.release();
 		}
-		return inter;
 	}
 
 	public static Matrix add(String resultName, Matrix a, Matrix b) {
+		checkSameBlocks(a, b);
 		int bRows = a.getBlockRows();
 		int bCols = a.getBlockCols();
-		Matrix result = new Matrix(resultName, a.getRows(), a.getCols());
+		Matrix result = new Matrix(resultName, a.getRows(), a.getCols(), a
+				.getBlockHeight(), a.getBlockWidth(), getCommonType(a, b));
 		for (int bRow = 0; bRow < bRows; bRow++) {
 			for (int bCol = 0; bCol < bCols; bCol++) {
 				Block resultBlock = new Block(result, bRow, bCol);
-				Content resultContent = Content.add(resultBlock, Content
-						.readLocal(new Block(a, bRow, bCol)), Content
-						.readLocal(new Block(b, bRow, bCol)));
+				Content aContent = Content.readLocal(new Block(a, bRow, bCol));
+				Content bContent = Content.readLocal(new Block(b, bRow, bCol));
+				Content resultContent = Content.createLocal(resultBlock);
+				resultContent.accumulate(aContent);
+				resultContent.accumulate(bContent);
 				resultContent.writeLocal();
+				aContent.release();
+				bContent.release();
+				resultContent.release();
 			}
 		}
 
@@ -201,29 +702,68 @@ public class Matrix implements Writable {
 
 	public static Matrix addRemote(String resultName, Matrix a, Matrix b,
 			Configuration conf) {
+		checkSameBlocks(a, b);
 		int bRows = a.getBlockRows();
 		int bCols = a.getBlockCols();
-		Matrix result = new Matrix(resultName, a.getRows(), a.getCols());
+		Matrix result = new Matrix(resultName, a.getRows(), a.getCols(), a
+				.getBlockHeight(), a.getBlockWidth(), getCommonType(a, b));
 		for (int bRow = 0; bRow < bRows; bRow++) {
 			for (int bCol = 0; bCol < bCols; bCol++) {
 				Block resultBlock = new Block(result, bRow, bCol);
-				Content resultContent = Content.add(resultBlock, Content
-						.readRemote(new Block(a, bRow, bCol), conf), Content
-						.readRemote(new Block(b, bRow, bCol), conf));
+				Content aContent = Content.readRemote(new Block(a, bRow, bCol),
+						conf);
+				Content bContent = Content.readRemote(new Block(b, bRow, bCol),
+						conf);
+				Content resultContent = Content.add(resultBlock, aContent,
+						bContent);
 				resultContent.writeRemote(conf);
+				aContent.release();
+				bContent.release();
+				resultContent.release();
 			}
 		}
 
 		return result;
 	}
 
+	/**
+	 * Sums equally sized matrices block by block. Each result block is
+	 * accumulated in memory and written once, so every input block is read
+	 * once and no intermediate sums are stored.
+	 */
+	public static Matrix sumRemote(String resultName, List<Matrix> values,
+			Configuration conf) {
+		Matrix first = values.get(0);
+		for (Matrix value : values)
+			checkSameBlocks(first, value);
+		int bRows = first.getBlockRows();
+		int bCols = first.getBlockCols();
+		Matrix result = new Matrix(resultName, first.getRows(), first.getCols(),
+				first.getBlockHeight(), first.getBlockWidth(), first
+						.getElementType());
+		for (int bRow = 0; bRow < bRows; bRow++) {
+			for (int bCol = 0; bCol < bCols; bCol++) {
+				Content sum = Content.acquire(new Block(result, bRow, bCol));
+				for (Matrix value : values) {
+					Content content = Content.readRemote(new Block(value, bRow,
+							bCol), conf);
+					sum.accumulate(content);
+					content.release();
+				}
+				sum.writeRemote(conf);
+				sum.release();
+			}
+		}
+		result.writeRemote(conf);
+		return result;
+	}
+
 	public static Matrix readRemote(String name, Configuration conf) {
 		try {
 			FileSystem fs = FileSystem.get(conf);
 			DataInputStream dis = fs.open(new Path(Matrix.getDescPath(name)));
 			Matrix matrix = Matrix.read(dis);
 			dis.close();
-			fs.close();
 			return matrix;
 		} catch (Exception e) {
 			throw new RuntimeException(e);
@@ -239,37 +779,160 @@ public class Matrix implements Writable {
 	}
 	
 	public static MatrixMultiplier getMatrixMultiplier(String name) {
-		MatrixMultiplier mm;
-        try {
-	        mm = (MatrixMultiplier) Class.forName("mrcl.lib." + name + "MatrixMultiplier").newInstance();
-        } catch (InstantiationException e) {
-	        e.printStackTrace();
-	        return null;
-        } catch (IllegalAccessException e) {
-        	e.printStackTrace();
-	        return null;
-        } catch (ClassNotFoundException e) {
-        	throw new IllegalArgumentException(e);
-        }
-		return mm;
+		return getMatrixMultiplier(name, null);
+	}
+
+	/**
+	 * Instantiates mrcl.lib.[name]MatrixMultiplier. If the implementation is
+	 * {@link org.apache.hadoop.conf.Configurable}, it is configured with conf
+	 * when conf is not null. Backends that cannot be linked in this JVM, e.g.
+	 * VectorApi without the jdk.incubator.vector module, or that were not
+	 * compiled, like VectorApi before JDK 16, are replaced by
+	 * {@link MatrixMultiplier#FALLBACK_MULTIPLIER}.
+	 */
+	public static MatrixMultiplier getMatrixMultiplier(String name,
+			Configuration conf) {
+		Class<?> cls;
+		try {
+			cls = Class.forName("mrcl.lib." + name + "MatrixMultiplier");
+		} catch (ClassNotFoundException e) {
+			if (!name.equals(VECTOR_API_MULTIPLIER))
+				throw new IllegalArgumentException(e);
+			return getFallbackMultiplier(name, e, conf);
+		} catch (LinkageError e) {
+			if (name.equals(MatrixMultiplier.FALLBACK_MULTIPLIER))
+				throw e;
+			return getFallbackMultiplier(name, e, conf);
+		}
+		return (MatrixMultiplier) ReflectionUtils.newInstance(cls, conf);
+	}
+
+	private static MatrixMultiplier getFallbackMultiplier(String name,
+			Throwable cause, Configuration conf) {
+		LOG.warn(name + " multiplier is not available, using "
+				+ MatrixMultiplier.FALLBACK_MULTIPLIER + ": " + cause);
+		return getMatrixMultiplier(MatrixMultiplier.FALLBACK_MULTIPLIER, conf);
+	}
+
+	/**
+	 * Returns the element type shared by two operands of a multiplication,
+	 * and checks that their shapes and blocks fit: a is m x k, b is k x n and
+	 * block (i, j) of the result is the sum of a(i, r) * b(r, j), so the
+	 * block width of a must be the block height of b. Mixing float and
+	 * double matrices is not supported, as it would silently lose precision.
+	 */
+	private static ElementType getElementType(Matrix a, Matrix b) {
+		if (a._cols != b._rows)
+			throw new IllegalArgumentException("Cannot multiply " + a._name + " ("
+					+ a._rows + "x" + a._cols + ") by " + b._name + " (" + b._rows
+					+ "x" + b._cols + ")");
+		if (a._blockWidth != b._blockHeight)
+			throw new IllegalArgumentException(a._name + " has blocks of width "
+					+ a._blockWidth + " but " + b._name + " has blocks of height "
+					+ b._blockHeight);
+		return getCommonType(a, b);
+	}
+
+	private static ElementType getCommonType(Matrix a, Matrix b) {
+		if (a._elementType != b._elementType)
+			throw new IllegalArgumentException(a._name + " has " + a._elementType
+					+ " values but " + b._name + " has " + b._elementType);
+		return a._elementType;
+	}
+
+	/**
+	 * Checks that two matrices can be added block by block.
+	 */
+	private static void checkSameBlocks(Matrix a, Matrix b) {
+		if (a._rows != b._rows || a._cols != b._cols
+				|| a._blockHeight != b._blockHeight
+				|| a._blockWidth != b._blockWidth)
+			throw new IllegalArgumentException("Cannot add " + b._name + " ("
+					+ b._rows + "x" + b._cols + " in " + b._blockHeight + "x"
+					+ b._blockWidth + " blocks) to " + a._name + " (" + a._rows
+					+ "x" + a._cols + " in " + a._blockHeight + "x"
+					+ a._blockWidth + " blocks)");
+		getCommonType(a, b);
+	}
+
+	public ElementType getElementType() {
+		return _elementType;
+	}
+
+	/**
+	 * Returns the number of rows of a block.
+	 */
+	public int getBlockHeight() {
+		return _blockHeight;
+	}
+
+	/**
+	 * Returns the number of columns of a block.
+	 */
+	public int getBlockWidth() {
+		return _blockWidth;
 	}
 
 	public int getBlockCols() {
-		if (_cols % Block.BLOCK_SIZE > 0)
-			return (_cols / Block.BLOCK_SIZE) + 1;
-		return _cols / Block.BLOCK_SIZE;
+		if (_cols % _blockWidth > 0)
+			return (_cols / _blockWidth) + 1;
+		return _cols / _blockWidth;
 	}
 
 	public int getBlockRows() {
-		if (_rows % Block.BLOCK_SIZE > 0)
-			return (_rows / Block.BLOCK_SIZE) + 1;
-		return _rows / Block.BLOCK_SIZE;
+		if (_rows % _blockHeight > 0)
+			return (_rows / _blockHeight) + 1;
+		return _rows / _blockHeight;
 	}
 
 	public String getMatrixPath() {
 		return getPath(_name);
 	}
 
+	/**
+	 * Returns the modification time of a block file for its
+	 * {@link BlockCache} key. The times of a block row are listed with one
+	 * call to the file system when the first of them is needed, and kept
+	 * with this descriptor. Blocks written through it are listed again;
+	 * blocks that others rewrite while it is in use are not noticed, just
+	 * like the parts of packed matrices.
+	 */
+	synchronized long getBlockTime(Block block, FileSystem fs)
+			throws IOException {
+		if (_blockTimes == null)
+			_blockTimes = new long[getBlockRows()][];
+		long[] times = _blockTimes[block.getBlockRow()];
+		if (times == null) {
+			times = new long[getBlockCols()];
+			FileStatus[] files = fs.listStatus(new Path(block.getBlockPath())
+					.getParent());
+			for (int i = 0; files != null && i < files.length; i++) {
+				String name = files[i].getPath().getName();
+				if (!name.matches("c\\d+"))
+					continue;
+				int blockCol = Integer.parseInt(name.substring(1));
+				if (blockCol < times.length)
+					times[blockCol] = files[i].getModificationTime();
+			}
+			_blockTimes[block.getBlockRow()] = times;
+		}
+		long time = times[block.getBlockCol()];
+		if (time != 0)
+			return time;
+		// Not there when the row was listed.
+		return fs.getFileStatus(new Path(block.getBlockPath()))
+				.getModificationTime();
+	}
+
+	/**
+	 * Forgets the modification times of the block row of a block that was
+	 * written.
+	 */
+	synchronized void clearBlockTime(Block block) {
+		if (_blockTimes != null)
+			_blockTimes[block.getBlockRow()] = null;
+	}
+
 	public String getMatrixDescPath() {
 		return getMatrixPath() + "/description";
 	}
@@ -284,78 +947,156 @@ public class Matrix implements Writable {
 
 	public FloatBuffer getFloatBufferLocal() {
 		FloatBuffer result = FloatBuffer.allocate(_cols * _rows);
-		for (int row = 0; row < _rows; row++) {
-			for (int bCol = 0; bCol <= _blockCols; bCol++) {
-				int from = Block.BLOCK_SIZE * bCol;
-				int to = Math.min(Block.BLOCK_SIZE * (bCol + 1), _cols);
-
-				Content content = Content.readLocal(new Block(this, row
-						/ Block.BLOCK_SIZE, bCol));
-				float[] array = content.getRow(row % Block.BLOCK_SIZE);
-				for (int col = from, i = 0; col < to; col++, i++) {
-					result.put(array[i]);
-				}
-			}
-		}
-
+		export(result, null);
 		return result;
 	}
 
 	public FloatBuffer getFloatBufferRemote(Configuration conf) {
 		FloatBuffer result = FloatBuffer.allocate(_cols * _rows);
-		for (int row = 0; row < _rows; row++) {
-			for (int bCol = 0; bCol < _blockCols; bCol++) {
-				int from = Block.BLOCK_SIZE * bCol;
-				int to = Math.min(Block.BLOCK_SIZE * (bCol + 1), _cols);
-
-				Content content = Content.readRemote(new Block(this, row
-						/ Block.BLOCK_SIZE, bCol), conf);
-				float[] array = content.getRow(row % Block.BLOCK_SIZE);
-				for (int col = from, i = 0; col < to; col++, i++) {
-					result.put(array[i]);
-				}
-			}
-		}
+		export(result, conf);
 		return result;
 	}
 
-	public String getContentStringLocal() {
-		StringBuilder b = new StringBuilder();
-		for (int row = 0; row < _rows; row++) {
-			for (int bCol = 0; bCol <= _blockCols; bCol++) {
-				int from = Block.BLOCK_SIZE * bCol;
-				int to = Math.min(Block.BLOCK_SIZE * (bCol + 1), _cols);
-
-				Content content = Content.readLocal(new Block(this, row
-						/ Block.BLOCK_SIZE, bCol));
-				float[] array = content.getRow(row % Block.BLOCK_SIZE);
-				for (int col = from, i = 0; col < to; col++, i++) {
-					b.append(String.format("%10.3f\t", array[i]));
+	public DoubleBuffer getDoubleBufferLocal() {
+		DoubleBuffer result = DoubleBuffer.allocate(_cols * _rows);
+		export(result, null);
+		return result;
+	}
+
+	public DoubleBuffer getDoubleBufferRemote(Configuration conf) {
+		DoubleBuffer result = DoubleBuffer.allocate(_cols * _rows);
+		export(result, conf);
+		return result;
+	}
+
+	/**
+	 * Copies the values of the local blocks in row-major order into target
+	 * from its position on, and advances the position past them. Each block
+	 * is read once. target may be a view of a mapped file.
+	 */
+	public void exportLocal(FloatBuffer target) {
+		export(target, null);
+	}
+
+	public void exportLocal(DoubleBuffer target) {
+		export(target, null);
+	}
+
+	/**
+	 * Copies the values of the remote blocks like
+	 * {@link #exportLocal(FloatBuffer)}.
+	 */
+	public void exportRemote(FloatBuffer target, Configuration conf) {
+		export(target, conf);
+	}
+
+	public void exportRemote(DoubleBuffer target, Configuration conf) {
+		export(target, conf);
+	}
+
+	/**
+	 * Writes the values of the remote blocks in row-major order to output,
+	 * as big-endian values of the element type. Only one block row is held
+	 * in memory at a time.
+	 */
+	public void exportRemote(OutputStream output, Configuration conf)
+			throws IOException {
+		int bytes = getElementType().getBytes();
+		ByteBuffer rows = ByteBuffer.allocate(_blockHeight * _cols * bytes);
+		for (int blockRow = 0; blockRow < getBlockRows(); blockRow++) {
+			int height = Math.min(_blockHeight, _rows - blockRow * _blockHeight);
+			exportBlockRow(blockRow, getElementType() == ElementType.DOUBLE ? rows
+					.asDoubleBuffer() : rows.asFloatBuffer(), 0, conf);
+			output.write(rows.array(), 0, height * _cols * bytes);
+		}
+	}
+
+	/**
+	 * Writes the values of the remote blocks to a local file like
+	 * {@link #exportRemote(OutputStream, Configuration)}, through a mapping
+	 * of the file.
+	 */
+	public void exportRemote(File file, Configuration conf) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long size = (long) _rows * _cols * getElementType().getBytes();
+			raf.setLength(size);
+			MappedByteBuffer mapped = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, size);
+			export(getElementType() == ElementType.DOUBLE ? mapped
+					.asDoubleBuffer() : mapped.asFloatBuffer(), conf);
+			mapped.force();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Copies all blocks into target, a FloatBuffer or DoubleBuffer, reading
+	 * local blocks if conf is null and remote ones otherwise.
+	 */
+	private void export(Buffer target, Configuration conf) {
+		if (target.remaining() < _rows * _cols)
+			throw new IllegalArgumentException("Cannot export " + _rows + "x"
+					+ _cols + " values into " + target.remaining());
+		int position = target.position();
+		for (int blockRow = 0; blockRow < getBlockRows(); blockRow++)
+			exportBlockRow(blockRow, target, position + blockRow
+					* _blockHeight * _cols, conf);
+		target.position(position + _rows * _cols);
+	}
+
+	/**
+	 * Copies the blocks of a block row into target, the first value at
+	 * offset. The position of target is not changed.
+	 */
+	private void exportBlockRow(int blockRow, Buffer target, int offset,
+			Configuration conf) {
+		for (int bCol = 0; bCol < getBlockCols(); bCol++) {
+			Block block = new Block(this, blockRow, bCol);
+			Content content = conf == null ? Content.readLocal(block) : Content
+					.readRemote(block, conf);
+			int rows = content.getRows(), cols = content.getCols();
+			for (int row = 0; row < rows; row++) {
+				int at = offset + row * _cols + bCol * _blockWidth;
+				if (target instanceof DoubleBuffer && content.isDouble()) {
+					DoubleBuffer source = content.getDoubleBuffer().duplicate();
+					source.limit((row + 1) * cols).position(row * cols);
+					DoubleBuffer dest = ((DoubleBuffer) target).duplicate();
+					dest.position(at);
+					dest.put(source);
+				} else if (target instanceof DoubleBuffer) {
+					FloatBuffer source = content.getFloatBuffer();
+					DoubleBuffer dest = (DoubleBuffer) target;
+					for (int col = 0; col < cols; col++)
+						dest.put(at + col, source.get(row * cols + col));
+				} else {
+					FloatBuffer source = content.getFloatBuffer().duplicate();
+					source.limit((row + 1) * cols).position(row * cols);
+					FloatBuffer dest = ((FloatBuffer) target).duplicate();
+					dest.position(at);
+					dest.put(source);
 				}
 			}
-			b.append('\n');
+			content.release();
 		}
+	}
 
-		return b.toString();
+	public String getContentStringLocal() {
+		return getContentString(getDoubleBufferLocal());
 	}
 
 	public String getContentStringRemote(Configuration conf) {
+		return getContentString(getDoubleBufferRemote(conf));
+	}
+
+	private String getContentString(DoubleBuffer values) {
 		StringBuilder b = new StringBuilder();
 		for (int row = 0; row < _rows; row++) {
-			for (int bCol = 0; bCol <= _blockCols; bCol++) {
-				int from = Block.BLOCK_SIZE * bCol;
-				int to = Math.min(Block.BLOCK_SIZE * (bCol + 1), _cols);
-
-				Content content = Content.readRemote(new Block(this, row
-						/ Block.BLOCK_SIZE, bCol), conf);
-				float[] array = content.getRow(row % Block.BLOCK_SIZE);
-				for (int col = from, i = 0; col < to; col++, i++) {
-					b.append(String.format("%10.3f\t", array[i]));
-				}
-			}
+			for (int col = 0; col < _cols; col++)
+				b.append(String.format("%10.3f\t", values.get(row * _cols + col)));
 			b.append('\n');
 		}
-
 		return b.toString();
 	}
 
@@ -365,27 +1106,99 @@ public class Matrix implements Writable {
 
 	@Override
 	public void readFields(DataInput input) throws IOException {
+		int first = input.readUnsignedByte();
+		if ((first & VERSIONED) == 0) {
+			readUnversioned(input, first);
+			return;
+		}
+		int version = first & ~VERSIONED;
+		if (version != VERSION)
+			throw new IOException("Unsupported matrix descriptor version "
+					+ version);
 		_name = input.readUTF();
 		_rows = input.readInt();
 		_cols = input.readInt();
-		_blockRows = _rows / Block.BLOCK_SIZE;
-		_blockCols = _cols / Block.BLOCK_SIZE;
+		_elementType = ElementType.valueOf(input.readUTF());
+		_blockHeight = input.readInt();
+		_blockWidth = input.readInt();
+		String source = input.readUTF();
+		_source = source.length() == 0 ? null : BlockSource.parse(source);
+		String packedId = input.readUTF();
+		_packedId = packedId.length() == 0 ? null : packedId;
+	}
+
+	/**
+	 * Reads a descriptor without a version, whose first byte was the high
+	 * byte of the length of the name. The first layout had only the name,
+	 * rows and cols; the element type, the block height and width, the
+	 * source and the packed id were added in turn. Such descriptors were
+	 * only stored in descriptor files, which end after the last field of
+	 * their layout, so the missing fields get their defaults.
+	 */
+	private void readUnversioned(DataInput input, int first)
+			throws IOException {
+		byte[] name = new byte[2 + (first << 8 | input.readUnsignedByte())];
+		name[0] = (byte) first;
+		name[1] = (byte) (name.length - 2);
+		input.readFully(name, 2, name.length - 2);
+		_name = new DataInputStream(new ByteArrayInputStream(name)).readUTF();
+		_rows = input.readInt();
+		_cols = input.readInt();
+		_elementType = ElementType.FLOAT;
+		_blockHeight = Block.DEFAULT_BLOCK_SIZE;
+		_blockWidth = Block.DEFAULT_BLOCK_SIZE;
+		_source = null;
+		_packedId = null;
+		try {
+			_elementType = ElementType.valueOf(input.readUTF());
+			int blockHeight = input.readInt();
+			_blockWidth = input.readInt();
+			_blockHeight = blockHeight;
+			String source = input.readUTF();
+			_source = source.length() == 0 ? null : BlockSource.parse(source);
+			String packedId = input.readUTF();
+			_packedId = packedId.length() == 0 ? null : packedId;
+		} catch (EOFException e) {
+			// An earlier layout ends here.
+		}
 	}
 
 	@Override
 	public void write(DataOutput output) throws IOException {
+		output.writeByte(VERSIONED | VERSION);
 		output.writeUTF(_name);
 		output.writeInt(_rows);
 		output.writeInt(_cols);
+		output.writeUTF(_elementType.name());
+		output.writeInt(_blockHeight);
+		output.writeInt(_blockWidth);
+		output.writeUTF(_source == null ? "" : _source.toString());
+		output.writeUTF(_packedId == null ? "" : _packedId);
 	}
 
+	/**
+	 * Writes the descriptor. The blocks of an earlier matrix of the same name
+	 * in the other layout, or under another packed id, are deleted. The
+	 * FileSystem is shared, e.g. with the open parts of packed matrices, so
+	 * it is left open.
+	 */
 	public void writeRemote(Configuration conf) {
 		try {
 			FileSystem fs = FileSystem.get(conf);
 			DataOutputStream dos = fs.create(new Path(getDescPath(_name)));
 			write(dos);
 			dos.close();
-			fs.close();
+			Path packed = new Path(getMatrixPath() + "/packed");
+			if (isPacked()) {
+				fs.delete(new Path(getMatrixPath() + "/blocks"), true);
+				FileStatus[] ids = fs.listStatus(packed);
+				for (int i = 0; ids != null && i < ids.length; i++) {
+					if (!ids[i].getPath().getName().equals(_packedId))
+						fs.delete(ids[i].getPath(), true);
+				}
+			} else {
+				fs.delete(packed, true);
+			}
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
@@ -2,12 +2,22 @@ package mrcl.lib;
 
 /**
  * Defines a matrix multiplier backend interface. 
- * This contains only one method that performs matrix multiplication.
+ * doMultiplication returns a new block, while doMultiplyAdd accumulates into
+ * an existing one.
  * 
  * All implementation class should be instantiatable with empty arguments.
  */
 public interface MatrixMultiplier
 {
 	public static final String DEFAULT_MULTIPLIER = "Java";
+	public static final String FALLBACK_MULTIPLIER = "TiledJava";
 	public Content doMultiplication(Block block, Content a, Content b);
+
+	/**
+	 * Computes c = alpha * a * b + beta * c in place, with the same operand
+	 * layout as {@link #doMultiplication}. With beta = 0 the previous
+	 * content of c is ignored.
+	 */
+	public void doMultiplyAdd(Block block, Content a, Content b, Content c,
+			float alpha, float beta);
 }
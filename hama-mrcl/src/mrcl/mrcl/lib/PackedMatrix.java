@@ -0,0 +1,268 @@
+package mrcl.lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Stores the remote blocks of a matrix in a few large part files instead of
+ * one file per block, which costs the NameNode an object and a round trip
+ * per block. A packed matrix has an id in its descriptor, and its parts are
+ * mrcl/matrix/NAME/packed/ID/PART, so a rewritten matrix never mixes with
+ * the parts of an earlier one.
+ *
+ * A part holds blocks as {@link Content#writeRemote} writes them, followed by
+ * an index of (block row, block column, offset, length) entries and a
+ * trailer of the index offset, the number of entries and a magic number.
+ * Readers load the indexes of all parts of a matrix once per JVM and read
+ * each block with a positional read.
+ *
+ * Parts are written with a {@link Writer}, e.g. one per generation task.
+ * With mrcl.packed=true DistMult packs its inputs and multiplyRemote its
+ * intermediate matrices. {@link #pack} converts a matrix of block files.
+ */
+public class PackedMatrix {
+	public static final String PACKED = "mrcl.packed";
+	private static final int MAGIC = 0x6d72706b;
+	private static final int TRAILER_SIZE = 16;
+	private static final int ENTRY_SIZE = 20;
+	private static final int MAX_INDEXES = 32;
+
+	private static final LinkedHashMap<String, Index> INDEXES = new LinkedHashMap<String, Index>(
+			16, 0.75f, true);
+
+	private PackedMatrix() {
+	}
+
+	/**
+	 * Returns the directory of the parts of a packed matrix.
+	 */
+	public static String getPackedPath(Matrix matrix) {
+		return matrix.getMatrixPath() + "/packed/" + matrix.getPackedId();
+	}
+
+	/**
+	 * Starts a part of a packed matrix. Blocks are added with
+	 * {@link Writer#put} and become readable when the part is closed. Each
+	 * part of a packed id is written once; give the matrix a new id with
+	 * {@link Matrix#setPacked} before writing it again.
+	 */
+	public static Writer create(Matrix matrix, String part, Configuration conf)
+			throws IOException {
+		if (!matrix.isPacked())
+			throw new IllegalArgumentException(matrix.getName()
+					+ " is not packed");
+		FileSystem fs = FileSystem.get(conf);
+		return new Writer(fs.create(new Path(getPackedPath(matrix), part)), conf);
+	}
+
+	/**
+	 * Writes the blocks of one part. It is a {@link Matrix.BlockSink}, and
+	 * blocks may be put from several threads.
+	 */
+	public static class Writer implements Matrix.BlockSink {
+		private final FSDataOutputStream _out;
+		private final Configuration _conf;
+		private final List<long[]> _entries = new ArrayList<long[]>();
+
+		Writer(FSDataOutputStream out, Configuration conf) {
+			_out = out;
+			_conf = conf;
+		}
+
+		@Override
+		public synchronized void put(Block block, Content content)
+				throws IOException {
+			long start = System.nanoTime();
+			long offset = _out.getPos();
+			content.writeRemote(_out, _conf);
+			long length = _out.getPos() - offset;
+			_entries.add(new long[] { block.getBlockRow(), block.getBlockCol(),
+					offset, length });
+			TaskMetrics.write(length, System.nanoTime() - start);
+		}
+
+		public synchronized void close() throws IOException {
+			long indexOffset = _out.getPos();
+			for (long[] entry : _entries) {
+				_out.writeInt((int) entry[0]);
+				_out.writeInt((int) entry[1]);
+				_out.writeLong(entry[2]);
+				_out.writeInt((int) entry[3]);
+			}
+			_out.writeLong(indexOffset);
+			_out.writeInt(_entries.size());
+			_out.writeInt(MAGIC);
+			_out.close();
+		}
+	}
+
+	/**
+	 * Returns the serialized block of a packed matrix.
+	 */
+	static byte[] read(Block block, Configuration conf) throws IOException {
+		Index index = acquireIndex(block.getMatrix(), conf);
+		try {
+			Entry entry = index.get(block);
+			byte[] data = new byte[entry._length];
+			entry._in.readFully(entry._offset, data);
+			return data;
+		} finally {
+			releaseIndex(index);
+		}
+	}
+
+	/**
+	 * Returns the {@link BlockCache} key of a block of a packed matrix,
+	 * which needs no file status because parts are never rewritten: a
+	 * matrix that is generated again gets a new packed id.
+	 */
+	static String getKey(Block block, Configuration conf) throws IOException {
+		FileSystem fs = FileSystem.get(conf);
+		return BlockCache.key(fs.makeQualified(
+				new Path(getPackedPath(block.getMatrix()))).toString()
+				+ "/r" + block.getBlockRow() + "/c" + block.getBlockCol(), 0);
+	}
+
+	/**
+	 * Returns the index of a packed matrix, which stays open until it is
+	 * released. Beyond MAX_INDEXES, the least recently used indexes are
+	 * dropped and closed once their last reader releases them.
+	 */
+	private static synchronized Index acquireIndex(Matrix matrix,
+			Configuration conf) throws IOException {
+		String path = getPackedPath(matrix);
+		Index index = INDEXES.get(path);
+		if (index == null) {
+			index = new Index(FileSystem.get(conf), new Path(path));
+			INDEXES.put(path, index);
+			Iterator<Index> it = INDEXES.values().iterator();
+			while (INDEXES.size() > MAX_INDEXES) {
+				Index evicted = it.next();
+				it.remove();
+				evicted._evicted = true;
+				if (evicted._readers == 0)
+					evicted.close();
+			}
+		}
+		index._readers++;
+		return index;
+	}
+
+	private static synchronized void releaseIndex(Index index) {
+		if (--index._readers == 0 && index._evicted)
+			index.close();
+	}
+
+	private static class Entry {
+		final FSDataInputStream _in;
+		final long _offset;
+		final int _length;
+
+		Entry(FSDataInputStream in, long offset, int length) {
+			_in = in;
+			_offset = offset;
+			_length = length;
+		}
+	}
+
+	/**
+	 * The blocks of all parts of a packed matrix, with the open parts.
+	 * _readers and _evicted are guarded by the PackedMatrix class.
+	 */
+	private static class Index {
+		private final Path _path;
+		private final Map<Long, Entry> _entries = new HashMap<Long, Entry>();
+		private final List<FSDataInputStream> _parts = new ArrayList<FSDataInputStream>();
+		private int _readers;
+		private boolean _evicted;
+
+		Index(FileSystem fs, Path path) throws IOException {
+			_path = path;
+			FileStatus[] parts = fs.listStatus(path);
+			if (parts == null)
+				throw new IOException("No packed blocks in " + path);
+			for (FileStatus part : parts) {
+				long length = part.getLen();
+				FSDataInputStream in = fs.open(part.getPath());
+				_parts.add(in);
+				byte[] trailer = new byte[TRAILER_SIZE];
+				in.readFully(length - TRAILER_SIZE, trailer);
+				ByteBuffer buffer = ByteBuffer.wrap(trailer);
+				long indexOffset = buffer.getLong();
+				int count = buffer.getInt();
+				if (buffer.getInt() != MAGIC
+						|| indexOffset + (long) count * ENTRY_SIZE != length
+								- TRAILER_SIZE)
+					throw new IOException(part.getPath()
+							+ " is not a complete packed part");
+				byte[] index = new byte[count * ENTRY_SIZE];
+				in.readFully(indexOffset, index);
+				buffer = ByteBuffer.wrap(index);
+				for (int i = 0; i < count; i++) {
+					int row = buffer.getInt();
+					int col = buffer.getInt();
+					_entries.put(key(row, col), new Entry(in, buffer.getLong(),
+							buffer.getInt()));
+				}
+			}
+		}
+
+		private static long key(int row, int col) {
+			return (long) row << 32 | col & 0xffffffffL;
+		}
+
+		Entry get(Block block) throws IOException {
+			Entry entry = _entries.get(key(block.getBlockRow(), block
+					.getBlockCol()));
+			if (entry == null)
+				throw new IOException("No block r" + block.getBlockRow() + "/c"
+						+ block.getBlockCol() + " in " + _path);
+			return entry;
+		}
+
+		void close() {
+			for (FSDataInputStream in : _parts) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// Only the index is dropped.
+				}
+			}
+		}
+	}
+
+	/**
+	 * Converts a matrix of block files to a packed matrix of one part,
+	 * replacing its descriptor and deleting the block files. Returns the
+	 * packed descriptor.
+	 */
+	public static Matrix pack(Matrix matrix, Configuration conf)
+			throws IOException {
+		Matrix packed = new Matrix(matrix).setSource(null).setPacked(true);
+		Writer writer = create(packed, "part", conf);
+		for (int blockRow = 0; blockRow < matrix.getBlockRows(); blockRow++) {
+			for (int blockCol = 0; blockCol < matrix.getBlockCols(); blockCol++) {
+				Content content = Content.readRemote(new Block(matrix, blockRow,
+						blockCol), conf);
+				writer.put(new Block(packed, blockRow, blockCol), content);
+				content.release();
+			}
+		}
+		writer.close();
+		packed.writeRemote(conf);
+		return packed;
+	}
+}
@@ -0,0 +1,195 @@
+package mrcl.lib;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Performs matrix multiplication on all cores of the node.
+ *
+ * The result block is split recursively into row and column panels, and each
+ * panel is computed with the {@link TiledJavaMatrixMultiplier} kernel on a
+ * shared {@link ForkJoinPool}. The pool size is taken from
+ * mrcl.multiplier.threads and defaults to the number of available processors.
+ *
+ * Select it with -Dmatrix.multiplier=ParallelJava.
+ */
+public class ParallelJavaMatrixMultiplier extends AbstractMatrixMultiplier
+		implements GemmKernel, Configurable
+{
+	public static final String THREADS = "mrcl.multiplier.threads";
+
+	private static final Map<Integer, ForkJoinPool> _pools = new HashMap<Integer, ForkJoinPool>();
+
+	private Configuration _conf;
+	private ForkJoinPool _pool;
+
+	public ParallelJavaMatrixMultiplier() {
+		_pool = getPool(Runtime.getRuntime().availableProcessors());
+	}
+
+	@Override
+	public void setConf(Configuration conf) {
+		_conf = conf;
+		_pool = getPool(conf.getInt(THREADS, Runtime.getRuntime()
+				.availableProcessors()));
+	}
+
+	@Override
+	public Configuration getConf() {
+		return _conf;
+	}
+
+	/**
+	 * Pools are shared per JVM so that creating a multiplier for every task
+	 * does not leak worker threads.
+	 */
+	static synchronized ForkJoinPool getPool(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException(THREADS + " must be positive.");
+		ForkJoinPool pool = _pools.get(parallelism);
+		if (pool == null) {
+			pool = new ForkJoinPool(parallelism);
+			_pools.put(parallelism, pool);
+		}
+		return pool;
+	}
+
+	@Override
+	protected void doMultiplyAddDense(Block block, Content a, Content b,
+			Content c, float alpha, float beta)
+	{
+		int m = b.getRows(), n = a.getCols(), k = a.getRows();
+		float[] aData = toArray(a, 0);
+		float[] bData = toArray(b, 1);
+		float[] cData = beta == 0 ? scratch(2, m * n) : toArray(c, 2);
+		// Column-major C = A * B is row-major C = B * A, see sgemmTiled.
+		sgemm(_pool, m, n, k, alpha, bData, 0, k, aData, 0, n, beta, cData, 0, n);
+		fromArray(cData, c);
+	}
+
+	@Override
+	public void gemm(int m, int n, int k, float alpha, float[] a, int aOff,
+			int lda, float[] b, int bOff, int ldb, float beta, float[] c,
+			int cOff, int ldc) {
+		sgemm(_pool, m, n, k, alpha, a, aOff, lda, b, bOff, ldb, beta, c, cOff,
+				ldc);
+	}
+
+	@Override
+	protected void doMultiplyAddDouble(Block block, Content a, Content b,
+			Content c, double alpha, double beta)
+	{
+		int m = b.getRows(), n = a.getCols(), k = a.getRows();
+		double[] aData = toDoubleArray(a, 0);
+		double[] bData = toDoubleArray(b, 1);
+		double[] cData = beta == 0 ? doubleScratch(2, m * n) : toDoubleArray(c,
+				2);
+		dgemm(_pool, m, n, k, alpha, bData, 0, k, aData, 0, n, beta, cData, 0, n);
+		fromDoubleArray(cData, c);
+	}
+
+	/**
+	 * Row-major C = alpha * A * B + beta * C with the same arguments as
+	 * {@link TiledJavaMatrixMultiplier#sgemm}, computed on the given pool.
+	 */
+	public static void sgemm(ForkJoinPool pool, final int m, final int n,
+			final int k, final float alpha, final float[] a, final int aOff,
+			final int lda, final float[] b, final int bOff, final int ldb,
+			final float beta, final float[] c, final int cOff, final int ldc) {
+		pool.invoke(new Panel(0, 0, m, n, minArea(pool, m, n), new Leaf() {
+			@Override
+			public void compute(int row, int col, int rows, int cols) {
+				TiledJavaMatrixMultiplier.sgemm(rows, cols, k, alpha, a, aOff + row
+						* lda, lda, b, bOff + col, ldb, beta, c, cOff + row * ldc
+						+ col, ldc);
+			}
+		}));
+	}
+
+	/**
+	 * Same as {@link #sgemm} in double.
+	 */
+	public static void dgemm(ForkJoinPool pool, final int m, final int n,
+			final int k, final double alpha, final double[] a, final int aOff,
+			final int lda, final double[] b, final int bOff, final int ldb,
+			final double beta, final double[] c, final int cOff, final int ldc) {
+		pool.invoke(new Panel(0, 0, m, n, minArea(pool, m, n), new Leaf() {
+			@Override
+			public void compute(int row, int col, int rows, int cols) {
+				TiledJavaMatrixMultiplier.dgemm(rows, cols, k, alpha, a, aOff + row
+						* lda, lda, b, bOff + col, ldb, beta, c, cOff + row * ldc
+						+ col, ldc);
+			}
+		}));
+	}
+
+	private static long minArea(ForkJoinPool pool, int m, int n) {
+		return Math.max((long) TiledJavaMatrixMultiplier.MC
+				* TiledJavaMatrixMultiplier.MC, (long) m * n
+				/ (4L * pool.getParallelism()));
+	}
+
+	/**
+	 * Computes the rows x cols panel of the result at row, col.
+	 */
+	private interface Leaf {
+		void compute(int row, int col, int rows, int cols);
+	}
+
+	/**
+	 * A rows x cols panel of the result at row, col. Panels larger than
+	 * minArea are halved along their longer side; all panels share the full k
+	 * extent, so they write disjoint parts of C and need no synchronization.
+	 */
+	@SuppressWarnings("serial")
+	private static class Panel extends RecursiveAction {
+		private final int _row, _col, _rows, _cols;
+		private final long _minArea;
+		private final Leaf _leaf;
+
+		Panel(int row, int col, int rows, int cols, long minArea, Leaf leaf) {
+			_row = row;
+			_col = col;
+			_rows = rows;
+			_cols = cols;
+			_minArea = minArea;
+			_leaf = leaf;
+		}
+
+		private Panel part(int row, int col, int rows, int cols) {
+			return new Panel(row, col, rows, cols, _minArea, _leaf);
+		}
+
+		@Override
+		protected void compute() {
+			if ((long) _rows * _cols <= _minArea
+					|| (_rows <= TiledJavaMatrixMultiplier.MR && _cols <= TiledJavaMatrixMultiplier.NR)) {
+				_leaf.compute(_row, _col, _rows, _cols);
+				return;
+			}
+			if (_rows >= _cols) {
+				int top = split(_rows, TiledJavaMatrixMultiplier.MR);
+				invokeAll(part(_row, _col, top, _cols), part(_row + top, _col,
+						_rows - top, _cols));
+			} else {
+				int left = split(_cols, TiledJavaMatrixMultiplier.NR);
+				invokeAll(part(_row, _col, _rows, left), part(_row, _col + left,
+						_rows, _cols - left));
+			}
+		}
+
+		/**
+		 * Splits near the middle, keeping the first half aligned to the
+		 * register tile so that only the last panel has edge tiles.
+		 */
+		private static int split(int length, int tile) {
+			int half = (length / 2 + tile - 1) / tile * tile;
+			return Math.min(Math.max(half, tile), length - 1);
+		}
+	}
+}
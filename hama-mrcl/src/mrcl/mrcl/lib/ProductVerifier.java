@@ -0,0 +1,296 @@
+package mrcl.lib;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Checks that a remote matrix c is a * b without multiplying the matrices,
+ * in the manner of Freivalds: for random n-vectors r, a * (b * r) must equal
+ * c * r. With a m x k and b k x n, and T vectors, each block of a, b and c
+ * is read once and multiplied with the vectors, which costs O((mk + kn +
+ * mn) T) instead of O(mkn), and b * r keeps k x T doubles in memory. Row i
+ * of c * r depends only on block row i of a and c, so this finds the block
+ * rows of c that differ.
+ *
+ * Only if some do, the blocks are located: b is read again with the vectors
+ * split by the block columns of c, so that for block column j only the rows
+ * of r that meet block column j of b are used, and row i of block column j
+ * of c * r depends only on block (i, j) of c. With J block columns of c,
+ * that keeps k x J x T doubles and costs O(kn T) for b and O(hk J T) for
+ * each differing block row of height h of a, which is read again with the
+ * same block row of c.
+ *
+ * A value differs if it is off by more than mrcl.verify.tolerance (default
+ * 1e-3) times the same product of the absolute values, which bounds the
+ * rounding error.
+ *
+ * Runs on mrcl.verify.threads threads (default 1), one block row at a time,
+ * with mrcl.verify.trials vectors (default 2) and mrcl.verify.seed.
+ * Example: -Dmrcl.verify.threads=8 -Dmrcl.verify.tolerance=1e-2
+ */
+public class ProductVerifier {
+	private static final Log LOG = LogFactory.getLog(ProductVerifier.class);
+
+	public static final String TRIALS = "mrcl.verify.trials";
+	public static final String TOLERANCE = "mrcl.verify.tolerance";
+	public static final String THREADS = "mrcl.verify.threads";
+	public static final String SEED = "mrcl.verify.seed";
+
+	private final Matrix _a;
+	private final Matrix _b;
+	private final Matrix _c;
+	private final Configuration _conf;
+	private final int _trials;
+	private final double _tolerance;
+	// The vectors, _r[t][col].
+	private final double[][] _r;
+	// The number of parts the vectors are split into: 1, or the block
+	// columns of c to locate blocks.
+	private int _groups;
+	// b * r by group: value (row, g, t) is at (row * _groups + g) * T + t,
+	// and the same for the absolute values.
+	private double[] _br;
+	private double[] _brAbs;
+
+	private ProductVerifier(Matrix a, Matrix b, Matrix c, Configuration conf) {
+		_a = a;
+		_b = b;
+		_c = c;
+		_conf = conf;
+		_trials = conf.getInt(TRIALS, 2);
+		_tolerance = conf.getFloat(TOLERANCE, 1e-3f);
+		Random random = new Random(conf.getLong(SEED, System
+				.currentTimeMillis()));
+		_r = new double[_trials][b.getCols()];
+		for (int t = 0; t < _trials; t++)
+			for (int col = 0; col < b.getCols(); col++)
+				_r[t][col] = random.nextDouble() * 2 - 1;
+	}
+
+	/**
+	 * Returns the blocks of c that differ from a * b in block order, none if
+	 * c = a * b with high probability.
+	 */
+	public static List<Block> verify(Matrix a, Matrix b, Matrix c,
+			Configuration conf) {
+		if (a.getCols() != b.getRows() || a.getBlockWidth() != b.getBlockHeight()
+				|| c.getRows() != a.getRows() || c.getCols() != b.getCols()
+				|| c.getBlockHeight() != a.getBlockHeight()
+				|| c.getBlockWidth() != b.getBlockWidth())
+			throw new IllegalArgumentException("Cannot verify " + c.getName()
+					+ " as " + a.getName() + " * " + b.getName());
+		return new ProductVerifier(a, b, c, conf).verify();
+	}
+
+	private List<Block> verify() {
+		final List<Block> rows = Collections
+				.synchronizedList(new ArrayList<Block>());
+		final double[] maxError = new double[1];
+		multiplyB(1);
+		runRows(_c.getBlockRows(), new RowTask() {
+			@Override
+			public void run(int blockRow) {
+				double error = check(blockRow, rows);
+				synchronized (maxError) {
+					maxError[0] = Math.max(maxError[0], error);
+				}
+			}
+		});
+
+		final List<Block> mismatches = Collections
+				.synchronizedList(new ArrayList<Block>());
+		if (!rows.isEmpty()) {
+			final Block[] differing = rows.toArray(new Block[rows.size()]);
+			multiplyB(_c.getBlockCols());
+			runRows(differing.length, new RowTask() {
+				@Override
+				public void run(int i) {
+					check(differing[i].getBlockRow(), mismatches);
+				}
+			});
+		}
+		Collections.sort(mismatches, new Comparator<Block>() {
+			@Override
+			public int compare(Block x, Block y) {
+				return x.getBlockRow() != y.getBlockRow() ? x.getBlockRow()
+						- y.getBlockRow() : x.getBlockCol() - y.getBlockCol();
+			}
+		});
+		LOG.info(String.format("Verified %s with %d vectors: %d block rows and"
+				+ " %d blocks differ, maximum relative error %g", _c.getName(),
+				_trials, rows.size(), mismatches.size(), maxError[0]));
+		return mismatches;
+	}
+
+	private interface RowTask {
+		void run(int blockRow);
+	}
+
+	private void runRows(int blockRows, final RowTask task) {
+		int threads = _conf.getInt(THREADS, 1);
+		if (threads <= 1) {
+			for (int blockRow = 0; blockRow < blockRows; blockRow++)
+				task.run(blockRow);
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try {
+			for (int blockRow = 0; blockRow < blockRows; blockRow++) {
+				final int row = blockRow;
+				futures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						task.run(row);
+					}
+				}));
+			}
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Returns a value of a block, with floats null for a double block and
+	 * doubles null for a float block.
+	 */
+	private static double get(FloatBuffer floats, DoubleBuffer doubles,
+			int index) {
+		return doubles != null ? doubles.get(index) : floats.get(index);
+	}
+
+	/**
+	 * Computes b * r with the vectors split into groups, see _br.
+	 */
+	private void multiplyB(int groups) {
+		_groups = groups;
+		_br = new double[_b.getRows() * groups * _trials];
+		_brAbs = new double[_b.getRows() * groups * _trials];
+		runRows(_b.getBlockRows(), new RowTask() {
+			@Override
+			public void run(int blockRow) {
+				multiplyB(blockRow, _groups);
+			}
+		});
+	}
+
+	/**
+	 * Computes the rows of b * r for a block row of b.
+	 */
+	private void multiplyB(int blockRow, int groups) {
+		for (int j = 0; j < _b.getBlockCols(); j++) {
+			Block block = new Block(_b, blockRow, j);
+			Content content = Content.readRemote(block, _conf);
+			FloatBuffer floats = content.isDouble() ? null : content
+					.getFloatBuffer();
+			DoubleBuffer doubles = content.isDouble() ? content.getDoubleBuffer()
+					: null;
+			int rows = content.getRows(), cols = content.getCols();
+			int group = groups == 1 ? 0 : j;
+			for (int row = 0; row < rows; row++) {
+				int at = ((block.getRowOffset() + row) * groups + group) * _trials;
+				for (int col = 0; col < cols; col++) {
+					double value = get(floats, doubles, row * cols + col);
+					for (int t = 0; t < _trials; t++) {
+						double r = _r[t][block.getColOffset() + col];
+						_br[at + t] += value * r;
+						_brAbs[at + t] += Math.abs(value * r);
+					}
+				}
+			}
+			content.release();
+		}
+	}
+
+	/**
+	 * Compares a * (b * r) with c * r for a block row of c. Adds the block
+	 * row, as its block 0, to differing if the vectors are not split, and the
+	 * blocks that differ if they are split by block column. Returns the
+	 * largest relative error.
+	 */
+	private double check(int blockRow, List<Block> differing) {
+		int groups = _groups;
+		int width = groups * _trials;
+		int height = new Block(_c, blockRow, 0).getInnerRows();
+		double[] abr = new double[height * width];
+		double[] abrAbs = new double[height * width];
+		double[] cr = new double[height * width];
+		for (int p = 0; p < _a.getBlockCols(); p++) {
+			Block block = new Block(_a, blockRow, p);
+			Content content = Content.readRemote(block, _conf);
+			FloatBuffer floats = content.isDouble() ? null : content
+					.getFloatBuffer();
+			DoubleBuffer doubles = content.isDouble() ? content.getDoubleBuffer()
+					: null;
+			int cols = content.getCols();
+			for (int row = 0; row < height; row++) {
+				for (int col = 0; col < cols; col++) {
+					double value = get(floats, doubles, row * cols + col);
+					int from = (block.getColOffset() + col) * width;
+					for (int i = 0; i < width; i++) {
+						abr[row * width + i] += value * _br[from + i];
+						abrAbs[row * width + i] += Math.abs(value) * _brAbs[from + i];
+					}
+				}
+			}
+			content.release();
+		}
+		for (int j = 0; j < _c.getBlockCols(); j++) {
+			Block block = new Block(_c, blockRow, j);
+			Content content = Content.readRemote(block, _conf);
+			FloatBuffer floats = content.isDouble() ? null : content
+					.getFloatBuffer();
+			DoubleBuffer doubles = content.isDouble() ? content.getDoubleBuffer()
+					: null;
+			int cols = content.getCols();
+			int group = groups == 1 ? 0 : j;
+			for (int row = 0; row < height; row++) {
+				for (int col = 0; col < cols; col++) {
+					double value = get(floats, doubles, row * cols + col);
+					for (int t = 0; t < _trials; t++)
+						cr[(row * groups + group) * _trials + t] += value
+								* _r[t][block.getColOffset() + col];
+				}
+			}
+			content.release();
+		}
+
+		double maxError = 0;
+		for (int group = 0; group < groups; group++) {
+			boolean differs = false;
+			for (int row = 0; row < height; row++) {
+				for (int t = 0; t < _trials; t++) {
+					int i = (row * groups + group) * _trials + t;
+					double error = Math.abs(abr[i] - cr[i]);
+					// Also true if a value is NaN.
+					if (!(error <= _tolerance * abrAbs[i]))
+						differs = true;
+					if (abrAbs[i] > 0)
+						maxError = Math.max(maxError, error / abrAbs[i]);
+				}
+			}
+			if (differs)
+				differing.add(new Block(_c, blockRow, group));
+		}
+		return maxError;
+	}
+}
@@ -0,0 +1,66 @@
+package mrcl.lib;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * A block that DistMult streams through the shuffle. It is written like a
+ * remote block, with the codec of mrcl.block.codec, the precision of
+ * mrcl.block.precision and the sparse threshold of the job, and read back
+ * in whatever form its header names. A reduced precision only shrinks what
+ * is shuffled: the values are decoded to floats, or doubles, before they
+ * are summed.
+ *
+ * Hadoop creates the values it deserializes with the job configuration,
+ * and reuses them for every value of a key.
+ */
+public class ShuffledBlock implements Writable, Configurable {
+	private Configuration _conf;
+	private Content _content;
+
+	public ShuffledBlock() {
+	}
+
+	public ShuffledBlock(Content content, Configuration conf) {
+		_content = content;
+		_conf = conf;
+	}
+
+	/**
+	 * Returns the block, which belongs to this value and is overwritten by
+	 * the next {@link #readFields}.
+	 */
+	public Content get() {
+		return _content;
+	}
+
+	@Override
+	public void setConf(Configuration conf) {
+		_conf = conf;
+	}
+
+	@Override
+	public Configuration getConf() {
+		return _conf;
+	}
+
+	@Override
+	public void readFields(DataInput input) throws IOException {
+		if (_content == null)
+			_content = new Content();
+		_content.readFields(input);
+	}
+
+	@Override
+	public void write(DataOutput output) throws IOException {
+		if (_conf == null)
+			_content.write(output);
+		else
+			_content.writeRemote(output, _conf);
+	}
+}
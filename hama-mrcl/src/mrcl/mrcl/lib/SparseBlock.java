@@ -0,0 +1,144 @@
+package mrcl.lib;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * The non-zero values of a block in compressed sparse row (CSR) form: the
+ * entries of row i are at rowStart[i] to rowStart[i + 1] - 1 of colIndex and
+ * values, in increasing column order. Instances are not modified after they
+ * are built, so they can be shared between threads.
+ *
+ * Remote blocks whose density is below mrcl.sparse.threshold (default 0.1)
+ * are written in this form; 0 always writes dense blocks.
+ */
+public class SparseBlock {
+	public static final String THRESHOLD = "mrcl.sparse.threshold";
+	public static final float DEFAULT_THRESHOLD = 0.1f;
+
+	private final int _rows;
+	private final int _cols;
+	private final int[] _rowStart;
+	private final int[] _colIndex;
+	private final float[] _values;
+
+	SparseBlock(int rows, int cols, int[] rowStart, int[] colIndex,
+			float[] values) {
+		_rows = rows;
+		_cols = cols;
+		_rowStart = rowStart;
+		_colIndex = colIndex;
+		_values = values;
+	}
+
+	/**
+	 * Returns the sparse form of rows x cols dense floats, or null if they
+	 * have threshold * rows * cols or more non-zeros.
+	 */
+	static SparseBlock fromDense(FloatBuffer dense, int rows, int cols,
+			float threshold) {
+		long limit = (long) Math.ceil(threshold * rows * cols);
+		int nnz = 0;
+		for (int i = 0; i < rows * cols; i++) {
+			if (dense.get(i) != 0 && ++nnz >= limit)
+				return null;
+		}
+		if (nnz >= limit)
+			return null;
+
+		int[] rowStart = new int[rows + 1];
+		int[] colIndex = new int[nnz];
+		float[] values = new float[nnz];
+		int idx = 0;
+		for (int i = 0; i < rows; i++) {
+			rowStart[i] = idx;
+			for (int j = 0; j < cols; j++) {
+				float value = dense.get(i * cols + j);
+				if (value != 0) {
+					colIndex[idx] = j;
+					values[idx++] = value;
+				}
+			}
+		}
+		rowStart[rows] = idx;
+		return new SparseBlock(rows, cols, rowStart, colIndex, values);
+	}
+
+	/**
+	 * Writes all rows x cols floats, including the zeros.
+	 */
+	void toDense(FloatBuffer dense) {
+		for (int i = 0; i < _rows * _cols; i++)
+			dense.put(i, 0);
+		for (int i = 0; i < _rows; i++) {
+			for (int idx = _rowStart[i]; idx < _rowStart[i + 1]; idx++)
+				dense.put(i * _cols + _colIndex[idx], _values[idx]);
+		}
+	}
+
+	/**
+	 * Returns the size of the serialized arrays for nnz non-zeros.
+	 */
+	static int bytes(int rows, int nnz, BlockPrecision precision) {
+		return 4 * (rows + 1) + (4 + precision.getBytes()) * nnz;
+	}
+
+	/**
+	 * Serializes rowStart, colIndex and the values in the given precision.
+	 */
+	byte[] toBytes(BlockPrecision precision) {
+		int nnz = getNonZeros();
+		ByteBuffer buffer = ByteBuffer.allocate(bytes(_rows, nnz, precision));
+		buffer.asIntBuffer().put(_rowStart);
+		buffer.position(4 * (_rows + 1));
+		buffer.slice().asIntBuffer().put(_colIndex);
+		buffer.position(4 * (_rows + 1 + nnz));
+		buffer.put(precision.encode(FloatBuffer.wrap(_values), nnz));
+		return buffer.array();
+	}
+
+	static SparseBlock fromBytes(int rows, int cols, int nnz,
+			BlockPrecision precision, byte[] bytes) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		int[] rowStart = new int[rows + 1];
+		int[] colIndex = new int[nnz];
+		float[] values = new float[nnz];
+		buffer.asIntBuffer().get(rowStart);
+		buffer.position(4 * (rows + 1));
+		buffer.slice().asIntBuffer().get(colIndex);
+		precision.decode(bytes, 4 * (rows + 1 + nnz), FloatBuffer.wrap(values),
+				nnz);
+		return new SparseBlock(rows, cols, rowStart, colIndex, values);
+	}
+
+	public int getRows() {
+		return _rows;
+	}
+
+	public int getCols() {
+		return _cols;
+	}
+
+	public int getNonZeros() {
+		return _values.length;
+	}
+
+	/**
+	 * Returns the memory held by the arrays in bytes.
+	 */
+	public int getBytes() {
+		return bytes(_rows, getNonZeros(), BlockPrecision.FP32);
+	}
+
+	int[] getRowStart() {
+		return _rowStart;
+	}
+
+	int[] getColIndex() {
+		return _colIndex;
+	}
+
+	float[] getValues() {
+		return _values;
+	}
+}
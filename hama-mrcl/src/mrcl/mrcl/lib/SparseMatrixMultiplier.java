@@ -0,0 +1,118 @@
+package mrcl.lib;
+
+/**
+ * Performs matrix multiplication with sparse operands.
+ *
+ * Every built-in backend hands blocks that were read in the
+ * {@link SparseBlock} form to the kernels of this class, which only visit
+ * the non-zeros: the work of a sparse x dense product is proportional to the
+ * non-zeros of the sparse operand times the width of the result, and that of
+ * a sparse x sparse product to the number of matching non-zero pairs. Dense
+ * operands are multiplied by the {@link TiledJavaMatrixMultiplier} kernel.
+ *
+ * Select it with -Dmatrix.multiplier=Sparse.
+ */
+public class SparseMatrixMultiplier extends AbstractMatrixMultiplier
+{
+	public SparseMatrixMultiplier() {
+	}
+
+	@Override
+	protected void doMultiplyAddDense(Block block, Content a, Content b,
+			Content c, float alpha, float beta)
+	{
+		int m = b.getRows(), n = a.getCols(), k = a.getRows();
+		float[] aData = toArray(a, 0);
+		float[] bData = toArray(b, 1);
+		float[] cData = beta == 0 ? scratch(2, m * n) : toArray(c, 2);
+		// Column-major C = A * B is row-major C = B * A, see sgemmTiled.
+		TiledJavaMatrixMultiplier.sgemm(m, n, k, alpha, bData, 0, k, aData, 0,
+				n, beta, cData, 0, n);
+		fromArray(cData, c);
+	}
+
+	/**
+	 * {@link #doMultiplyAdd} where a, b or both are sparse, with the checked
+	 * extents of {@link AbstractMatrixMultiplier}.
+	 */
+	static void multiplyAddSparse(Content a, Content b, Content c,
+			float alpha, float beta) {
+		int m = b.getRows(), n = a.getCols();
+		float[] cData = beta == 0 ? scratch(2, m * n) : toArray(c, 2);
+		TiledJavaMatrixMultiplier.scale(m, n, beta, cData, 0, n);
+		// Row-major C += B * A, so b is the left operand.
+		SparseBlock left = b.getSparse();
+		SparseBlock right = a.getSparse();
+		if (left != null && right != null)
+			sparseSparse(m, n, alpha, left, right, cData);
+		else if (left != null)
+			sparseDense(m, n, alpha, left, toArray(a, 0), cData);
+		else
+			denseSparse(m, n, a.getRows(), alpha, toArray(b, 1), right, cData);
+		fromArray(cData, c);
+	}
+
+	/**
+	 * c += alpha * left * right for a sparse m x k left and a dense k x n
+	 * right operand.
+	 */
+	private static void sparseDense(int m, int n, float alpha,
+			SparseBlock left, float[] right, float[] c) {
+		int[] rowStart = left.getRowStart();
+		int[] colIndex = left.getColIndex();
+		float[] values = left.getValues();
+		for (int i = 0; i < m; i++) {
+			int ci = i * n;
+			for (int idx = rowStart[i]; idx < rowStart[i + 1]; idx++) {
+				float v = alpha * values[idx];
+				int ri = colIndex[idx] * n;
+				for (int j = 0; j < n; j++)
+					c[ci + j] += v * right[ri + j];
+			}
+		}
+	}
+
+	/**
+	 * c += alpha * left * right for a dense m x k left and a sparse k x n
+	 * right operand.
+	 */
+	private static void denseSparse(int m, int n, int k, float alpha,
+			float[] left, SparseBlock right, float[] c) {
+		int[] rowStart = right.getRowStart();
+		int[] colIndex = right.getColIndex();
+		float[] values = right.getValues();
+		for (int i = 0; i < m; i++) {
+			int ci = i * n;
+			for (int p = 0; p < k; p++) {
+				float v = left[i * k + p];
+				if (v == 0)
+					continue;
+				v *= alpha;
+				for (int idx = rowStart[p]; idx < rowStart[p + 1]; idx++)
+					c[ci + colIndex[idx]] += v * values[idx];
+			}
+		}
+	}
+
+	/**
+	 * c += alpha * left * right for sparse operands.
+	 */
+	private static void sparseSparse(int m, int n, float alpha,
+			SparseBlock left, SparseBlock right, float[] c) {
+		int[] leftStart = left.getRowStart();
+		int[] leftIndex = left.getColIndex();
+		float[] leftValues = left.getValues();
+		int[] rightStart = right.getRowStart();
+		int[] rightIndex = right.getColIndex();
+		float[] rightValues = right.getValues();
+		for (int i = 0; i < m; i++) {
+			int ci = i * n;
+			for (int idx = leftStart[i]; idx < leftStart[i + 1]; idx++) {
+				int p = leftIndex[idx];
+				float v = alpha * leftValues[idx];
+				for (int r = rightStart[p]; r < rightStart[p + 1]; r++)
+					c[ci + rightIndex[r]] += v * rightValues[r];
+			}
+		}
+	}
+}
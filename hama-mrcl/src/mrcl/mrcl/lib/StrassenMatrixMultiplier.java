@@ -0,0 +1,206 @@
+package mrcl.lib;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Performs matrix multiplication with Strassen's recursion, which needs 7
+ * instead of 8 half-size products per level and pays off for large blocks.
+ *
+ * The recursion stops at mrcl.strassen.cutoff (default 256) or at an odd
+ * size, and the leaves are multiplied by the {@link GemmKernel} backend named
+ * by mrcl.strassen.leaf (default TiledJava; VectorApi is faster where the
+ * jdk.incubator.vector module is available). All temporaries live in one
+ * workspace of about 2 n^2 floats that is allocated once per thread, so the
+ * recursion itself does not allocate. Non-square edge blocks go to the leaf
+ * backend directly.
+ *
+ * Select it with -Dmatrix.multiplier=Strassen.
+ */
+public class StrassenMatrixMultiplier extends AbstractMatrixMultiplier
+		implements Configurable
+{
+	public static final String CUTOFF = "mrcl.strassen.cutoff";
+	public static final String LEAF = "mrcl.strassen.leaf";
+	public static final int DEFAULT_CUTOFF = 256;
+	public static final String DEFAULT_LEAF = MatrixMultiplier.FALLBACK_MULTIPLIER;
+
+	private Configuration _conf;
+	private int _cutoff = DEFAULT_CUTOFF;
+	private GemmKernel _leaf;
+	private final ThreadLocal<float[]> _workspace = new ThreadLocal<float[]>();
+
+	public StrassenMatrixMultiplier() {
+		_leaf = getLeaf(DEFAULT_LEAF, null);
+	}
+
+	@Override
+	public void setConf(Configuration conf) {
+		_conf = conf;
+		_cutoff = Math.max(1, conf.getInt(CUTOFF, DEFAULT_CUTOFF));
+		_leaf = getLeaf(conf.get(LEAF, DEFAULT_LEAF), conf);
+	}
+
+	@Override
+	public Configuration getConf() {
+		return _conf;
+	}
+
+	private static GemmKernel getLeaf(String name, Configuration conf) {
+		MatrixMultiplier mm = Matrix.getMatrixMultiplier(name, conf);
+		if (!(mm instanceof GemmKernel))
+			throw new IllegalArgumentException(name
+					+ " multiplier cannot be used for Strassen leaves.");
+		return (GemmKernel) mm;
+	}
+
+	@Override
+	protected void doMultiplyAddDense(Block block, Content a, Content b,
+			Content c, float alpha, float beta)
+	{
+		int m = b.getRows(), n = a.getCols(), k = a.getRows();
+		float[] aData = toArray(a, 0);
+		float[] bData = toArray(b, 1);
+		float[] cData = beta == 0 ? scratch(2, m * n) : toArray(c, 2);
+		// Column-major C = A * B is row-major C = B * A, see sgemmTiled.
+		if (m != n || n != k) {
+			_leaf.gemm(m, n, k, alpha, bData, 0, k, aData, 0, n, beta, cData, 0,
+					n);
+		} else if (alpha == 1 && beta == 0) {
+			multiply(n, bData, 0, n, aData, 0, n, cData, 0, n, getWorkspace(n), n * n);
+		} else {
+			// The product goes to the head of the workspace and is then
+			// scaled into C.
+			float[] workspace = getWorkspace(n);
+			multiply(n, bData, 0, n, aData, 0, n, workspace, 0, n, workspace, n * n);
+			for (int i = 0; i < n * n; i++)
+				cData[i] = alpha * workspace[i] + (beta == 0 ? 0 : beta * cData[i]);
+		}
+		fromArray(cData, c);
+	}
+
+	/**
+	 * Column-major C = A * B for n x n matrices, like
+	 * {@link JavaMatrixMultiplier#sgemmJava} with alpha = 1 and beta = 0.
+	 */
+	public void sgemmStrassen(int n, float[] A, float[] B, float[] C) {
+		multiply(n, B, 0, n, A, 0, n, C, 0, n, getWorkspace(n), n * n);
+	}
+
+	/**
+	 * The workspace holds an n x n product followed by the temporaries of
+	 * the recursion.
+	 */
+	private float[] getWorkspace(int n) {
+		int size = n * n + workspaceSize(n);
+		float[] workspace = _workspace.get();
+		if (workspace == null || workspace.length < size) {
+			workspace = new float[size];
+			_workspace.set(workspace);
+		}
+		return workspace;
+	}
+
+	/**
+	 * Each level keeps two operand sums and one product of half size.
+	 */
+	int workspaceSize(int n) {
+		int size = 0;
+		while (n > _cutoff && n % 2 == 0) {
+			n /= 2;
+			size += 3 * n * n;
+		}
+		return size;
+	}
+
+	/**
+	 * Row-major C = A * B for n x n matrices. The workspace from ws[wsOff] on
+	 * must hold workspaceSize(n) floats.
+	 */
+	private void multiply(int n, float[] a, int aOff, int lda, float[] b,
+			int bOff, int ldb, float[] c, int cOff, int ldc, float[] ws,
+			int wsOff) {
+		if (n <= _cutoff || n % 2 != 0) {
+			_leaf.gemm(n, n, n, 1, a, aOff, lda, b, bOff, ldb, 0, c, cOff, ldc);
+			return;
+		}
+
+		int h = n / 2;
+		int a11 = aOff, a12 = aOff + h, a21 = aOff + h * lda, a22 = a21 + h;
+		int b11 = bOff, b12 = bOff + h, b21 = bOff + h * ldb, b22 = b21 + h;
+		int c11 = cOff, c12 = cOff + h, c21 = cOff + h * ldc, c22 = c21 + h;
+		int s = wsOff, t = wsOff + h * h, m = wsOff + 2 * h * h;
+		int next = wsOff + 3 * h * h;
+
+		// M1 = (A11 + A22)(B11 + B22); C11 = M1, C22 = M1
+		combine(h, a, a11, lda, 1, a, a22, lda, ws, s, h);
+		combine(h, b, b11, ldb, 1, b, b22, ldb, ws, t, h);
+		multiply(h, ws, s, h, ws, t, h, ws, m, h, ws, next);
+		store(h, ws, m, c, c11, ldc, 0);
+		store(h, ws, m, c, c22, ldc, 0);
+
+		// M2 = (A21 + A22)B11; C21 = M2, C22 -= M2
+		combine(h, a, a21, lda, 1, a, a22, lda, ws, s, h);
+		multiply(h, ws, s, h, b, b11, ldb, ws, m, h, ws, next);
+		store(h, ws, m, c, c21, ldc, 0);
+		store(h, ws, m, c, c22, ldc, -1);
+
+		// M3 = A11(B12 - B22); C12 = M3, C22 += M3
+		combine(h, b, b12, ldb, -1, b, b22, ldb, ws, t, h);
+		multiply(h, a, a11, lda, ws, t, h, ws, m, h, ws, next);
+		store(h, ws, m, c, c12, ldc, 0);
+		store(h, ws, m, c, c22, ldc, 1);
+
+		// M4 = A22(B21 - B11); C11 += M4, C21 += M4
+		combine(h, b, b21, ldb, -1, b, b11, ldb, ws, t, h);
+		multiply(h, a, a22, lda, ws, t, h, ws, m, h, ws, next);
+		store(h, ws, m, c, c11, ldc, 1);
+		store(h, ws, m, c, c21, ldc, 1);
+
+		// M5 = (A11 + A12)B22; C11 -= M5, C12 += M5
+		combine(h, a, a11, lda, 1, a, a12, lda, ws, s, h);
+		multiply(h, ws, s, h, b, b22, ldb, ws, m, h, ws, next);
+		store(h, ws, m, c, c11, ldc, -1);
+		store(h, ws, m, c, c12, ldc, 1);
+
+		// M6 = (A21 - A11)(B11 + B12); C22 += M6
+		combine(h, a, a21, lda, -1, a, a11, lda, ws, s, h);
+		combine(h, b, b11, ldb, 1, b, b12, ldb, ws, t, h);
+		multiply(h, ws, s, h, ws, t, h, ws, m, h, ws, next);
+		store(h, ws, m, c, c22, ldc, 1);
+
+		// M7 = (A12 - A22)(B21 + B22); C11 += M7
+		combine(h, a, a12, lda, -1, a, a22, lda, ws, s, h);
+		combine(h, b, b21, ldb, 1, b, b22, ldb, ws, t, h);
+		multiply(h, ws, s, h, ws, t, h, ws, m, h, ws, next);
+		store(h, ws, m, c, c11, ldc, 1);
+	}
+
+	/**
+	 * out = x + sign * y for h x h matrices.
+	 */
+	private static void combine(int h, float[] x, int xOff, int ldx,
+			float sign, float[] y, int yOff, int ldy, float[] out, int outOff,
+			int ldo) {
+		for (int i = 0; i < h; i++) {
+			int xi = xOff + i * ldx, yi = yOff + i * ldy, oi = outOff + i * ldo;
+			for (int j = 0; j < h; j++)
+				out[oi + j] = x[xi + j] + sign * y[yi + j];
+		}
+	}
+
+	/**
+	 * c = m when sign is 0, c += sign * m otherwise.
+	 */
+	private static void store(int h, float[] m, int mOff, float[] c,
+			int cOff, int ldc, float sign) {
+		for (int i = 0; i < h; i++) {
+			int mi = mOff + i * h, ci = cOff + i * ldc;
+			if (sign == 0)
+				System.arraycopy(m, mi, c, ci, h);
+			else
+				for (int j = 0; j < h; j++)
+					c[ci + j] += sign * m[mi + j];
+		}
+	}
+}
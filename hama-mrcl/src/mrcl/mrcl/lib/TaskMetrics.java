@@ -0,0 +1,155 @@
+package mrcl.lib;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sums what the blocks of this JVM cost, per kind of work: remote block
+ * reads and writes with their serialized bytes, block products with their
+ * floating point operations, and block additions. From them the achieved
+ * GFLOP/s and I/O bandwidth of a node follow.
+ *
+ * {@link #get} returns the sums of the whole JVM. A task phase that runs
+ * alongside others, like a combiner on the spill thread next to the
+ * mapper, instead {@link #attach}es its own TaskMetrics to its thread, which
+ * then also sums the work of that thread and of the pipeline and round
+ * threads it starts, see {@link #inherit}.
+ */
+public class TaskMetrics {
+	/**
+	 * The metrics that {@link #get} returns, in order.
+	 */
+	public static final String[] NAMES = { "read.blocks", "read.bytes",
+			"read.nanos", "write.blocks", "write.bytes", "write.nanos",
+			"gemm.blocks", "gemm.flops", "gemm.nanos", "add.blocks", "add.nanos" };
+	public static final int READ_BLOCKS = 0;
+	public static final int READ_BYTES = 1;
+	public static final int READ_NANOS = 2;
+	public static final int WRITE_BLOCKS = 3;
+	public static final int WRITE_BYTES = 4;
+	public static final int WRITE_NANOS = 5;
+	public static final int GEMM_BLOCKS = 6;
+	public static final int GEMM_FLOPS = 7;
+	public static final int GEMM_NANOS = 8;
+	public static final int ADD_BLOCKS = 9;
+	public static final int ADD_NANOS = 10;
+
+	private static final TaskMetrics TOTAL = new TaskMetrics();
+	private static final ThreadLocal<TaskMetrics> _current = new ThreadLocal<TaskMetrics>();
+
+	private final AtomicLong[] _values = new AtomicLong[NAMES.length];
+
+	public TaskMetrics() {
+		for (int i = 0; i < _values.length; i++)
+			_values[i] = new AtomicLong();
+	}
+
+	/**
+	 * Returns the metrics of this JVM so far.
+	 */
+	public static long[] get() {
+		return TOTAL.getValues();
+	}
+
+	/**
+	 * Returns the metrics summed by this instance so far.
+	 */
+	public long[] getValues() {
+		long[] values = new long[_values.length];
+		for (int i = 0; i < values.length; i++)
+			values[i] = _values[i].get();
+		return values;
+	}
+
+	/**
+	 * Sums the work of the calling thread into metrics as well, until
+	 * another is attached, and returns the one that was attached before, or
+	 * null. Null detaches.
+	 */
+	public static TaskMetrics attach(TaskMetrics metrics) {
+		TaskMetrics previous = _current.get();
+		if (metrics == null)
+			_current.remove();
+		else
+			_current.set(metrics);
+		return previous;
+	}
+
+	/**
+	 * Returns a task that runs with the metrics attached to the calling
+	 * thread, for handing work to another thread.
+	 */
+	static <T> Callable<T> inherit(final Callable<T> task) {
+		final TaskMetrics metrics = _current.get();
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				TaskMetrics previous = attach(metrics);
+				try {
+					return task.call();
+				} finally {
+					attach(previous);
+				}
+			}
+		};
+	}
+
+	static Runnable inherit(final Runnable task) {
+		final TaskMetrics metrics = _current.get();
+		return new Runnable() {
+			@Override
+			public void run() {
+				TaskMetrics previous = attach(metrics);
+				try {
+					task.run();
+				} finally {
+					attach(previous);
+				}
+			}
+		};
+	}
+
+	static void read(long bytes, long nanos) {
+		count(READ_BLOCKS, bytes, nanos);
+	}
+
+	static void write(long bytes, long nanos) {
+		count(WRITE_BLOCKS, bytes, nanos);
+	}
+
+	static void gemm(long flops, long nanos) {
+		count(GEMM_BLOCKS, flops, nanos);
+	}
+
+	static void add(long nanos) {
+		TOTAL.add(ADD_BLOCKS, 1, nanos);
+		TaskMetrics current = _current.get();
+		if (current != null)
+			current.add(ADD_BLOCKS, 1, nanos);
+	}
+
+	/**
+	 * Counts a block at blocks, with amount and nanos in the two metrics
+	 * after it.
+	 */
+	private static void count(int blocks, long amount, long nanos) {
+		TOTAL.add(blocks, 1, amount, nanos);
+		TaskMetrics current = _current.get();
+		if (current != null)
+			current.add(blocks, 1, amount, nanos);
+	}
+
+	private void add(int first, long... values) {
+		for (int i = 0; i < values.length; i++)
+			_values[first + i].addAndGet(values[i]);
+	}
+
+	/**
+	 * Returns the GFLOP/s of the block products in metrics like a
+	 * difference of {@link #get}, or 0 if there were none.
+	 */
+	public static double getGflops(long[] delta) {
+		return delta[GEMM_NANOS] == 0 ? 0 : (double) delta[GEMM_FLOPS]
+				/ delta[GEMM_NANOS];
+	}
+}
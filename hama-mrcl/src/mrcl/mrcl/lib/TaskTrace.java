@@ -0,0 +1,99 @@
+package mrcl.lib;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Sums the {@link TaskMetrics} of the phases of a task, e.g. "multiply",
+ * "combine" and "reduce", and writes them as JSON to
+ * mrcl.trace.dir/TASK_ID.json. The mapper or reducer and the combiner of a
+ * task share its trace, and every {@link #write} replaces the file with all
+ * phases so far, so the last one wins. Without mrcl.trace.dir nothing is
+ * recorded. Example: -Dmrcl.trace.dir=/mrcl/traces
+ */
+public class TaskTrace {
+	public static final String DIR = "mrcl.trace.dir";
+
+	private static TaskTrace _current;
+
+	private final Configuration _conf;
+	private final String _task;
+	private final Map<String, Phase> _phases = new LinkedHashMap<String, Phase>();
+
+	private static class Phase {
+		long _calls;
+		long _nanos;
+		final long[] _metrics = new long[TaskMetrics.NAMES.length];
+	}
+
+	private TaskTrace(Configuration conf, String task) {
+		_conf = conf;
+		_task = task;
+	}
+
+	/**
+	 * Returns the trace of the task of conf, or null if tracing is off. A
+	 * JVM that is reused for another task starts a new trace.
+	 */
+	public static synchronized TaskTrace get(Configuration conf) {
+		if (conf.get(DIR) == null)
+			return null;
+		String task = conf.get("mapred.task.id", "local");
+		if (_current == null || !_current._task.equals(task))
+			_current = new TaskTrace(conf, task);
+		return _current;
+	}
+
+	/**
+	 * Adds a call of a phase that took nanos, with the {@link TaskMetrics}
+	 * of the call.
+	 */
+	public synchronized void add(String phase, long nanos, long[] metrics) {
+		Phase sum = _phases.get(phase);
+		if (sum == null) {
+			sum = new Phase();
+			_phases.put(phase, sum);
+		}
+		sum._calls++;
+		sum._nanos += nanos;
+		for (int i = 0; i < metrics.length; i++)
+			sum._metrics[i] += metrics[i];
+	}
+
+	public synchronized String toJson() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"task\":\"").append(_task).append("\",\"phases\":[");
+		boolean first = true;
+		for (Map.Entry<String, Phase> entry : _phases.entrySet()) {
+			Phase phase = entry.getValue();
+			json.append(first ? "" : ",").append("{\"phase\":\"").append(
+					entry.getKey()).append("\",\"calls\":").append(phase._calls)
+					.append(",\"nanos\":").append(phase._nanos);
+			for (int i = 0; i < phase._metrics.length; i++)
+				json.append(",\"").append(TaskMetrics.NAMES[i]).append("\":")
+						.append(phase._metrics[i]);
+			json.append(",\"gflops\":").append(
+					TaskMetrics.getGflops(phase._metrics)).append("}");
+			first = false;
+		}
+		return json.append("]}").toString();
+	}
+
+	/**
+	 * Writes the phases so far to mrcl.trace.dir/TASK_ID.json.
+	 */
+	public synchronized void write() throws IOException {
+		FileSystem fs = FileSystem.get(_conf);
+		Writer writer = new OutputStreamWriter(fs.create(new Path(_conf.get(DIR),
+				_task + ".json")), "UTF-8");
+		writer.write(toJson());
+		writer.close();
+	}
+}
@@ -0,0 +1,76 @@
+package mrcl.lib;
+
+/**
+ * The work of one task of the grid decomposition: the result blocks
+ * [rowFrom, rowTo) x [colFrom, colTo), summed over the rounds
+ * [roundFrom, roundTo). Written one per line into the job input, like
+ * {@link MultArgs}.
+ */
+public class TileArgs {
+	private final String _a;
+	private final String _b;
+	private final int _rowFrom, _rowTo;
+	private final int _colFrom, _colTo;
+	private final int _roundFrom, _roundTo;
+
+	public TileArgs(String a, String b, int rowFrom, int rowTo, int colFrom,
+			int colTo, int roundFrom, int roundTo) {
+		_a = a;
+		_b = b;
+		_rowFrom = rowFrom;
+		_rowTo = rowTo;
+		_colFrom = colFrom;
+		_colTo = colTo;
+		_roundFrom = roundFrom;
+		_roundTo = roundTo;
+	}
+
+	public TileArgs(String string) {
+		String[] words = string.trim().split("-");
+		_a = words[0];
+		_b = words[1];
+		_rowFrom = Integer.parseInt(words[2]);
+		_rowTo = Integer.parseInt(words[3]);
+		_colFrom = Integer.parseInt(words[4]);
+		_colTo = Integer.parseInt(words[5]);
+		_roundFrom = Integer.parseInt(words[6]);
+		_roundTo = Integer.parseInt(words[7]);
+	}
+
+	public String toString() {
+		return String.format("%s-%s-%d-%d-%d-%d-%d-%d", _a, _b, _rowFrom,
+				_rowTo, _colFrom, _colTo, _roundFrom, _roundTo);
+	}
+
+	public String getA() {
+		return _a;
+	}
+
+	public String getB() {
+		return _b;
+	}
+
+	public int getRowFrom() {
+		return _rowFrom;
+	}
+
+	public int getRowTo() {
+		return _rowTo;
+	}
+
+	public int getColFrom() {
+		return _colFrom;
+	}
+
+	public int getColTo() {
+		return _colTo;
+	}
+
+	public int getRoundFrom() {
+		return _roundFrom;
+	}
+
+	public int getRoundTo() {
+		return _roundTo;
+	}
+}
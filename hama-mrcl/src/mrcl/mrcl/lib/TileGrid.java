@@ -0,0 +1,145 @@
+package mrcl.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Splits a multiplication into rowTiles x colTiles tiles of result blocks
+ * and slabs ranges of rounds, one task each. With one slab (2D) every task
+ * owns its result blocks and writes them; with more slabs (2.5D) the partial
+ * sums of the slabs are added up in the shuffle.
+ *
+ * {@link #choose} first splits the result into about mrcl.grid.tasks tiles,
+ * as square as possible, and only splits the rounds if there are fewer
+ * result blocks than tasks. A task accumulates one block row of its tile at
+ * a time, so tiles are also made narrow enough that a row of result blocks
+ * fits in mrcl.grid.memory.mb (default 256). mrcl.grid overrides the choice.
+ * Example: -Dmrcl.grid=4x4x2
+ */
+public class TileGrid {
+	public static final String GRID = "mrcl.grid";
+	public static final String TASKS = "mrcl.grid.tasks";
+	public static final String MEMORY = "mrcl.grid.memory.mb";
+	public static final int DEFAULT_MEMORY = 256;
+
+	private final int _rowTiles;
+	private final int _colTiles;
+	private final int _slabs;
+
+	public TileGrid(int rowTiles, int colTiles, int slabs) {
+		if (rowTiles < 1 || colTiles < 1 || slabs < 1)
+			throw new IllegalArgumentException("Invalid grid " + rowTiles + "x"
+					+ colTiles + "x" + slabs);
+		_rowTiles = rowTiles;
+		_colTiles = colTiles;
+		_slabs = slabs;
+	}
+
+	/**
+	 * Parses rowTiles x colTiles x slabs, e.g. "4x4x2".
+	 */
+	public static TileGrid parse(String grid) {
+		String[] words = grid.trim().split("x");
+		if (words.length != 3)
+			throw new IllegalArgumentException("Invalid " + GRID + ": " + grid);
+		return new TileGrid(Integer.parseInt(words[0]), Integer
+				.parseInt(words[1]), Integer.parseInt(words[2]));
+	}
+
+	/**
+	 * Returns the grid of mrcl.grid, or chooses one for result with tasks
+	 * tasks (mrcl.grid.tasks if set) within mrcl.grid.memory.mb.
+	 */
+	public static TileGrid get(Configuration conf, Matrix result, int rounds,
+			int tasks) {
+		String grid = conf.get(GRID);
+		if (grid != null)
+			return parse(grid);
+		return choose(result, rounds, conf.getInt(TASKS, tasks), conf.getInt(
+				MEMORY, DEFAULT_MEMORY) * 1024L * 1024L);
+	}
+
+	public static TileGrid choose(Matrix result, int rounds, int tasks,
+			long memory) {
+		int blockRows = result.getBlockRows();
+		int blockCols = result.getBlockCols();
+		long blockBytes = (long) result.getBlockHeight()
+				* result.getBlockWidth() * result.getElementType().getBytes();
+		int maxCols = (int) Math.max(1, Math.min(blockCols, memory / blockBytes));
+
+		int rowTiles = 1;
+		int colTiles = (blockCols + maxCols - 1) / maxCols;
+		while ((long) rowTiles * colTiles < tasks) {
+			boolean canRow = rowTiles < blockRows;
+			boolean canCol = colTiles < blockCols;
+			if (!canRow && !canCol)
+				break;
+			// Split the dimension whose tiles are larger.
+			if (canRow
+					&& (!canCol || blockRows * colTiles >= blockCols * rowTiles))
+				rowTiles++;
+			else
+				colTiles++;
+		}
+		int slabs = Math.max(1, Math.min(rounds, tasks / (rowTiles * colTiles)));
+		return new TileGrid(rowTiles, colTiles, slabs);
+	}
+
+	/**
+	 * Returns this grid with no more tiles than result has blocks and no more
+	 * slabs than rounds.
+	 */
+	public TileGrid fit(Matrix result, int rounds) {
+		return new TileGrid(Math.min(_rowTiles, result.getBlockRows()), Math
+				.min(_colTiles, result.getBlockCols()), Math.min(_slabs, rounds));
+	}
+
+	/**
+	 * Returns the tasks of a * b in row-major tile order and slab order
+	 * within a tile. Tiles and slabs differ in size by at most one block.
+	 */
+	public List<TileArgs> split(Matrix a, Matrix b, Matrix result) {
+		int blockRows = result.getBlockRows();
+		int blockCols = result.getBlockCols();
+		int rounds = a.getBlockCols();
+		TileGrid grid = fit(result, rounds);
+		int rowTiles = grid._rowTiles;
+		int colTiles = grid._colTiles;
+		int slabs = grid._slabs;
+		List<TileArgs> tasks = new ArrayList<TileArgs>();
+		for (int i = 0; i < rowTiles; i++) {
+			for (int j = 0; j < colTiles; j++) {
+				for (int s = 0; s < slabs; s++) {
+					tasks.add(new TileArgs(a.getName(), b.getName(), bound(i,
+							rowTiles, blockRows), bound(i + 1, rowTiles, blockRows),
+							bound(j, colTiles, blockCols), bound(j + 1, colTiles,
+									blockCols), bound(s, slabs, rounds), bound(s + 1,
+									slabs, rounds)));
+				}
+			}
+		}
+		return tasks;
+	}
+
+	private static int bound(int part, int parts, int length) {
+		return (int) ((long) part * length / parts);
+	}
+
+	public int getRowTiles() {
+		return _rowTiles;
+	}
+
+	public int getColTiles() {
+		return _colTiles;
+	}
+
+	public int getSlabs() {
+		return _slabs;
+	}
+
+	public String toString() {
+		return _rowTiles + "x" + _colTiles + "x" + _slabs;
+	}
+}
@@ -0,0 +1,315 @@
+package mrcl.lib;
+
+/**
+ * Performs matrix multiplication with cache-blocked pure Java code.
+ *
+ * The operands are copied out of their {@link Content} buffers into plain
+ * float arrays, and then repacked into contiguous panels so that the inner
+ * loop only touches sequential memory. The packed panel of the left operand
+ * (MC x KC) is sized for L2 and a micro-panel of the right operand (KC x NR)
+ * for L1. The micro-kernel keeps an MR x NR tile of the result in registers.
+ * {@link #dgemm} is the same kernel in double, for double blocks.
+ *
+ * Select it with -Dmatrix.multiplier=TiledJava.
+ */
+public class TiledJavaMatrixMultiplier extends AbstractMatrixMultiplier
+		implements GemmKernel
+{
+	public static final int MR = 4;
+	public static final int NR = 4;
+	public static final int MC = 64;
+	public static final int KC = 256;
+	public static final int NC = 1024;
+
+	/**
+	 * Packing buffers of the largest panel sizes, allocated once per thread.
+	 */
+	private static final ThreadLocal<float[][]> _packBuffers = new ThreadLocal<float[][]>() {
+		@Override
+		protected float[][] initialValue() {
+			return new float[][] { new float[MC * KC], new float[KC * NC],
+					new float[MR * NR] };
+		}
+	};
+
+	private static final ThreadLocal<double[][]> _doublePackBuffers = new ThreadLocal<double[][]>() {
+		@Override
+		protected double[][] initialValue() {
+			return new double[][] { new double[MC * KC], new double[KC * NC],
+					new double[MR * NR] };
+		}
+	};
+
+	public TiledJavaMatrixMultiplier() {
+	}
+
+	@Override
+	public void gemm(int m, int n, int k, float alpha, float[] a, int aOff,
+			int lda, float[] b, int bOff, int ldb, float beta, float[] c,
+			int cOff, int ldc) {
+		sgemm(m, n, k, alpha, a, aOff, lda, b, bOff, ldb, beta, c, cOff, ldc);
+	}
+
+	@Override
+	protected void doMultiplyAddDense(Block block, Content a, Content b,
+			Content c, float alpha, float beta)
+	{
+		int m = b.getRows(), n = a.getCols(), k = a.getRows();
+		float[] aData = toArray(a, 0);
+		float[] bData = toArray(b, 1);
+		float[] cData = beta == 0 ? scratch(2, m * n) : toArray(c, 2);
+		// Column-major C = A * B is row-major C = B * A, see sgemmTiled.
+		sgemm(m, n, k, alpha, bData, 0, k, aData, 0, n, beta, cData, 0, n);
+		fromArray(cData, c);
+	}
+
+	/**
+	 * Same contract as {@link JavaMatrixMultiplier#sgemmJava}: all matrices
+	 * are n x n and stored in column-major order, C = alpha * A * B + beta * C.
+	 */
+	public static void sgemmTiled(int n, float alpha, float[] A, float[] B,
+			float beta, float[] C) {
+		// A column-major matrix is its transpose in row-major order, so
+		// (A * B)^T = B^T * A^T lets us call the row-major kernel directly.
+		sgemm(n, n, n, alpha, B, 0, n, A, 0, n, beta, C, 0, n);
+	}
+
+	/**
+	 * Row-major C = alpha * A * B + beta * C, where A is m x k, B is k x n and
+	 * C is m x n. Each operand is addressed by an offset and a leading
+	 * dimension so that sub-matrices can be passed without copying.
+	 */
+	public static void sgemm(int m, int n, int k, float alpha, float[] a,
+			int aOff, int lda, float[] b, int bOff, int ldb, float beta,
+			float[] c, int cOff, int ldc) {
+		scale(m, n, beta, c, cOff, ldc);
+		if (m == 0 || n == 0 || k == 0 || alpha == 0)
+			return;
+
+		float[][] buffers = _packBuffers.get();
+		float[] packedA = buffers[0];
+		float[] packedB = buffers[1];
+		float[] edge = buffers[2];
+
+		for (int jc = 0; jc < n; jc += NC) {
+			int nc = Math.min(NC, n - jc);
+			for (int pc = 0; pc < k; pc += KC) {
+				int kc = Math.min(KC, k - pc);
+				packB(kc, nc, b, bOff + pc * ldb + jc, ldb, packedB);
+				for (int ic = 0; ic < m; ic += MC) {
+					int mc = Math.min(MC, m - ic);
+					packA(mc, kc, a, aOff + ic * lda + pc, lda, packedA);
+					for (int jr = 0; jr < nc; jr += NR) {
+						for (int ir = 0; ir < mc; ir += MR) {
+							microKernel(kc, alpha, packedA, ir * kc, packedB, jr * kc,
+									c, cOff + (ic + ir) * ldc + jc + jr, ldc,
+									Math.min(MR, mc - ir), Math.min(NR, nc - jr), edge);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	static void scale(int m, int n, float beta, float[] c, int cOff,
+			int ldc) {
+		if (beta == 1)
+			return;
+		for (int i = 0; i < m; i++) {
+			int row = cOff + i * ldc;
+			for (int j = 0; j < n; j++) {
+				c[row + j] = beta == 0 ? 0 : beta * c[row + j];
+			}
+		}
+	}
+
+	/**
+	 * Packs an mc x kc block of A into MR-row micro-panels. Within a panel the
+	 * MR values of one column are adjacent, and rows past mc are zero-padded.
+	 */
+	private static void packA(int mc, int kc, float[] a, int aOff, int lda,
+			float[] packed) {
+		int idx = 0;
+		for (int ir = 0; ir < mc; ir += MR) {
+			int rows = Math.min(MR, mc - ir);
+			for (int p = 0; p < kc; p++) {
+				int src = aOff + ir * lda + p;
+				for (int r = 0; r < MR; r++) {
+					packed[idx++] = r < rows ? a[src + r * lda] : 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Packs a kc x nc block of B into NR-column micro-panels. Within a panel
+	 * the NR values of one row are adjacent, and columns past nc are
+	 * zero-padded.
+	 */
+	private static void packB(int kc, int nc, float[] b, int bOff, int ldb,
+			float[] packed) {
+		int idx = 0;
+		for (int jr = 0; jr < nc; jr += NR) {
+			int cols = Math.min(NR, nc - jr);
+			for (int p = 0; p < kc; p++) {
+				int src = bOff + p * ldb + jr;
+				for (int q = 0; q < NR; q++) {
+					packed[idx++] = q < cols ? b[src + q] : 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Computes an MR x NR tile of alpha * A * B from packed micro-panels and
+	 * adds it to C. Only the leading mr x nr part is stored for edge tiles.
+	 */
+	private static void microKernel(int kc, float alpha, float[] a, int ai,
+			float[] b, int bi, float[] c, int ci, int ldc, int mr, int nr,
+			float[] edge) {
+		float c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+		float c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+		float c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+		float c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+
+		for (int p = 0; p < kc; p++, ai += MR, bi += NR) {
+			float a0 = a[ai], a1 = a[ai + 1], a2 = a[ai + 2], a3 = a[ai + 3];
+			float b0 = b[bi], b1 = b[bi + 1], b2 = b[bi + 2], b3 = b[bi + 3];
+			c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+			c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+			c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+			c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+		}
+
+		if (mr == MR && nr == NR) {
+			int r0 = ci, r1 = ci + ldc, r2 = ci + 2 * ldc, r3 = ci + 3 * ldc;
+			c[r0] += alpha * c00; c[r0 + 1] += alpha * c01; c[r0 + 2] += alpha * c02; c[r0 + 3] += alpha * c03;
+			c[r1] += alpha * c10; c[r1 + 1] += alpha * c11; c[r1 + 2] += alpha * c12; c[r1 + 3] += alpha * c13;
+			c[r2] += alpha * c20; c[r2 + 1] += alpha * c21; c[r2 + 2] += alpha * c22; c[r2 + 3] += alpha * c23;
+			c[r3] += alpha * c30; c[r3 + 1] += alpha * c31; c[r3 + 2] += alpha * c32; c[r3 + 3] += alpha * c33;
+			return;
+		}
+
+		edge[0] = c00; edge[1] = c01; edge[2] = c02; edge[3] = c03;
+		edge[4] = c10; edge[5] = c11; edge[6] = c12; edge[7] = c13;
+		edge[8] = c20; edge[9] = c21; edge[10] = c22; edge[11] = c23;
+		edge[12] = c30; edge[13] = c31; edge[14] = c32; edge[15] = c33;
+		for (int r = 0; r < mr; r++) {
+			for (int q = 0; q < nr; q++) {
+				c[ci + r * ldc + q] += alpha * edge[r * NR + q];
+			}
+		}
+	}
+
+	/**
+	 * Same as {@link #sgemm} in double.
+	 */
+	public static void dgemm(int m, int n, int k, double alpha, double[] a,
+			int aOff, int lda, double[] b, int bOff, int ldb, double beta,
+			double[] c, int cOff, int ldc) {
+		scale(m, n, beta, c, cOff, ldc);
+		if (m == 0 || n == 0 || k == 0 || alpha == 0)
+			return;
+
+		double[][] buffers = _doublePackBuffers.get();
+		double[] packedA = buffers[0];
+		double[] packedB = buffers[1];
+		double[] edge = buffers[2];
+
+		for (int jc = 0; jc < n; jc += NC) {
+			int nc = Math.min(NC, n - jc);
+			for (int pc = 0; pc < k; pc += KC) {
+				int kc = Math.min(KC, k - pc);
+				packB(kc, nc, b, bOff + pc * ldb + jc, ldb, packedB);
+				for (int ic = 0; ic < m; ic += MC) {
+					int mc = Math.min(MC, m - ic);
+					packA(mc, kc, a, aOff + ic * lda + pc, lda, packedA);
+					for (int jr = 0; jr < nc; jr += NR) {
+						for (int ir = 0; ir < mc; ir += MR) {
+							microKernel(kc, alpha, packedA, ir * kc, packedB, jr * kc,
+									c, cOff + (ic + ir) * ldc + jc + jr, ldc,
+									Math.min(MR, mc - ir), Math.min(NR, nc - jr), edge);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	static void scale(int m, int n, double beta, double[] c, int cOff,
+			int ldc) {
+		if (beta == 1)
+			return;
+		for (int i = 0; i < m; i++) {
+			int row = cOff + i * ldc;
+			for (int j = 0; j < n; j++) {
+				c[row + j] = beta == 0 ? 0 : beta * c[row + j];
+			}
+		}
+	}
+
+	private static void packA(int mc, int kc, double[] a, int aOff, int lda,
+			double[] packed) {
+		int idx = 0;
+		for (int ir = 0; ir < mc; ir += MR) {
+			int rows = Math.min(MR, mc - ir);
+			for (int p = 0; p < kc; p++) {
+				int src = aOff + ir * lda + p;
+				for (int r = 0; r < MR; r++) {
+					packed[idx++] = r < rows ? a[src + r * lda] : 0;
+				}
+			}
+		}
+	}
+
+	private static void packB(int kc, int nc, double[] b, int bOff, int ldb,
+			double[] packed) {
+		int idx = 0;
+		for (int jr = 0; jr < nc; jr += NR) {
+			int cols = Math.min(NR, nc - jr);
+			for (int p = 0; p < kc; p++) {
+				int src = bOff + p * ldb + jr;
+				for (int q = 0; q < NR; q++) {
+					packed[idx++] = q < cols ? b[src + q] : 0;
+				}
+			}
+		}
+	}
+
+	private static void microKernel(int kc, double alpha, double[] a, int ai,
+			double[] b, int bi, double[] c, int ci, int ldc, int mr, int nr,
+			double[] edge) {
+		double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+		double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+		double c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+		double c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+
+		for (int p = 0; p < kc; p++, ai += MR, bi += NR) {
+			double a0 = a[ai], a1 = a[ai + 1], a2 = a[ai + 2], a3 = a[ai + 3];
+			double b0 = b[bi], b1 = b[bi + 1], b2 = b[bi + 2], b3 = b[bi + 3];
+			c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+			c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+			c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+			c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+		}
+
+		if (mr == MR && nr == NR) {
+			int r0 = ci, r1 = ci + ldc, r2 = ci + 2 * ldc, r3 = ci + 3 * ldc;
+			c[r0] += alpha * c00; c[r0 + 1] += alpha * c01; c[r0 + 2] += alpha * c02; c[r0 + 3] += alpha * c03;
+			c[r1] += alpha * c10; c[r1 + 1] += alpha * c11; c[r1 + 2] += alpha * c12; c[r1 + 3] += alpha * c13;
+			c[r2] += alpha * c20; c[r2 + 1] += alpha * c21; c[r2 + 2] += alpha * c22; c[r2 + 3] += alpha * c23;
+			c[r3] += alpha * c30; c[r3 + 1] += alpha * c31; c[r3 + 2] += alpha * c32; c[r3 + 3] += alpha * c33;
+			return;
+		}
+
+		edge[0] = c00; edge[1] = c01; edge[2] = c02; edge[3] = c03;
+		edge[4] = c10; edge[5] = c11; edge[6] = c12; edge[7] = c13;
+		edge[8] = c20; edge[9] = c21; edge[10] = c22; edge[11] = c23;
+		edge[12] = c30; edge[13] = c31; edge[14] = c32; edge[15] = c33;
+		for (int r = 0; r < mr; r++) {
+			for (int q = 0; q < nr; q++) {
+				c[ci + r * ldc + q] += alpha * edge[r * NR + q];
+			}
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package mrcl.lib;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link ContentKernels} on top of jdk.incubator.vector. The byte buffers
+ * are copied through per-thread float[] chunks, because the array loads and
+ * stores are the only ones that every JDK since 16 has; the ByteBuffer ones
+ * were removed in JDK 19.
+ */
+public class VectorApiContentKernels extends ContentKernels {
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+	/**
+	 * Floats per chunk.
+	 */
+	private static final int CHUNK = 4096;
+
+	private static final ThreadLocal<float[][]> _chunks = new ThreadLocal<float[][]>() {
+		@Override
+		protected float[][] initialValue() {
+			return new float[][] { new float[CHUNK], new float[CHUNK] };
+		}
+	};
+
+	public VectorApiContentKernels() {
+	}
+
+	@Override
+	public void add(ByteBuffer a, ByteBuffer b, ByteBuffer out, int length) {
+		apply(a, b, out, length, false);
+	}
+
+	@Override
+	public void subtract(ByteBuffer a, ByteBuffer b, ByteBuffer out, int length) {
+		apply(a, b, out, length, true);
+	}
+
+	private static void apply(ByteBuffer a, ByteBuffer b, ByteBuffer out,
+			int length, boolean subtract) {
+		FloatBuffer fa = floats(a), fb = floats(b), fout = floats(out);
+		float[][] chunks = _chunks.get();
+		float[] ca = chunks[0], cb = chunks[1];
+		for (int start = 0; start < length; start += CHUNK) {
+			int n = Math.min(CHUNK, length - start);
+			fa.get(start, ca, 0, n);
+			fb.get(start, cb, 0, n);
+			int bound = SPECIES.loopBound(n);
+			int i = 0;
+			for (; i < bound; i += SPECIES.length()) {
+				FloatVector va = FloatVector.fromArray(SPECIES, ca, i);
+				FloatVector vb = FloatVector.fromArray(SPECIES, cb, i);
+				(subtract ? va.sub(vb) : va.add(vb)).intoArray(ca, i);
+			}
+			for (; i < n; i++)
+				ca[i] = subtract ? ca[i] - cb[i] : ca[i] + cb[i];
+			fout.put(start, ca, 0, n);
+		}
+	}
+
+	/**
+	 * Returns all floats of a buffer in its byte order, whatever its
+	 * position.
+	 */
+	private static FloatBuffer floats(ByteBuffer buffer) {
+		ByteBuffer whole = buffer.duplicate().order(buffer.order());
+		whole.clear();
+		return whole.asFloatBuffer();
+	}
+}
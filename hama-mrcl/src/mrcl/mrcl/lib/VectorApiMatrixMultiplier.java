@@ -0,0 +1,145 @@
+package mrcl.lib;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Performs matrix multiplication with SIMD instructions through the
+ * jdk.incubator.vector API. The vector width is the preferred species of the
+ * running CPU, e.g. 8 floats on AVX2 and 16 on AVX-512.
+ *
+ * The blocking follows {@link TiledJavaMatrixMultiplier}: a KC x NC panel of
+ * the right operand is packed row by row, and four rows of the result are
+ * accumulated at a time with broadcast fused multiply-adds.
+ *
+ * Select it with -Dmatrix.multiplier=VectorApi. The task JVMs need
+ * --add-modules jdk.incubator.vector (e.g. in mapred.child.java.opts);
+ * without the module {@link Matrix#getMatrixMultiplier} falls back to
+ * TiledJava.
+ */
+public class VectorApiMatrixMultiplier extends AbstractMatrixMultiplier
+		implements GemmKernel
+{
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+	private static final int KC = TiledJavaMatrixMultiplier.KC;
+	private static final int NC = TiledJavaMatrixMultiplier.NC;
+
+	private static final ThreadLocal<float[]> _packBuffer = new ThreadLocal<float[]>() {
+		@Override
+		protected float[] initialValue() {
+			return new float[KC * NC];
+		}
+	};
+
+	public VectorApiMatrixMultiplier() {
+	}
+
+	@Override
+	public void gemm(int m, int n, int k, float alpha, float[] a, int aOff,
+			int lda, float[] b, int bOff, int ldb, float beta, float[] c,
+			int cOff, int ldc) {
+		sgemm(m, n, k, alpha, a, aOff, lda, b, bOff, ldb, beta, c, cOff, ldc);
+	}
+
+	@Override
+	protected void doMultiplyAddDense(Block block, Content a, Content b,
+			Content c, float alpha, float beta)
+	{
+		int m = b.getRows(), n = a.getCols(), k = a.getRows();
+		float[] aData = toArray(a, 0);
+		float[] bData = toArray(b, 1);
+		float[] cData = beta == 0 ? scratch(2, m * n) : toArray(c, 2);
+		// Column-major C = A * B is row-major C = B * A, see sgemmTiled.
+		sgemm(m, n, k, alpha, bData, 0, k, aData, 0, n, beta, cData, 0, n);
+		fromArray(cData, c);
+	}
+
+	/**
+	 * Row-major C = alpha * A * B + beta * C with the same arguments as
+	 * {@link TiledJavaMatrixMultiplier#sgemm}.
+	 */
+	public static void sgemm(int m, int n, int k, float alpha, float[] a,
+			int aOff, int lda, float[] b, int bOff, int ldb, float beta,
+			float[] c, int cOff, int ldc) {
+		TiledJavaMatrixMultiplier.scale(m, n, beta, c, cOff, ldc);
+		if (m == 0 || n == 0 || k == 0 || alpha == 0)
+			return;
+
+		float[] packedB = _packBuffer.get();
+		for (int jc = 0; jc < n; jc += NC) {
+			int nc = Math.min(NC, n - jc);
+			for (int pc = 0; pc < k; pc += KC) {
+				int kc = Math.min(KC, k - pc);
+				for (int p = 0; p < kc; p++)
+					System.arraycopy(b, bOff + (pc + p) * ldb + jc, packedB, p * nc, nc);
+
+				int i = 0;
+				for (; i + 4 <= m; i += 4)
+					rows4(kc, nc, alpha, a, aOff + i * lda + pc, lda, packedB, c,
+							cOff + i * ldc + jc, ldc);
+				for (; i < m; i++)
+					row1(kc, nc, alpha, a, aOff + i * lda + pc, packedB, c, cOff
+							+ i * ldc + jc);
+			}
+		}
+	}
+
+	/**
+	 * Adds alpha * A[0..4, 0..kc] * B[0..kc, 0..nc] to four rows of C.
+	 */
+	private static void rows4(int kc, int nc, float alpha, float[] a,
+			int ai, int lda, float[] b, float[] c, int ci, int ldc) {
+		int a0 = ai, a1 = ai + lda, a2 = ai + 2 * lda, a3 = ai + 3 * lda;
+		int width = SPECIES.length();
+		for (int j = 0; j < nc; j += width) {
+			VectorMask<Float> mask = SPECIES.indexInRange(j, nc);
+			FloatVector acc0 = FloatVector.zero(SPECIES);
+			FloatVector acc1 = FloatVector.zero(SPECIES);
+			FloatVector acc2 = FloatVector.zero(SPECIES);
+			FloatVector acc3 = FloatVector.zero(SPECIES);
+			if (j + width <= nc) {
+				for (int p = 0; p < kc; p++) {
+					FloatVector bv = FloatVector.fromArray(SPECIES, b, p * nc + j);
+					acc0 = bv.fma(FloatVector.broadcast(SPECIES, a[a0 + p]), acc0);
+					acc1 = bv.fma(FloatVector.broadcast(SPECIES, a[a1 + p]), acc1);
+					acc2 = bv.fma(FloatVector.broadcast(SPECIES, a[a2 + p]), acc2);
+					acc3 = bv.fma(FloatVector.broadcast(SPECIES, a[a3 + p]), acc3);
+				}
+			} else {
+				for (int p = 0; p < kc; p++) {
+					FloatVector bv = FloatVector.fromArray(SPECIES, b, p * nc + j, mask);
+					acc0 = bv.fma(FloatVector.broadcast(SPECIES, a[a0 + p]), acc0);
+					acc1 = bv.fma(FloatVector.broadcast(SPECIES, a[a1 + p]), acc1);
+					acc2 = bv.fma(FloatVector.broadcast(SPECIES, a[a2 + p]), acc2);
+					acc3 = bv.fma(FloatVector.broadcast(SPECIES, a[a3 + p]), acc3);
+				}
+			}
+			store(acc0, alpha, c, ci + j, mask);
+			store(acc1, alpha, c, ci + ldc + j, mask);
+			store(acc2, alpha, c, ci + 2 * ldc + j, mask);
+			store(acc3, alpha, c, ci + 3 * ldc + j, mask);
+		}
+	}
+
+	/**
+	 * Adds alpha * A[0, 0..kc] * B[0..kc, 0..nc] to one row of C.
+	 */
+	private static void row1(int kc, int nc, float alpha, float[] a, int ai,
+			float[] b, float[] c, int ci) {
+		for (int j = 0; j < nc; j += SPECIES.length()) {
+			VectorMask<Float> mask = SPECIES.indexInRange(j, nc);
+			FloatVector acc = FloatVector.zero(SPECIES);
+			for (int p = 0; p < kc; p++)
+				acc = FloatVector.fromArray(SPECIES, b, p * nc + j, mask).fma(
+						FloatVector.broadcast(SPECIES, a[ai + p]), acc);
+			store(acc, alpha, c, ci + j, mask);
+		}
+	}
+
+	private static void store(FloatVector acc, float alpha, float[] c, int ci,
+			VectorMask<Float> mask) {
+		FloatVector.fromArray(SPECIES, c, ci, mask).add(acc.mul(alpha))
+				.intoArray(c, ci, mask);
+	}
+}